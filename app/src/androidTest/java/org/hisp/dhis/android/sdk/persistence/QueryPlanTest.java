@@ -0,0 +1,177 @@
+/*
+ *  Copyright (c) 2016, University of Oslo
+ *  * All rights reserved.
+ *  *
+ *  * Redistribution and use in source and binary forms, with or without
+ *  * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *  * list of conditions and the following disclaimer.
+ *  *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *  * this list of conditions and the following disclaimer in the documentation
+ *  * and/or other materials provided with the distribution.
+ *  * Neither the name of the HISP project nor the names of its contributors may
+ *  * be used to endorse or promote products derived from this software without
+ *  * specific prior written permission.
+ *  *
+ *  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package org.hisp.dhis.android.sdk.persistence;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.raizlabs.android.dbflow.config.FlowManager;
+import com.raizlabs.android.dbflow.sql.builder.Condition;
+import com.raizlabs.android.dbflow.sql.language.Select;
+import com.raizlabs.android.dbflow.sql.language.Where;
+
+import org.hisp.dhis.android.sdk.persistence.models.DataValue;
+import org.hisp.dhis.android.sdk.persistence.models.DataValue$Table;
+import org.hisp.dhis.android.sdk.persistence.models.Enrollment;
+import org.hisp.dhis.android.sdk.persistence.models.Enrollment$Table;
+import org.hisp.dhis.android.sdk.persistence.models.Event;
+import org.hisp.dhis.android.sdk.persistence.models.Event$Table;
+import org.hisp.dhis.android.sdk.persistence.models.Option;
+import org.hisp.dhis.android.sdk.persistence.models.Option$Table;
+import org.hisp.dhis.android.sdk.persistence.models.ProgramStageDataElement;
+import org.hisp.dhis.android.sdk.persistence.models.ProgramStageDataElement$Table;
+import org.hisp.dhis.android.sdk.persistence.models.Relationship;
+import org.hisp.dhis.android.sdk.persistence.models.Relationship$Table;
+import org.hisp.dhis.android.sdk.persistence.models.TrackedEntityAttributeValue;
+import org.hisp.dhis.android.sdk.persistence.models.TrackedEntityAttributeValue$Table;
+
+/**
+ * Runs EXPLAIN QUERY PLAN for the queries of TrackerController and MetaDataController which
+ * filter on indexed columns, and checks that none of them scans a whole table.
+ */
+public class QueryPlanTest extends AndroidTestCase {
+    private static final String UID = "a1b2c3d4e5f";
+    private static final long LOCAL_ID = 1;
+
+    private SQLiteDatabase database;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FlowManager.init(getContext());
+        database = FlowManager.getDatabase(Dhis2Database.NAME).getWritableDatabase();
+    }
+
+    // TrackerController.getEventsByEnrollment(long)
+    public void testEventsByLocalEnrollmentUseIndex() {
+        assertUsesIndex(new Select().from(Event.class).where(Condition.column(Event$Table.LOCALENROLLMENTID)
+                .is(LOCAL_ID)));
+    }
+
+    // TrackerController.getEvent(long, String)
+    public void testEventByLocalEnrollmentAndProgramStageUsesIndex() {
+        assertUsesIndex(new Select().from(Event.class).where(Condition.column(Event$Table.LOCALENROLLMENTID)
+                .is(LOCAL_ID), Condition.column(Event$Table.PROGRAMSTAGEID).is(UID)));
+    }
+
+    // TrackerController.getEventsByEnrollment(String)
+    public void testEventsByEnrollmentUseIndex() {
+        assertUsesIndex(new Select().from(Event.class).where(Condition.column(Event$Table.ENROLLMENT)
+                .is(UID)));
+    }
+
+    // TrackerController.getEvents(String, String)
+    public void testEventsByOrganisationUnitAndProgramUseIndex() {
+        assertUsesIndex(new Select().from(Event.class).where(Condition.column(Event$Table.ORGANISATIONUNITID)
+                .is(UID)).and(Condition.column(Event$Table.PROGRAMID).is(UID))
+                .orderBy(false, Event$Table.LASTUPDATEDMILLIS));
+    }
+
+    // TrackerController.getScheduledEvents
+    public void testScheduledEventsUseIndex() {
+        assertUsesIndex(new Select().from(Event.class).where(Condition.column(Event$Table.PROGRAMID)
+                .is(UID)).and(Condition.column(Event$Table.ORGANISATIONUNITID).is(UID))
+                .and(Condition.column(Event$Table.DUEDATEMILLIS).between(0L).and(1L))
+                .orderBy(Event$Table.DUEDATEMILLIS));
+    }
+
+    // TrackerController.getEnrollments(String, String)
+    public void testEnrollmentsByProgramAndOrganisationUnitUseIndex() {
+        assertUsesIndex(new Select().from(Enrollment.class).where(Condition.column(Enrollment$Table.PROGRAM)
+                .is(UID)).and(Condition.column(Enrollment$Table.ORGUNIT).is(UID))
+                .orderBy(false, Enrollment$Table.ENROLLMENTDATEMILLIS));
+    }
+
+    // TrackerController.getEnrollments(TrackedEntityInstance)
+    public void testEnrollmentsByTrackedEntityInstanceUseIndex() {
+        assertUsesIndex(new Select().from(Enrollment.class).where(Condition
+                .column(Enrollment$Table.LOCALTRACKEDENTITYINSTANCEID).is(LOCAL_ID)));
+    }
+
+    // TrackerController.getRelationships(String)
+    public void testRelationshipsUseIndexes() {
+        assertUsesIndex(new Select().from(Relationship.class).where(Condition
+                .column(Relationship$Table.TRACKEDENTITYINSTANCEA).is(UID))
+                .or(Condition.column(Relationship$Table.TRACKEDENTITYINSTANCEB).is(UID)));
+    }
+
+    // TrackerController.getDataValue(long, String)
+    public void testDataValueUsesPrimaryKey() {
+        assertUsesIndex(new Select().from(DataValue.class).where(Condition.column(DataValue$Table.LOCALEVENTID)
+                .is(LOCAL_ID), Condition.column(DataValue$Table.DATAELEMENT).is(UID)));
+    }
+
+    // TrackerController.getTrackedEntityAttributeValues(long)
+    public void testTrackedEntityAttributeValuesUseIndex() {
+        assertUsesIndex(new Select().from(TrackedEntityAttributeValue.class).where(Condition
+                .column(TrackedEntityAttributeValue$Table.LOCALTRACKEDENTITYINSTANCEID).is(LOCAL_ID))
+                .orderBy(TrackedEntityAttributeValue$Table.TRACKEDENTITYATTRIBUTEID));
+    }
+
+    // MetaDataController.getOptions(String)
+    public void testOptionsByOptionSetUseIndex() {
+        assertUsesIndex(new Select().from(Option.class).where(Condition.column(Option$Table.OPTIONSET)
+                .is(UID)).orderBy(Option$Table.SORTINDEX));
+    }
+
+    // MetaDataController.getProgramStageDataElements(ProgramStage)
+    public void testProgramStageDataElementsByStageUsePrimaryKey() {
+        assertUsesIndex(new Select().from(ProgramStageDataElement.class).where(Condition
+                .column(ProgramStageDataElement$Table.PROGRAMSTAGE).is(UID))
+                .orderBy(ProgramStageDataElement$Table.SORTORDER));
+    }
+
+    // MetaDataController.getProgramStageDataElements(ProgramStageSection)
+    public void testProgramStageDataElementsBySectionUseIndex() {
+        assertUsesIndex(new Select().from(ProgramStageDataElement.class).where(Condition
+                .column(ProgramStageDataElement$Table.PROGRAMSTAGESECTION).is(UID))
+                .orderBy(ProgramStageDataElement$Table.SORTORDER));
+    }
+
+    private void assertUsesIndex(Where<?> where) {
+        String query = where.getQuery();
+        Cursor cursor = database.rawQuery("EXPLAIN QUERY PLAN " + query, null);
+        try {
+            int detailColumn = cursor.getColumnIndexOrThrow("detail");
+            boolean searched = false;
+            while (cursor.moveToNext()) {
+                String detail = cursor.getString(detailColumn);
+                // "SCAN" reads every row of a table or index, "SEARCH" looks rows up by key
+                assertFalse(query + ": " + detail, detail.startsWith("SCAN"));
+                searched |= detail.startsWith("SEARCH");
+            }
+            assertTrue("No index lookup in plan of " + query, searched);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ *  Copyright (c) 2016, University of Oslo
+ *  * All rights reserved.
+ *  *
+ *  * Redistribution and use in source and binary forms, with or without
+ *  * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *  * list of conditions and the following disclaimer.
+ *  *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *  * this list of conditions and the following disclaimer in the documentation
+ *  * and/or other materials provided with the distribution.
+ *  * Neither the name of the HISP project nor the names of its contributors may
+ *  * be used to endorse or promote products derived from this software without
+ *  * specific prior written permission.
+ *  *
+ *  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package org.hisp.dhis.android.sdk.services;
+
+import junit.framework.TestCase;
+
+import static org.hisp.dhis.android.sdk.services.SyncScheduler.PHASE_DOWNLOAD;
+import static org.hisp.dhis.android.sdk.services.SyncScheduler.PHASE_UPLOAD;
+
+public class AdaptiveSyncSchedulerTest extends TestCase {
+    private static final long MINUTE = 60 * 1000;
+    private static final long INTERVAL = 15 * MINUTE;
+
+    private FakeClock clock;
+    private AdaptiveSyncScheduler scheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clock = new FakeClock();
+        scheduler = new AdaptiveSyncScheduler(clock, INTERVAL);
+    }
+
+    public void testTriggersWhileRunningAreCoalescedIntoOneRerun() {
+        assertTrue(scheduler.onTrigger(false));
+        scheduler.onSyncStart(false);
+
+        assertFalse(scheduler.onTrigger(false));
+        assertFalse(scheduler.onTrigger(true));
+
+        assertTrue(scheduler.onSyncFinished(PHASE_DOWNLOAD, false));
+        // the coalesced manual trigger downloads again
+        assertEquals(PHASE_DOWNLOAD, scheduler.onSyncStart(false));
+        assertFalse(scheduler.onSyncFinished(PHASE_DOWNLOAD, false));
+
+        assertTrue(scheduler.onTrigger(false));
+    }
+
+    public void testFinishedSyncWithoutCoalescedTriggersReleasesScheduler() {
+        assertTrue(scheduler.onTrigger(true));
+        scheduler.onSyncStart(true);
+        assertFalse(scheduler.onSyncFinished(PHASE_UPLOAD | PHASE_DOWNLOAD, false));
+
+        assertTrue(scheduler.onTrigger(false));
+    }
+
+    public void testDroppedTriggerDoesNotBlockLaterTriggers() {
+        assertTrue(scheduler.onTrigger(true));
+        scheduler.onTriggerDropped();
+
+        assertTrue(scheduler.onTrigger(true));
+    }
+
+    public void testCoalescedManualTriggerMakesRerunManual() {
+        assertTrue(scheduler.onTrigger(false));
+        assertFalse(scheduler.isManual());
+        scheduler.onSyncStart(false);
+
+        assertFalse(scheduler.onTrigger(true));
+        assertTrue(scheduler.onSyncFinished(PHASE_DOWNLOAD, false));
+        assertTrue(scheduler.isManual());
+        scheduler.onSyncStart(false);
+        assertFalse(scheduler.onSyncFinished(PHASE_DOWNLOAD, false));
+
+        assertTrue(scheduler.onTrigger(false));
+        assertFalse(scheduler.isManual());
+    }
+
+    public void testUploadIsSkippedWithoutLocalChanges() {
+        runSync(false, false);
+        clock.advance(INTERVAL);
+
+        assertTrue(scheduler.onTrigger(false));
+        assertEquals(0, scheduler.onSyncStart(false));
+    }
+
+    public void testDownloadsAreSpacedOutOverSeveralIntervals() {
+        assertEquals(PHASE_DOWNLOAD, runSync(false, false));
+
+        for (int i = 1; i < AdaptiveSyncScheduler.DOWNLOAD_INTERVAL_FACTOR; i++) {
+            clock.advance(INTERVAL);
+            assertEquals(PHASE_UPLOAD, runSync(false, true));
+        }
+
+        clock.advance(INTERVAL);
+        assertEquals(PHASE_UPLOAD | PHASE_DOWNLOAD, runSync(false, true));
+    }
+
+    public void testManualTriggerAlwaysDownloads() {
+        runSync(false, false);
+        clock.advance(MINUTE);
+
+        assertEquals(PHASE_DOWNLOAD, runSync(true, false));
+    }
+
+    public void testDownloadIntervalIsCappedAtOneDay() {
+        long interval = 12 * 60 * MINUTE;
+        scheduler = new AdaptiveSyncScheduler(clock, interval);
+        runSync(false, false);
+
+        clock.advance(2 * interval);
+        assertEquals(PHASE_DOWNLOAD, runSync(false, false));
+    }
+
+    public void testNetworkFailureBacksOffPeriodicTriggers() {
+        assertTrue(scheduler.onTrigger(false));
+        scheduler.onSyncStart(false);
+        assertFalse(scheduler.onSyncFinished(PHASE_DOWNLOAD, true));
+
+        clock.advance(MINUTE / 2);
+        assertFalse(scheduler.onTrigger(false));
+
+        clock.advance(MINUTE / 2);
+        assertTrue(scheduler.onTrigger(false));
+    }
+
+    public void testManualTriggerIgnoresBackoff() {
+        assertTrue(scheduler.onTrigger(false));
+        scheduler.onSyncStart(false);
+        scheduler.onSyncFinished(PHASE_DOWNLOAD, true);
+
+        assertTrue(scheduler.onTrigger(true));
+    }
+
+    public void testCoalescedPeriodicTriggerIsDroppedAfterNetworkFailure() {
+        assertTrue(scheduler.onTrigger(false));
+        scheduler.onSyncStart(false);
+        assertFalse(scheduler.onTrigger(false));
+
+        assertFalse(scheduler.onSyncFinished(PHASE_DOWNLOAD, true));
+    }
+
+    public void testCoalescedManualTriggerRunsAfterNetworkFailure() {
+        assertTrue(scheduler.onTrigger(false));
+        scheduler.onSyncStart(false);
+        assertFalse(scheduler.onTrigger(true));
+
+        assertTrue(scheduler.onSyncFinished(PHASE_DOWNLOAD, true));
+    }
+
+    public void testBackoffDoublesUpToMaximum() {
+        assertEquals(MINUTE, AdaptiveSyncScheduler.getBackoffDelay(1));
+        assertEquals(2 * MINUTE, AdaptiveSyncScheduler.getBackoffDelay(2));
+        assertEquals(4 * MINUTE, AdaptiveSyncScheduler.getBackoffDelay(3));
+        assertEquals(6 * 60 * MINUTE, AdaptiveSyncScheduler.getBackoffDelay(20));
+    }
+
+    public void testNextTriggerDelayFollowsBackoff() {
+        scheduler = new AdaptiveSyncScheduler(clock, MINUTE);
+        assertEquals(MINUTE, scheduler.getNextTriggerDelay());
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(scheduler.onTrigger(true));
+            scheduler.onSyncStart(false);
+            scheduler.onSyncFinished(PHASE_DOWNLOAD, true);
+        }
+        assertEquals(8 * MINUTE, scheduler.getNextTriggerDelay());
+
+        runSync(true, false);
+        assertEquals(MINUTE, scheduler.getNextTriggerDelay());
+    }
+
+    private int runSync(boolean manual, boolean hasLocalChanges) {
+        assertTrue(scheduler.onTrigger(manual));
+        int phases = scheduler.onSyncStart(hasLocalChanges);
+        assertFalse(scheduler.onSyncFinished(phases, false));
+        return phases;
+    }
+
+    private static final class FakeClock implements Clock {
+        private long now = 1000 * 60 * MINUTE;
+
+        void advance(long millis) {
+            now += millis;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+}
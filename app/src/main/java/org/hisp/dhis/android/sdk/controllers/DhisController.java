@@ -44,10 +44,13 @@ import org.hisp.dhis.android.sdk.persistence.Dhis2Application;
 import org.hisp.dhis.android.sdk.persistence.models.UserAccount;
 import org.hisp.dhis.android.sdk.network.Credentials;
 import org.hisp.dhis.android.sdk.network.Session;
+import org.hisp.dhis.android.sdk.network.SyncSession;
 import org.hisp.dhis.android.sdk.persistence.preferences.DateTimeManager;
+import org.hisp.dhis.android.sdk.persistence.preferences.PageCursorManager;
 import org.hisp.dhis.android.sdk.persistence.preferences.LastUpdatedManager;
 import org.hisp.dhis.android.sdk.network.APIException;
 
+
 public final class DhisController {
     private static final String CLASS_TAG = "Dhis2";
 
@@ -85,6 +88,7 @@ public final class DhisController {
         objectMapper = getObjectMapper();
         LastUpdatedManager.init(context);
         DateTimeManager.init(context);
+        PageCursorManager.init(context);
     }
 
     public void init() {
@@ -103,17 +107,40 @@ public final class DhisController {
      */
     static void synchronize(final Context context)
             throws APIException, IllegalStateException {
-        sendData();
-        loadData(context);
+        synchronize(context, true, true, false);
+    }
+
+    /**
+     * Runs the given phases of a synchronization in one session, sending before loading.
+     *
+     * @param force true to send items waiting for a retry as well, for manual synchronizations
+     */
+    static void synchronize(final Context context, boolean send, boolean load, boolean force)
+            throws APIException, IllegalStateException {
+        SyncSession syncSession = SyncSession.open(getInstance().getDhisApi());
+        if (send) {
+            sendData(syncSession, force);
+        }
+        if (load) {
+            loadData(context, syncSession);
+        }
     }
 
     static void loadData(Context context) throws APIException, IllegalStateException {
-        LoadingController.loadMetaData(context, getInstance().getDhisApi());
-        LoadingController.loadDataValues(context, getInstance().getDhisApi());
+        loadData(context, SyncSession.open(getInstance().getDhisApi()));
+    }
+
+    private static void loadData(Context context, SyncSession syncSession) throws APIException, IllegalStateException {
+        LoadingController.loadMetaData(context, syncSession);
+        LoadingController.loadDataValues(context, syncSession);
     }
 
     static void sendData() throws APIException, IllegalStateException {
-        TrackerController.sendLocalData(getInstance().getDhisApi());
+        sendData(SyncSession.open(getInstance().getDhisApi()), false);
+    }
+
+    private static void sendData(SyncSession syncSession, boolean force) throws APIException, IllegalStateException {
+        TrackerController.sendLocalData(syncSession.getDhisApi(), force);
     }
 
     static UserAccount logInUser(HttpUrl serverUrl, Credentials credentials) throws APIException {
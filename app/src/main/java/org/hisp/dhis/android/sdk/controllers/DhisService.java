@@ -37,15 +37,19 @@ import android.os.IBinder;
 
 import com.squareup.okhttp.HttpUrl;
 
+import org.hisp.dhis.android.sdk.controllers.tracker.OutboxController;
 import org.hisp.dhis.android.sdk.events.UiEvent;
 import org.hisp.dhis.android.sdk.job.Job;
 import org.hisp.dhis.android.sdk.job.JobExecutor;
 import org.hisp.dhis.android.sdk.job.NetworkJob;
 import org.hisp.dhis.android.sdk.network.APIException;
+import org.hisp.dhis.android.sdk.network.SyncSession;
 import org.hisp.dhis.android.sdk.persistence.Dhis2Application;
 import org.hisp.dhis.android.sdk.persistence.models.UserAccount;
 import org.hisp.dhis.android.sdk.network.Credentials;
 import org.hisp.dhis.android.sdk.persistence.preferences.ResourceType;
+import org.hisp.dhis.android.sdk.services.PeriodicSynchronizer;
+import org.hisp.dhis.android.sdk.services.SyncScheduler;
 
 /**
  * @author Araz Abishov <araz.abishov.gsoc@gmail.com>.
@@ -57,6 +61,15 @@ public final class DhisService extends Service {
     public static final int SYNC_DASHBOARDS = 5;
     public static final int SYNC_DASHBOARD_CONTENT = 6;
     public static final int SYNC_INTERPRETATIONS = 7;
+    public static final int SYNCHRONIZE = 8;
+    public static final int LOAD_DATA = 9;
+    public static final int SEND_DATA = 10;
+    public static final int LOAD_INITIAL_DATA = 11;
+    public static final int SEND_EVENT = 12;
+    public static final int LOAD_TRACKED_ENTITY_INSTANCES = 13;
+
+    /* synchronizing, loading and sending data write the same tables, so they run one at a time */
+    private static final String SYNC_LANE = "sync";
 
     private final IBinder mBinder = new ServiceBinder();
     //private DhisController mDhisController;
@@ -84,7 +97,7 @@ public final class DhisService extends Service {
     }
 
     public static void logInUser(final HttpUrl serverUrl, final Credentials credentials) {
-        JobExecutor.enqueueJob(new NetworkJob<UserAccount>(LOG_IN,
+        JobExecutor.enqueueJob(new NetworkJob<UserAccount>(LOG_IN, null, Job.PRIORITY_HIGH,
                 ResourceType.USERS) {
 
             @Override
@@ -110,7 +123,7 @@ public final class DhisService extends Service {
     }
 
     public static void confirmUser(final Credentials credentials) {
-        JobExecutor.enqueueJob(new NetworkJob<UserAccount>(CONFIRM_USER,
+        JobExecutor.enqueueJob(new NetworkJob<UserAccount>(CONFIRM_USER, null, Job.PRIORITY_HIGH,
                 ResourceType.USERS) {
 
             @Override
@@ -157,20 +170,88 @@ public final class DhisService extends Service {
         });
     }
 
+    /**
+     * Synchronizes on request of the user, sending local changes and loading from the server.
+     */
     public static void synchronize(final Context context) {
-        JobExecutor.enqueueJob(new NetworkJob<Object>(0,
-                null) {
+        synchronize(context, true);
+    }
+
+    /**
+     * Synchronizes on a periodic trigger. The {@link SyncScheduler} of the
+     * {@link PeriodicSynchronizer} decides which phases are run, if any.
+     */
+    public static void synchronizePeriodically(final Context context) {
+        synchronize(context, false);
+    }
+
+    private static void synchronize(final Context context, boolean manual) {
+        final SyncScheduler syncScheduler = PeriodicSynchronizer.getSyncScheduler();
+        if (!syncScheduler.onTrigger(manual)) {
+            return;
+        }
+        Job job = new NetworkJob<Object>(SYNCHRONIZE, null,
+                manual ? Job.PRIORITY_NORMAL : Job.PRIORITY_LOW, SYNC_LANE, null) {
+            private volatile boolean started;
+
             @Override
             public Object execute() throws APIException {
-                DhisController.synchronize(context);
+                started = true;
+                RuntimeException failure;
+                boolean rerun = true;
+                try {
+                    do {
+                        int phases = 0;
+                        failure = null;
+                        try {
+                            // manual synchronizations send items waiting for a retry as well
+                            boolean force = syncScheduler.isManual();
+                            phases = syncScheduler.onSyncStart(
+                                    OutboxController.hasPendingItems(force));
+                            if (phases != 0) {
+                                DhisController.synchronize(context,
+                                        (phases & SyncScheduler.PHASE_UPLOAD) != 0,
+                                        (phases & SyncScheduler.PHASE_DOWNLOAD) != 0, force);
+                            }
+                        } catch (RuntimeException e) {
+                            failure = e;
+                        }
+                        boolean networkFailure = failure instanceof APIException &&
+                                APIException.Kind.NETWORK.equals(((APIException) failure).getKind());
+                        rerun = syncScheduler.onSyncFinished(phases, networkFailure);
+                    } while (rerun);
+                } finally {
+                    if (rerun) {
+                        // an error escaped the loop before the scheduler was released
+                        syncScheduler.onTriggerDropped();
+                    }
+                }
+
+                if (failure != null) {
+                    /* a backoff may delay the next periodic trigger */
+                    PeriodicSynchronizer.scheduleNext(context);
+                    throw failure;
+                }
                 return new Object();
             }
-        });
+
+            @Override
+            public void onCancel() {
+                super.onCancel();
+                if (!started) {
+                    syncScheduler.onTriggerDropped();
+                }
+            }
+        };
+        if (JobExecutor.enqueueJob(job) != job) {
+            // the previous synchronization has finished, but its job is still being released
+            syncScheduler.onTriggerDropped();
+        }
     }
 
     public static Job loadData(final Context context) {
-        Job job=JobExecutor.enqueueJob(new NetworkJob<Object>(0,
-                null) {
+        Job job=JobExecutor.enqueueJob(new NetworkJob<Object>(LOAD_DATA, null,
+                Job.PRIORITY_NORMAL, SYNC_LANE, null) {
             @Override
             public Object execute() throws APIException {
                 DhisController.loadData(context);
@@ -181,8 +262,8 @@ public final class DhisService extends Service {
     }
 
     public static void sendData() {
-        JobExecutor.enqueueJob(new NetworkJob<Object>(0,
-                null) {
+        JobExecutor.enqueueJob(new NetworkJob<Object>(SEND_DATA, null,
+                Job.PRIORITY_NORMAL, SYNC_LANE, null) {
             @Override
             public Object execute() throws APIException {
                 DhisController.sendData();
@@ -192,11 +273,12 @@ public final class DhisService extends Service {
     }
 
     public static void loadInitialData(final Context context) {
-        JobExecutor.enqueueJob(new NetworkJob<Object>(0,
-                null) {
+        JobExecutor.enqueueJob(new NetworkJob<Object>(LOAD_INITIAL_DATA, null,
+                Job.PRIORITY_NORMAL, SYNC_LANE, null) {
             @Override
             public Object execute() throws APIException {
-                LoadingController.loadInitialData(context, DhisController.getInstance().getDhisApi());
+                LoadingController.loadInitialData(context,
+                        SyncSession.open(DhisController.getInstance().getDhisApi()));
                 return new Object();
             }
         });
@@ -42,7 +42,7 @@ import org.hisp.dhis.android.sdk.controllers.metadata.MetaDataController;
 import org.hisp.dhis.android.sdk.controllers.tracker.TrackerController;
 import org.hisp.dhis.android.sdk.events.UiEvent;
 import org.hisp.dhis.android.sdk.network.APIException;
-import org.hisp.dhis.android.sdk.network.DhisApi;
+import org.hisp.dhis.android.sdk.network.SyncSession;
 import org.hisp.dhis.android.sdk.persistence.Dhis2Application;
 import org.hisp.dhis.android.sdk.persistence.models.Constant;
 import org.hisp.dhis.android.sdk.persistence.models.DataElement;
@@ -126,16 +126,16 @@ public final class LoadingController {
      * Loads initial data (Meta Data and Data Values). Which data is enabled is defined by the
      * enableLoading method
      */
-    static void loadInitialData(Context context, DhisApi dhisApi)
+    static void loadInitialData(Context context, SyncSession syncSession)
             throws APIException, IllegalStateException {
         if (!MetaDataController.isDataLoaded(context)) {
-            loadMetaData(context, dhisApi);
+            loadMetaData(context, syncSession);
         } else if (!TrackerController.isDataLoaded(context)) {
             Log.d(CLASS_TAG, "loading initial datavalues");
             String message = "";
             message = context.getString(R.string.finishing_up);
             UiUtils.postProgressMessage(message);
-            loadDataValues(context, dhisApi);
+            loadDataValues(context, syncSession);
         }
     }
 
@@ -144,28 +144,24 @@ public final class LoadingController {
      * synchronizeMetaData to save data.
      * @param context
      */
-    static void loadMetaData(Context context, DhisApi dhisApi) throws APIException {
+    static void loadMetaData(Context context, SyncSession syncSession) throws APIException {
         Log.d(CLASS_TAG, "loading metadata!");
         Dhis2Application.getEventBus().post(new UiEvent(UiEvent.UiEventType.SYNCING_START));
         try {
-            MetaDataController.loadMetaData(context, dhisApi);
-        } catch (APIException e) {
+            MetaDataController.loadMetaData(context, syncSession);
+        } finally {
             //to make sure we stop showing loading indicator
             Dhis2Application.getEventBus().post(new UiEvent(UiEvent.UiEventType.SYNCING_END));
-            throw e;
         }
-        Dhis2Application.getEventBus().post(new UiEvent(UiEvent.UiEventType.SYNCING_END));
     }
 
-    static void loadDataValues(Context context, DhisApi dhisApi) throws APIException {
+    static void loadDataValues(Context context, SyncSession syncSession) throws APIException {
         Dhis2Application.getEventBus().post(new UiEvent(UiEvent.UiEventType.SYNCING_START));
         try {
-            TrackerController.loadDataValues(context, dhisApi);
-        } catch (APIException e) {
+            TrackerController.loadDataValues(context, syncSession);
+        } finally {
             //to make sure we stop showing loading indicator
             Dhis2Application.getEventBus().post(new UiEvent(UiEvent.UiEventType.SYNCING_END));
-            throw e;
         }
-        Dhis2Application.getEventBus().post(new UiEvent(UiEvent.UiEventType.SYNCING_END));
     }
 }
@@ -42,12 +42,17 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Simen Skogly Russnes on 24.08.15.
  */
 public abstract class ResourceController {
 
+    public static final int DEFAULT_PAGE_SIZE = 200;
+
+    private static final Map<ResourceType, Integer> pageSizes = new ConcurrentHashMap<>();
+
     public static <T extends BaseIdentifiableObject> void saveResourceDataFromServer(ResourceType resourceType, DhisApi dhisApi,
                                                                                      List<T> updatedItems,
                                                                                      List<T> persistedItems,
@@ -73,11 +78,39 @@ public abstract class ResourceController {
                                                                                      List<T> updatedItems,
                                                                                      List<T> persistedItems,
                                                                                      DateTime serverDateTime, boolean keepOldValues) {
+        saveResourceData(updatedItems, persistedItems, keepOldValues);
+        DateTimeManager.getInstance()
+                .setLastUpdated(resourceType, salt, serverDateTime);
+    }
+
+    /**
+     * Saves the given items without touching the last updated time of the resource. Used for
+     * saving single pages of a paged resource.
+     */
+    public static <T extends BaseIdentifiableObject> void saveResourceData(List<T> updatedItems,
+                                                                           List<T> persistedItems,
+                                                                           boolean keepOldValues) {
         Queue<DbOperation> operations = new LinkedList<>();
         operations.addAll(DbUtils.createOperations(persistedItems, updatedItems, keepOldValues));
         DbUtils.applyBatch(operations);
-        DateTimeManager.getInstance()
-                .setLastUpdated(resourceType, salt, serverDateTime);
+    }
+
+    /**
+     * Sets the number of items requested per page when loading the given paged resource.
+     *
+     * @param resource
+     * @param pageSize
+     */
+    public static void setPageSize(ResourceType resource, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be at least 1");
+        }
+        pageSizes.put(resource, pageSize);
+    }
+
+    public static int getPageSize(ResourceType resource) {
+        Integer pageSize = pageSizes.get(resource);
+        return pageSize == null ? DEFAULT_PAGE_SIZE : pageSize;
     }
 
     /**
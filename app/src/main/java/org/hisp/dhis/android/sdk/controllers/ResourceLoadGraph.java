@@ -0,0 +1,210 @@
+/*
+ *  Copyright (c) 2016, University of Oslo
+ *  * All rights reserved.
+ *  *
+ *  * Redistribution and use in source and binary forms, with or without
+ *  * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *  * list of conditions and the following disclaimer.
+ *  *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *  * this list of conditions and the following disclaimer in the documentation
+ *  * and/or other materials provided with the distribution.
+ *  * Neither the name of the HISP project nor the names of its contributors may
+ *  * be used to endorse or promote products derived from this software without
+ *  * specific prior written permission.
+ *  *
+ *  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package org.hisp.dhis.android.sdk.controllers;
+
+import org.hisp.dhis.android.sdk.persistence.preferences.ResourceType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs loading of resources with dependencies between each other. A resource is loaded as soon
+ * as all resources it depends on have been loaded, and resources which don't depend on each
+ * other are loaded concurrently, up to the given parallelism.
+ * If loading of a resource fails, no more resources are started and the first exception
+ * is thrown once the running ones have finished.
+ */
+public final class ResourceLoadGraph {
+
+    private final Map<ResourceType, Runnable> tasks = new LinkedHashMap<>();
+    private final Map<ResourceType, List<ResourceType>> dependencies = new EnumMap<>(ResourceType.class);
+
+    /**
+     * Adds a resource to the graph.
+     *
+     * @param resource
+     * @param task         loads the resource
+     * @param dependencies resources which have to be loaded first. Resources which are not
+     *                     part of the graph are ignored.
+     */
+    public ResourceLoadGraph add(ResourceType resource, Runnable task, ResourceType... dependencies) {
+        tasks.put(resource, task);
+        List<ResourceType> dependencyList = new ArrayList<>();
+        Collections.addAll(dependencyList, dependencies);
+        this.dependencies.put(resource, dependencyList);
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return tasks.isEmpty();
+    }
+
+    /**
+     * Loads all resources of the graph and returns when they are done.
+     *
+     * @param parallelism maximum number of resources loaded at the same time. With 1, resources
+     *                    are loaded one after another on the calling thread.
+     */
+    public void execute(int parallelism) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        List<ResourceType> loadOrder = getLoadOrder();
+        if (parallelism <= 1 || tasks.size() == 1) {
+            for (ResourceType resource : loadOrder) {
+                tasks.get(resource).run();
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()));
+        try {
+            executeConcurrently(new ExecutorCompletionService<ResourceType>(executor));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void executeConcurrently(CompletionService<ResourceType> completionService) {
+        Map<ResourceType, Integer> remainingDependencies = new EnumMap<>(ResourceType.class);
+        Map<ResourceType, List<ResourceType>> dependents = new EnumMap<>(ResourceType.class);
+        for (ResourceType resource : tasks.keySet()) {
+            int count = 0;
+            for (ResourceType dependency : dependencies.get(resource)) {
+                if (tasks.containsKey(dependency)) {
+                    count++;
+                    if (!dependents.containsKey(dependency)) {
+                        dependents.put(dependency, new ArrayList<ResourceType>());
+                    }
+                    dependents.get(dependency).add(resource);
+                }
+            }
+            remainingDependencies.put(resource, count);
+        }
+
+        int running = 0;
+        for (ResourceType resource : tasks.keySet()) {
+            if (remainingDependencies.get(resource) == 0) {
+                submit(completionService, resource);
+                running++;
+            }
+        }
+
+        RuntimeException failure = null;
+        while (running > 0) {
+            Future<ResourceType> future;
+            try {
+                future = completionService.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            running--;
+
+            ResourceType done;
+            try {
+                done = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException ?
+                            (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+                }
+                continue;
+            }
+
+            if (failure != null || !dependents.containsKey(done)) {
+                continue;
+            }
+            for (ResourceType dependent : dependents.get(done)) {
+                int remaining = remainingDependencies.get(dependent) - 1;
+                remainingDependencies.put(dependent, remaining);
+                if (remaining == 0) {
+                    submit(completionService, dependent);
+                    running++;
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void submit(CompletionService<ResourceType> completionService, final ResourceType resource) {
+        completionService.submit(new Callable<ResourceType>() {
+            @Override
+            public ResourceType call() throws Exception {
+                tasks.get(resource).run();
+                return resource;
+            }
+        });
+    }
+
+    /**
+     * Returns the resources in insertion order, moving each resource after the resources it
+     * depends on.
+     */
+    private List<ResourceType> getLoadOrder() {
+        List<ResourceType> order = new ArrayList<>();
+        for (ResourceType resource : tasks.keySet()) {
+            addToLoadOrder(resource, order, new ArrayList<ResourceType>());
+        }
+        return order;
+    }
+
+    private void addToLoadOrder(ResourceType resource, List<ResourceType> order, List<ResourceType> visiting) {
+        if (order.contains(resource) || !tasks.containsKey(resource)) {
+            return;
+        }
+        if (visiting.contains(resource)) {
+            throw new IllegalStateException("Circular dependency at " + resource);
+        }
+        visiting.add(resource);
+        for (ResourceType dependency : dependencies.get(resource)) {
+            addToLoadOrder(dependency, order, visiting);
+        }
+        visiting.remove(resource);
+        order.add(resource);
+    }
+}
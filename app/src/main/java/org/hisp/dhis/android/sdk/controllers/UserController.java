@@ -33,12 +33,14 @@ import com.raizlabs.android.dbflow.sql.language.Delete;
 import com.squareup.okhttp.HttpUrl;
 
 import org.hisp.dhis.android.sdk.network.DhisApi;
+import org.hisp.dhis.android.sdk.network.RepoManager;
 import org.hisp.dhis.android.sdk.network.SessionManager;
 import org.hisp.dhis.android.sdk.network.APIException;
 import org.hisp.dhis.android.sdk.persistence.models.UserAccount;
 import org.hisp.dhis.android.sdk.network.Credentials;
 import org.hisp.dhis.android.sdk.network.Session;
 import org.hisp.dhis.android.sdk.persistence.preferences.DateTimeManager;
+import org.hisp.dhis.android.sdk.persistence.preferences.PageCursorManager;
 import org.hisp.dhis.android.sdk.persistence.preferences.LastUpdatedManager;
 
 import java.util.HashMap;
@@ -79,6 +81,8 @@ final class UserController {
     public void logOut() {
         LastUpdatedManager.getInstance().delete();
         DateTimeManager.getInstance().delete();
+        PageCursorManager.getInstance().delete();
+        RepoManager.clearHttpCache();
         SessionManager.getInstance().delete();
 
         // remove data todo add more
@@ -0,0 +1,401 @@
+/*
+ *  Copyright (c) 2016, University of Oslo
+ *  * All rights reserved.
+ *  *
+ *  * Redistribution and use in source and binary forms, with or without
+ *  * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *  * list of conditions and the following disclaimer.
+ *  *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *  * this list of conditions and the following disclaimer in the documentation
+ *  * and/or other materials provided with the distribution.
+ *  * Neither the name of the HISP project nor the names of its contributors may
+ *  * be used to endorse or promote products derived from this software without
+ *  * specific prior written permission.
+ *  *
+ *  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package org.hisp.dhis.android.sdk.controllers.metadata;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.raizlabs.android.dbflow.config.FlowManager;
+import com.raizlabs.android.dbflow.structure.Model;
+import com.raizlabs.android.dbflow.structure.ModelAdapter;
+
+import org.hisp.dhis.android.sdk.persistence.Dhis2Database;
+import org.hisp.dhis.android.sdk.persistence.models.Attribute;
+import org.hisp.dhis.android.sdk.persistence.models.AttributeValue;
+import org.hisp.dhis.android.sdk.persistence.models.Constant;
+import org.hisp.dhis.android.sdk.persistence.models.DataElement;
+import org.hisp.dhis.android.sdk.persistence.models.Option;
+import org.hisp.dhis.android.sdk.persistence.models.OptionSet;
+import org.hisp.dhis.android.sdk.persistence.models.Program;
+import org.hisp.dhis.android.sdk.persistence.models.ProgramIndicator;
+import org.hisp.dhis.android.sdk.persistence.models.ProgramIndicatorToSectionRelationship;
+import org.hisp.dhis.android.sdk.persistence.models.ProgramRule;
+import org.hisp.dhis.android.sdk.persistence.models.ProgramRuleAction;
+import org.hisp.dhis.android.sdk.persistence.models.ProgramRuleVariable;
+import org.hisp.dhis.android.sdk.persistence.models.ProgramStage;
+import org.hisp.dhis.android.sdk.persistence.models.ProgramStageDataElement;
+import org.hisp.dhis.android.sdk.persistence.models.ProgramStageSection;
+import org.hisp.dhis.android.sdk.persistence.models.ProgramTrackedEntityAttribute;
+import org.hisp.dhis.android.sdk.persistence.models.RelationshipType;
+import org.hisp.dhis.android.sdk.persistence.models.SystemInfo;
+import org.hisp.dhis.android.sdk.persistence.models.TrackedEntity;
+import org.hisp.dhis.android.sdk.persistence.models.TrackedEntityAttribute;
+import org.hisp.dhis.android.sdk.persistence.preferences.DateTimeManager;
+import org.hisp.dhis.android.sdk.persistence.preferences.ResourceType;
+import org.hisp.dhis.android.sdk.utils.DbUtils;
+import org.joda.time.DateTime;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports the meta data tables to a gzipped bundle, and imports such a bundle in one
+ * transaction, so that devices provisioned against the same server and programs do not
+ * have to load all meta data through the api. The last updated timestamps of the meta data
+ * resources are part of the bundle, so that later synchronizations only load changes.
+ * The user, the assigned organisation units and programs are specific to the exporting user
+ * and left out, so they are loaded for the importing user on the next synchronization.
+ * A bundle can only be imported into a database with the same schema version, and only
+ * the known meta data tables and the columns of their models are accepted.
+ */
+final class MetaDataBundle {
+    private static final int MAGIC = 0x44484d42; // DHMB
+    static final int BUNDLE_VERSION = 3;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_INTEGER = 1;
+    private static final byte TYPE_FLOAT = 2;
+    private static final byte TYPE_STRING = 3;
+    private static final byte TYPE_BLOB = 4;
+
+    /* referenced tables come before the tables referencing them, and are deleted after them */
+    private static final List<Class<? extends Model>> TABLES = Arrays.<Class<? extends Model>>asList(
+            Constant.class,
+            DataElement.class,
+            OptionSet.class,
+            Option.class,
+            TrackedEntity.class,
+            TrackedEntityAttribute.class,
+            Program.class,
+            ProgramStage.class,
+            ProgramStageSection.class,
+            ProgramStageDataElement.class,
+            ProgramTrackedEntityAttribute.class,
+            ProgramIndicator.class,
+            ProgramIndicatorToSectionRelationship.class,
+            SystemInfo.class,
+            ProgramRule.class,
+            ProgramRuleVariable.class,
+            ProgramRuleAction.class,
+            RelationshipType.class,
+            Attribute.class,
+            AttributeValue.class);
+
+    private static final ResourceType[] RESOURCE_TYPES = {
+            ResourceType.OPTIONSETS,
+            ResourceType.TRACKEDENTITYATTRIBUTES,
+            ResourceType.CONSTANTS,
+            ResourceType.PROGRAMRULES,
+            ResourceType.PROGRAMRULEVARIABLES,
+            ResourceType.PROGRAMRULEACTIONS,
+            ResourceType.RELATIONSHIPTYPES};
+
+    private MetaDataBundle() {
+        // no instances
+    }
+
+    static void exportBundle(OutputStream outputStream) throws IOException {
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream);
+        DataOutputStream out = new DataOutputStream(gzipOutputStream);
+        out.writeInt(MAGIC);
+        out.writeInt(BUNDLE_VERSION);
+        out.writeInt(Dhis2Database.VERSION);
+
+        List<String[]> timestamps = getTimestamps();
+        out.writeInt(timestamps.size());
+        for (String[] timestamp : timestamps) {
+            out.writeUTF(timestamp[0]);
+            writeNullableString(out, timestamp[1]);
+            out.writeUTF(timestamp[2]);
+        }
+
+        SQLiteDatabase database = getDatabase();
+        out.writeInt(TABLES.size());
+        for (Class<? extends Model> table : TABLES) {
+            writeTable(out, database, table);
+        }
+        out.flush();
+        gzipOutputStream.finish();
+    }
+
+    /**
+     * Replaces all meta data with the contents of the bundle.
+     *
+     * @throws IOException if the bundle is malformed or was exported from another
+     *                     bundle or database version
+     */
+    static void importBundle(InputStream inputStream) throws IOException {
+        final DataInputStream in = new DataInputStream(new GZIPInputStream(inputStream));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a meta data bundle");
+        }
+        int bundleVersion = in.readInt();
+        int databaseVersion = in.readInt();
+        if (bundleVersion != BUNDLE_VERSION || databaseVersion != Dhis2Database.VERSION) {
+            throw new IOException("Unsupported meta data bundle version " + bundleVersion +
+                    " for database version " + databaseVersion);
+        }
+
+        final List<String[]> timestamps = new ArrayList<>();
+        int timestampCount = in.readInt();
+        for (int i = 0; i < timestampCount; i++) {
+            timestamps.add(new String[]{in.readUTF(), readNullableString(in), in.readUTF()});
+        }
+
+        final IOException[] failure = new IOException[1];
+        try {
+            DbUtils.transact(new Runnable() {
+                @Override
+                public void run() {
+                    SQLiteDatabase database = getDatabase();
+                    for (int i = TABLES.size() - 1; i >= 0; i--) {
+                        database.delete("`" + FlowManager.getTableName(TABLES.get(i)) + "`",
+                                null, null);
+                    }
+                    try {
+                        int tableCount = in.readInt();
+                        int nextTable = 0;
+                        for (int i = 0; i < tableCount; i++) {
+                            nextTable = readTable(in, database, nextTable) + 1;
+                        }
+                    } catch (IOException e) {
+                        failure[0] = e;
+                        // rolls back the transaction
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+        } catch (IllegalStateException e) {
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            throw e;
+        } finally {
+            MetaDataCache.invalidateAll();
+        }
+
+        MetaDataController.clearMetaDataLoadedFlags();
+        for (String[] timestamp : timestamps) {
+            DateTimeManager.getInstance().setLastUpdated(ResourceType.valueOf(timestamp[0]),
+                    timestamp[1], DateTime.parse(timestamp[2]));
+        }
+    }
+
+    private static List<String[]> getTimestamps() {
+        List<String[]> timestamps = new ArrayList<>();
+        for (ResourceType resourceType : RESOURCE_TYPES) {
+            addTimestamp(timestamps, resourceType, null);
+        }
+        for (String program : MetaDataController.getAssignedPrograms()) {
+            addTimestamp(timestamps, ResourceType.PROGRAM, program);
+        }
+        return timestamps;
+    }
+
+    private static void addTimestamp(List<String[]> timestamps, ResourceType resourceType, String salt) {
+        DateTime lastUpdated = DateTimeManager.getInstance().getLastUpdated(resourceType, salt);
+        if (lastUpdated != null) {
+            timestamps.add(new String[]{resourceType.name(), salt, lastUpdated.toString()});
+        }
+    }
+
+    private static void writeTable(DataOutputStream out, SQLiteDatabase database,
+                                   Class<? extends Model> table) throws IOException {
+        String tableName = FlowManager.getTableName(table);
+        StringBuilder select = new StringBuilder();
+        for (String column : getColumns(table)) {
+            select.append(select.length() > 0 ? ", `" : "`").append(column).append('`');
+        }
+        Cursor cursor = database.rawQuery("SELECT " + select + " FROM `" + tableName + "`", null);
+        try {
+            String[] columns = cursor.getColumnNames();
+            out.writeUTF(tableName);
+            out.writeInt(columns.length);
+            for (String column : columns) {
+                out.writeUTF(column);
+            }
+            out.writeInt(cursor.getCount());
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < columns.length; i++) {
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            out.writeByte(TYPE_INTEGER);
+                            out.writeLong(cursor.getLong(i));
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            out.writeByte(TYPE_FLOAT);
+                            out.writeDouble(cursor.getDouble(i));
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            out.writeByte(TYPE_STRING);
+                            writeString(out, cursor.getString(i));
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            byte[] blob = cursor.getBlob(i);
+                            out.writeByte(TYPE_BLOB);
+                            out.writeInt(blob.length);
+                            out.write(blob);
+                            break;
+                        default:
+                            out.writeByte(TYPE_NULL);
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Inserts the rows of the next table of the bundle, which has to be one of the
+     * {@link #TABLES} from the given index on, so that referenced tables are filled first.
+     *
+     * @return the index of the table in {@link #TABLES}
+     */
+    private static int readTable(DataInputStream in, SQLiteDatabase database, int firstTable)
+            throws IOException {
+        String tableName = in.readUTF();
+        int tableIndex = firstTable;
+        while (tableIndex < TABLES.size() &&
+                !FlowManager.getTableName(TABLES.get(tableIndex)).equals(tableName)) {
+            tableIndex++;
+        }
+        if (tableIndex == TABLES.size()) {
+            throw new IOException("Unexpected table " + tableName + " in meta data bundle");
+        }
+
+        Set<String> knownColumns = getColumns(TABLES.get(tableIndex));
+        Set<String> bundleColumns = new HashSet<>();
+        int columnCount = in.readInt();
+        StringBuilder columns = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < columnCount; i++) {
+            String column = in.readUTF();
+            if (!knownColumns.contains(column) || !bundleColumns.add(column)) {
+                throw new IOException("Unexpected column " + column + " of " + tableName +
+                        " in meta data bundle");
+            }
+            if (i > 0) {
+                columns.append(',');
+                values.append(',');
+            }
+            columns.append('`').append(column).append('`');
+            values.append('?');
+        }
+
+        SQLiteStatement statement = database.compileStatement("INSERT INTO `" + tableName +
+                "` (" + columns + ") VALUES (" + values + ")");
+        try {
+            int rowCount = in.readInt();
+            for (int row = 0; row < rowCount; row++) {
+                statement.clearBindings();
+                for (int i = 1; i <= columnCount; i++) {
+                    byte type = in.readByte();
+                    switch (type) {
+                        case TYPE_NULL:
+                            statement.bindNull(i);
+                            break;
+                        case TYPE_INTEGER:
+                            statement.bindLong(i, in.readLong());
+                            break;
+                        case TYPE_FLOAT:
+                            statement.bindDouble(i, in.readDouble());
+                            break;
+                        case TYPE_STRING:
+                            statement.bindString(i, readString(in));
+                            break;
+                        case TYPE_BLOB:
+                            byte[] blob = new byte[in.readInt()];
+                            in.readFully(blob);
+                            statement.bindBlob(i, blob);
+                            break;
+                        default:
+                            throw new IOException("Unknown value type " + type + " in " + tableName);
+                    }
+                }
+                statement.executeInsert();
+            }
+        } finally {
+            statement.close();
+        }
+        return tableIndex;
+    }
+
+    /**
+     * Returns the columns the model adapter of the table reads and writes.
+     */
+    @SuppressWarnings("unchecked")
+    private static Set<String> getColumns(Class<? extends Model> table) {
+        ModelAdapter adapter = FlowManager.getModelAdapter(table);
+        ContentValues values = new ContentValues();
+        adapter.bindToContentValues(values, adapter.newInstance());
+        return values.keySet();
+    }
+
+    private static SQLiteDatabase getDatabase() {
+        return FlowManager.getDatabase(Dhis2Database.NAME).getWritableDatabase();
+    }
+
+    /* writeUTF is limited to 64k bytes, which long texts such as rule expressions may exceed */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
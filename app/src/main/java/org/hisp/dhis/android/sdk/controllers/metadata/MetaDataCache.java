@@ -0,0 +1,140 @@
+/*
+ *  Copyright (c) 2016, University of Oslo
+ *  * All rights reserved.
+ *  *
+ *  * Redistribution and use in source and binary forms, with or without
+ *  * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *  * list of conditions and the following disclaimer.
+ *  *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *  * this list of conditions and the following disclaimer in the documentation
+ *  * and/or other materials provided with the distribution.
+ *  * Neither the name of the HISP project nor the names of its contributors may
+ *  * be used to endorse or promote products derived from this software without
+ *  * specific prior written permission.
+ *  *
+ *  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package org.hisp.dhis.android.sdk.controllers.metadata;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read-through cache of meta data items of one type, keyed by uid, which returns one
+ * instance per key until it is invalidated. The least recently used items are evicted
+ * when the cache is full. Caches are invalidated per table when meta data is written, and
+ * items loaded while an invalidation happens are not cached.
+ *
+ * @param <T> the cached item type
+ */
+public final class MetaDataCache<T> {
+    private static final Object NULL = new Object();
+    private static final List<MetaDataCache<?>> caches = new ArrayList<>();
+    private static final Set<Class<?>> cachedTables =
+            Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+
+    private final Class<?>[] tables;
+    private final Loader<T> loader;
+    private final Map<String, Object> items;
+    private long generation;
+
+    /**
+     * @param maxSize the number of items kept in memory
+     * @param loader  loads items which are not cached
+     * @param tables  the tables the items are loaded from
+     */
+    MetaDataCache(final int maxSize, Loader<T> loader, Class<?>... tables) {
+        this.tables = tables;
+        this.loader = loader;
+        this.items = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                return size() > maxSize;
+            }
+        };
+        synchronized (caches) {
+            caches.add(this);
+        }
+        Collections.addAll(cachedTables, tables);
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(String key) {
+        long loadGeneration;
+        synchronized (this) {
+            Object item = items.get(key);
+            if (item != null) {
+                return item == NULL ? null : (T) item;
+            }
+            loadGeneration = generation;
+        }
+
+        T item = loader.load(key);
+        synchronized (this) {
+            if (generation == loadGeneration) {
+                items.put(key, item == null ? NULL : item);
+            }
+        }
+        return item;
+    }
+
+    synchronized void clear() {
+        generation++;
+        items.clear();
+    }
+
+    /**
+     * Clears the caches of items loaded from any of the given tables.
+     */
+    public static void invalidate(Collection<Class<?>> tables) {
+        synchronized (caches) {
+            for (MetaDataCache<?> cache : caches) {
+                for (Class<?> table : cache.tables) {
+                    if (tables.contains(table)) {
+                        cache.clear();
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if items of any cache are loaded from the given table, so writes to it
+     * have to be followed by {@link #invalidate(Collection)}.
+     */
+    public static boolean isCached(Class<?> table) {
+        return cachedTables.contains(table);
+    }
+
+    public static void invalidateAll() {
+        synchronized (caches) {
+            for (MetaDataCache<?> cache : caches) {
+                cache.clear();
+            }
+        }
+    }
+
+    interface Loader<T> {
+        T load(String key);
+    }
+}
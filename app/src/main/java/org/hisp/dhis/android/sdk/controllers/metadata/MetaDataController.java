@@ -30,21 +30,29 @@
 package org.hisp.dhis.android.sdk.controllers.metadata;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.util.Log;
 
+import com.raizlabs.android.dbflow.config.FlowManager;
 import com.raizlabs.android.dbflow.sql.builder.Condition;
 import com.raizlabs.android.dbflow.sql.language.Delete;
 import com.raizlabs.android.dbflow.sql.language.Select;
+import com.raizlabs.android.dbflow.structure.ModelAdapter;
 
 import org.hisp.dhis.android.sdk.R;
 import org.hisp.dhis.android.sdk.controllers.ApiEndpointContainer;
 import org.hisp.dhis.android.sdk.controllers.LoadingController;
 import org.hisp.dhis.android.sdk.controllers.ResourceController;
+import org.hisp.dhis.android.sdk.controllers.ResourceLoadGraph;
 import org.hisp.dhis.android.sdk.controllers.wrappers.AssignedProgramsWrapper;
+import org.hisp.dhis.android.sdk.controllers.wrappers.JsonStreamReader;
 import org.hisp.dhis.android.sdk.controllers.wrappers.OptionSetWrapper;
 import org.hisp.dhis.android.sdk.controllers.wrappers.ProgramWrapper;
 import org.hisp.dhis.android.sdk.network.APIException;
 import org.hisp.dhis.android.sdk.network.DhisApi;
+import org.hisp.dhis.android.sdk.network.RepoManager;
+import org.hisp.dhis.android.sdk.network.SyncSession;
+import org.hisp.dhis.android.sdk.persistence.Dhis2Database;
 import org.hisp.dhis.android.sdk.persistence.models.Attribute;
 import org.hisp.dhis.android.sdk.persistence.models.Attribute$Table;
 import org.hisp.dhis.android.sdk.persistence.models.AttributeValue;
@@ -98,6 +106,8 @@ import org.hisp.dhis.android.sdk.utils.api.ProgramType;
 import org.joda.time.DateTime;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -113,6 +123,92 @@ import static org.hisp.dhis.android.sdk.utils.NetworkUtils.unwrapResponse;
  */
 public final class MetaDataController extends ResourceController {
     private final static String CLASS_TAG = "MetaDataController";
+    public static final int DEFAULT_METADATA_LOAD_THREADS = 3;
+
+    private static volatile int metaDataLoadThreads = DEFAULT_METADATA_LOAD_THREADS;
+
+    private static final MetaDataCache<Program> programs = new MetaDataCache<>(100,
+            new MetaDataCache.Loader<Program>() {
+                @Override
+                public Program load(String id) {
+                    return new Select().from(Program.class).where(Condition.column(Program$Table.ID).
+                            is(id)).querySingle();
+                }
+            }, Program.class);
+
+    private static final MetaDataCache<ProgramStage> programStages = new MetaDataCache<>(500,
+            new MetaDataCache.Loader<ProgramStage>() {
+                @Override
+                public ProgramStage load(String id) {
+                    return new Select().from(ProgramStage.class).where(
+                            Condition.column(ProgramStage$Table.ID).is(id)).querySingle();
+                }
+            }, ProgramStage.class);
+
+    private static final MetaDataCache<DataElement> dataElements = new MetaDataCache<>(2000,
+            new MetaDataCache.Loader<DataElement>() {
+                @Override
+                public DataElement load(String id) {
+                    return new Select().from(DataElement.class).where(Condition.column(DataElement$Table.ID).
+                            is(id)).querySingle();
+                }
+            }, DataElement.class);
+
+    private static final MetaDataCache<OptionSet> optionSets = new MetaDataCache<>(500,
+            new MetaDataCache.Loader<OptionSet>() {
+                @Override
+                public OptionSet load(String id) {
+                    return new Select().from(OptionSet.class).where(Condition.column(OptionSet$Table.ID).
+                            is(id)).querySingle();
+                }
+            }, OptionSet.class);
+
+    private static final MetaDataCache<Constant> constants = new MetaDataCache<>(500,
+            new MetaDataCache.Loader<Constant>() {
+                @Override
+                public Constant load(String id) {
+                    return new Select().from(Constant.class).where
+                            (Condition.column(Constant$Table.ID).is(id)).querySingle();
+                }
+            }, Constant.class);
+
+    private static final MetaDataCache<TrackedEntityAttribute> trackedEntityAttributes = new MetaDataCache<>(1000,
+            new MetaDataCache.Loader<TrackedEntityAttribute>() {
+                @Override
+                public TrackedEntityAttribute load(String id) {
+                    return new Select().from(TrackedEntityAttribute.class).where(Condition.column
+                            (TrackedEntityAttribute$Table.ID).is(id)).querySingle();
+                }
+            }, TrackedEntityAttribute.class);
+
+    private static final MetaDataCache<ProgramRuleVariable> programRuleVariablesByName = new MetaDataCache<>(1000,
+            new MetaDataCache.Loader<ProgramRuleVariable>() {
+                @Override
+                public ProgramRuleVariable load(String name) {
+                    return new Select().from(ProgramRuleVariable.class).where(Condition.column(ProgramRuleVariable$Table.NAME).
+                            is(name)).querySingle();
+                }
+            }, ProgramRuleVariable.class);
+
+    private static final MetaDataCache<List<ProgramStageDataElement>> programStageDataElementsByStage = new MetaDataCache<>(200,
+            new MetaDataCache.Loader<List<ProgramStageDataElement>>() {
+                @Override
+                public List<ProgramStageDataElement> load(String programStage) {
+                    return new Select().from(ProgramStageDataElement.class).where(Condition.column
+                            (ProgramStageDataElement$Table.PROGRAMSTAGE).is(programStage)).orderBy
+                            (ProgramStageDataElement$Table.SORTORDER).queryList();
+                }
+            }, ProgramStageDataElement.class);
+
+    private static final MetaDataCache<List<ProgramStageDataElement>> programStageDataElementsBySection = new MetaDataCache<>(500,
+            new MetaDataCache.Loader<List<ProgramStageDataElement>>() {
+                @Override
+                public List<ProgramStageDataElement> load(String programStageSection) {
+                    return new Select().from(ProgramStageDataElement.class).where(Condition.column
+                            (ProgramStageDataElement$Table.PROGRAMSTAGESECTION).is(programStageSection)).orderBy
+                            (ProgramStageDataElement$Table.SORTORDER).queryList();
+                }
+            }, ProgramStageDataElement.class);
 
     private MetaDataController() {
     }
@@ -188,16 +284,12 @@ public final class MetaDataController extends ResourceController {
 
     public static List<ProgramStageDataElement> getProgramStageDataElements(ProgramStageSection section) {
         if (section == null) return null;
-        return new Select().from(ProgramStageDataElement.class).where(Condition.column
-                (ProgramStageDataElement$Table.PROGRAMSTAGESECTION).is(section.getUid())).orderBy
-                (ProgramStageDataElement$Table.SORTORDER).queryList();
+        return new ArrayList<>(programStageDataElementsBySection.get(section.getUid()));
     }
 
     public static List<ProgramStageDataElement> getProgramStageDataElements(ProgramStage programStage) {
         if (programStage == null) return null;
-        return new Select().from(ProgramStageDataElement.class).where(Condition.column
-                (ProgramStageDataElement$Table.PROGRAMSTAGE).is(programStage.getUid())).orderBy
-                (ProgramStageDataElement$Table.SORTORDER).queryList();
+        return new ArrayList<>(programStageDataElementsByStage.get(programStage.getUid()));
     }
 
     /**
@@ -289,23 +381,82 @@ public final class MetaDataController extends ResourceController {
      */
     public static List<Program> getProgramsForOrganisationUnit(String organisationUnitId,
                                                                ProgramType... kinds) {
-        List<OrganisationUnitProgramRelationship> organisationUnitProgramRelationships =
-                new Select().from(OrganisationUnitProgramRelationship.class).where(
-                        Condition.column(OrganisationUnitProgramRelationship$Table.ORGANISATIONUNITID).
-                                is(organisationUnitId)).queryList();
-
-        List<Program> programs = new ArrayList<Program>();
-        for (OrganisationUnitProgramRelationship oupr : organisationUnitProgramRelationships) {
-            if (kinds != null) {
-                for (ProgramType kind : kinds) {
-                    List<Program> plist = new Select().from(Program.class).where(
-                            Condition.column(Program$Table.ID).is(oupr.getProgramId())).and(
-                            Condition.column(Program$Table.PROGRAMTYPE).is(kind.toString())).queryList();
-                    programs.addAll(plist);
+        if (organisationUnitId == null) {
+            return new ArrayList<>();
+        }
+        List<Program> programs = queryProgramsForOrganisationUnits(organisationUnitId, kinds)
+                .get(organisationUnitId);
+        return programs == null ? new ArrayList<Program>() : programs;
+    }
+
+    /**
+     * Returns the programs of the given kinds assigned to each organisation unit, keyed by
+     * organisation unit id, loaded with one query. Organisation units without such programs
+     * are left out.
+     *
+     * @param kinds the kinds of programs to return
+     * @return
+     */
+    public static Map<String, List<Program>> getProgramsForOrganisationUnits(ProgramType... kinds) {
+        return queryProgramsForOrganisationUnits(null, kinds);
+    }
+
+    private static Map<String, List<Program>> queryProgramsForOrganisationUnits(String organisationUnitId,
+                                                                              ProgramType... kinds) {
+        Map<String, List<Program>> programsForOrganisationUnits = new HashMap<>();
+        if (kinds == null || kinds.length == 0) {
+            return programsForOrganisationUnits;
+        }
+
+        List<String> args = new ArrayList<>();
+        StringBuilder sql = new StringBuilder("SELECT p.*, r.`")
+                .append(OrganisationUnitProgramRelationship$Table.ORGANISATIONUNITID)
+                .append("` AS assignedOrganisationUnitId FROM `").append(Program$Table.TABLE_NAME)
+                .append("` p INNER JOIN `").append(OrganisationUnitProgramRelationship$Table.TABLE_NAME)
+                .append("` r ON r.`").append(OrganisationUnitProgramRelationship$Table.PROGRAMID)
+                .append("` = p.`").append(Program$Table.ID).append("` WHERE p.`")
+                .append(Program$Table.PROGRAMTYPE).append("` IN (");
+        for (int i = 0; i < kinds.length; i++) {
+            sql.append(i > 0 ? ", ?" : "?");
+            args.add(kinds[i].toString());
+        }
+        sql.append(')');
+        if (organisationUnitId != null) {
+            sql.append(" AND r.`").append(OrganisationUnitProgramRelationship$Table.ORGANISATIONUNITID)
+                    .append("` = ?");
+            args.add(organisationUnitId);
+        }
+
+        ModelAdapter<Program> adapter = FlowManager.getModelAdapter(Program.class);
+        Map<String, Program> programs = new HashMap<>();
+        Cursor cursor = FlowManager.getDatabase(Dhis2Database.NAME).getWritableDatabase()
+                .rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+        try {
+            int organisationUnitIndex = cursor.getColumnIndex("assignedOrganisationUnitId");
+            int programIndex = cursor.getColumnIndex(Program$Table.ID);
+            while (cursor.moveToNext()) {
+                // one instance per program, shared by the organisation units it is assigned to
+                String programId = cursor.getString(programIndex);
+                Program program = programs.get(programId);
+                if (program == null) {
+                    program = new Program();
+                    adapter.loadFromCursor(cursor, program);
+                    programs.put(programId, program);
                 }
+
+                String assignedOrganisationUnitId = cursor.getString(organisationUnitIndex);
+                List<Program> programsForOrganisationUnit =
+                        programsForOrganisationUnits.get(assignedOrganisationUnitId);
+                if (programsForOrganisationUnit == null) {
+                    programsForOrganisationUnit = new ArrayList<>();
+                    programsForOrganisationUnits.put(assignedOrganisationUnitId, programsForOrganisationUnit);
+                }
+                programsForOrganisationUnit.add(program);
             }
+        } finally {
+            cursor.close();
         }
-        return programs;
+        return programsForOrganisationUnits;
     }
 
     public static List<ProgramStage> getProgramStages(String program) {
@@ -321,13 +472,13 @@ public final class MetaDataController extends ResourceController {
      * @return
      */
     public static ProgramStage getProgramStage(String programStageUid) {
-        return new Select().from(ProgramStage.class).where(
-                Condition.column(ProgramStage$Table.ID).is(programStageUid)).querySingle();
+        if (programStageUid == null) return null;
+        return programStages.get(programStageUid);
     }
 
     public static TrackedEntityAttribute getTrackedEntityAttribute(String trackedEntityAttributeId) {
-        return new Select().from(TrackedEntityAttribute.class).where(Condition.column
-                (TrackedEntityAttribute$Table.ID).is(trackedEntityAttributeId)).querySingle();
+        if (trackedEntityAttributeId == null) return null;
+        return trackedEntityAttributes.get(trackedEntityAttributeId);
     }
 
     public static List<TrackedEntityAttribute> getTrackedEntityAttributes() {
@@ -341,8 +492,8 @@ public final class MetaDataController extends ResourceController {
      * @return
      */
     public static Constant getConstant(String id) {
-        return new Select().from(Constant.class).where
-                (Condition.column(Constant$Table.ID).is(id)).querySingle();
+        if (id == null) return null;
+        return constants.get(id);
     }
 
     /**
@@ -371,7 +522,8 @@ public final class MetaDataController extends ResourceController {
     }
 
     public static ProgramRuleVariable getProgramRuleVariableByName(String name) {
-        return new Select().from(ProgramRuleVariable.class).where(Condition.column(ProgramRuleVariable$Table.NAME).is(name)).querySingle();
+        if (name == null) return null;
+        return programRuleVariablesByName.get(name);
     }
 
     /**
@@ -399,8 +551,7 @@ public final class MetaDataController extends ResourceController {
 
     public static Program getProgram(String programId) {
         if (programId == null) return null;
-        return new Select().from(Program.class).where(Condition.column(Program$Table.ID).
-                is(programId)).querySingle();
+        return programs.get(programId);
     }
 
     /**
@@ -428,8 +579,8 @@ public final class MetaDataController extends ResourceController {
      * @return
      */
     public static DataElement getDataElement(String dataElementId) {
-        return new Select().from(DataElement.class).where(Condition.column(DataElement$Table.ID).
-                is(dataElementId)).querySingle();
+        if (dataElementId == null) return null;
+        return dataElements.get(dataElementId);
     }
 
     /**
@@ -457,8 +608,8 @@ public final class MetaDataController extends ResourceController {
      * @return
      */
     public static OptionSet getOptionSet(String optionSetId) {
-        return new Select().from(OptionSet.class).where(Condition.column(OptionSet$Table.ID).
-                is(optionSetId)).querySingle();
+        if (optionSetId == null) return null;
+        return optionSets.get(optionSetId);
     }
 
     public static List<OptionSet> getOptionSets() {
@@ -503,6 +654,14 @@ public final class MetaDataController extends ResourceController {
         return indicators;
     }
 
+    public static List<ProgramIndicatorToSectionRelationship> getProgramIndicatorToSectionRelationships(String programSection) {
+        return new Select()
+                .from(ProgramIndicatorToSectionRelationship.class)
+                .where(Condition.column(ProgramIndicatorToSectionRelationship$Table
+                        .PROGRAMSECTION).is(programSection))
+                .queryList();
+    }
+
     /**
       * Clears status and time of loaded meta data items
       */
@@ -521,10 +680,28 @@ public final class MetaDataController extends ResourceController {
         DateTimeManager.getInstance().deleteLastUpdated(ResourceType.RELATIONSHIPTYPES);
     }
 
+    /**
+     * Writes all meta data and the timestamps of when it was loaded to a gzipped bundle,
+     * which can be imported on other devices with {@link #importMetaDataBundle(InputStream)}.
+     * Data specific to the current user, such as assigned programs, is not exported.
+     */
+    public static void exportMetaDataBundle(OutputStream outputStream) throws IOException {
+        MetaDataBundle.exportBundle(outputStream);
+    }
+
+    /**
+     * Replaces all meta data with the contents of a bundle in one transaction. Later calls
+     * to loadMetaData only load what has changed on the server since the bundle was exported.
+     */
+    public static void importMetaDataBundle(InputStream inputStream) throws IOException {
+        MetaDataBundle.importBundle(inputStream);
+    }
+
     /**
      * Deletes all meta data from local database
      */
     public static void wipe() {
+        MetaDataCache.invalidateAll();
         Delete.tables(Constant.class,
                 DataElement.class,
                 Option.class,
@@ -552,71 +729,178 @@ public final class MetaDataController extends ResourceController {
     }
 
     /**
-     * Loads metaData from the server and stores it in local persistence.
+     * Loads metaData from the server and stores it in local persistence, in a SyncSession of
+     * its own.
      */
     public static void loadMetaData(Context context, DhisApi dhisApi) throws APIException {
+        loadMetaData(context, SyncSession.open(dhisApi));
+    }
+
+    /**
+     * Loads metaData from the server and stores it in local persistence.
+     * The server time of the given session is used for all of the meta data types.
+     */
+    public static void loadMetaData(Context context, SyncSession syncSession) throws APIException {
         Log.d(CLASS_TAG, "loadMetaData");
         UiUtils.postProgressMessage(context.getString(R.string.loading_metadata));
-        updateMetaDataItems(context, dhisApi);
+        try {
+            updateMetaDataItems(context, syncSession);
+        } finally {
+            // also drops items written outside of DbUtils.applyBatch while loading
+            MetaDataCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Sets how many meta data resources may be loaded concurrently. Resources are loaded
+     * one after another if set to 1.
+     *
+     * @param threads
+     */
+    public static void setMetaDataLoadThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be at least 1");
+        }
+        metaDataLoadThreads = threads;
+    }
+
+    public static int getMetaDataLoadThreads() {
+        return metaDataLoadThreads;
     }
 
     /**
      * Loads a metadata item that is scheduled to be loaded but has not yet been.
+     * Items which don't depend on each other are loaded concurrently.
      */
-    private static void updateMetaDataItems(Context context, DhisApi dhisApi) throws APIException{
-        SystemInfo serverSystemInfo = dhisApi.getSystemInfo();
-        DateTime serverDateTime = serverSystemInfo.getServerDate();
+    private static void updateMetaDataItems(Context context, SyncSession syncSession) throws APIException{
+        final DhisApi dhisApi = syncSession.getDhisApi();
+        final DateTime serverDateTime = syncSession.getServerDateTime();
+        ResourceLoadGraph loadGraph = new ResourceLoadGraph();
         //some items depend on each other. Programs depend on AssignedPrograms because we need
         //the ids of programs to load.
         if (LoadingController.isLoadFlagEnabled(context, ResourceType.ASSIGNEDPROGRAMS)) {
-            if ( shouldLoad(dhisApi, ResourceType.ASSIGNEDPROGRAMS) ) {
-                getAssignedProgramsDataFromServer(dhisApi, serverDateTime);
-            }
+            loadGraph.add(ResourceType.ASSIGNEDPROGRAMS, new Runnable() {
+                @Override
+                public void run() {
+                    if ( shouldLoad(dhisApi, ResourceType.ASSIGNEDPROGRAMS) ) {
+                        getAssignedProgramsDataFromServer(dhisApi, serverDateTime);
+                    }
+                }
+            });
         }
         if (LoadingController.isLoadFlagEnabled(context, ResourceType.PROGRAMS)) {
-            List<String> assignedPrograms = MetaDataController.getAssignedPrograms();
-            if (assignedPrograms != null) {
-                for (String program : assignedPrograms) {
-                    if ( shouldLoad(dhisApi, ResourceType.PROGRAMS, program) ) {
-                        getProgramDataFromServer(dhisApi, program, serverDateTime);
+            loadGraph.add(ResourceType.PROGRAMS, new Runnable() {
+                @Override
+                public void run() {
+                    List<String> assignedPrograms = MetaDataController.getAssignedPrograms();
+                    if (assignedPrograms != null) {
+                        for (String program : assignedPrograms) {
+                            if ( shouldLoad(dhisApi, ResourceType.PROGRAMS, program) ) {
+                                getProgramDataFromServer(dhisApi, program, serverDateTime);
+                            }
+                        }
                     }
                 }
-            }
+            }, ResourceType.ASSIGNEDPROGRAMS);
         }
         if (LoadingController.isLoadFlagEnabled(context, ResourceType.OPTIONSETS)) {
-            if ( shouldLoad(dhisApi, ResourceType.OPTIONSETS) ) {
-                getOptionSetDataFromServer(dhisApi, serverDateTime);
-            }
+            loadGraph.add(ResourceType.OPTIONSETS, new Runnable() {
+                @Override
+                public void run() {
+                    if ( shouldLoad(dhisApi, ResourceType.OPTIONSETS) ) {
+                        getOptionSetDataFromServer(dhisApi, serverDateTime);
+                    }
+                }
+            });
         }
         if (LoadingController.isLoadFlagEnabled(context, ResourceType.TRACKEDENTITYATTRIBUTES)) {
-            if ( shouldLoad(dhisApi, ResourceType.TRACKEDENTITYATTRIBUTES) ) {
-                getTrackedEntityAttributeDataFromServer(dhisApi, serverDateTime);
-            }
+            loadGraph.add(ResourceType.TRACKEDENTITYATTRIBUTES, new Runnable() {
+                @Override
+                public void run() {
+                    if ( shouldLoad(dhisApi, ResourceType.TRACKEDENTITYATTRIBUTES) ) {
+                        getTrackedEntityAttributeDataFromServer(dhisApi, serverDateTime);
+                    }
+                }
+            });
         }
         if (LoadingController.isLoadFlagEnabled(context, ResourceType.CONSTANTS)) {
-            if ( shouldLoad(dhisApi, ResourceType.CONSTANTS) ) {
-                getConstantsDataFromServer(dhisApi, serverDateTime);
-            }
+            loadGraph.add(ResourceType.CONSTANTS, new Runnable() {
+                @Override
+                public void run() {
+                    if ( shouldLoad(dhisApi, ResourceType.CONSTANTS) ) {
+                        getConstantsDataFromServer(dhisApi, serverDateTime);
+                    }
+                }
+            });
         }
         if (LoadingController.isLoadFlagEnabled(context, ResourceType.PROGRAMRULES)) {
-            if ( shouldLoad(dhisApi, ResourceType.PROGRAMRULES) ) {
-                getProgramRulesDataFromServer(dhisApi, serverDateTime);
-            }
+            loadGraph.add(ResourceType.PROGRAMRULES, new Runnable() {
+                @Override
+                public void run() {
+                    if ( shouldLoad(dhisApi, ResourceType.PROGRAMRULES) ) {
+                        getProgramRulesDataFromServer(dhisApi, serverDateTime);
+                    }
+                }
+            });
         }
         if (LoadingController.isLoadFlagEnabled(context, ResourceType.PROGRAMRULEVARIABLES)) {
-            if ( shouldLoad(dhisApi, ResourceType.PROGRAMRULEVARIABLES) ) {
-                getProgramRuleVariablesDataFromServer(dhisApi, serverDateTime);
-            }
+            loadGraph.add(ResourceType.PROGRAMRULEVARIABLES, new Runnable() {
+                @Override
+                public void run() {
+                    if ( shouldLoad(dhisApi, ResourceType.PROGRAMRULEVARIABLES) ) {
+                        getProgramRuleVariablesDataFromServer(dhisApi, serverDateTime);
+                    }
+                }
+            });
         }
         if (LoadingController.isLoadFlagEnabled(context, ResourceType.PROGRAMRULEACTIONS)) {
-            if ( shouldLoad(dhisApi, ResourceType.PROGRAMRULEACTIONS) ) {
-                getProgramRuleActionsDataFromServer(dhisApi, serverDateTime);
-            }
+            loadGraph.add(ResourceType.PROGRAMRULEACTIONS, new Runnable() {
+                @Override
+                public void run() {
+                    if ( shouldLoad(dhisApi, ResourceType.PROGRAMRULEACTIONS) ) {
+                        getProgramRuleActionsDataFromServer(dhisApi, serverDateTime);
+                    }
+                }
+            });
         }
         if (LoadingController.isLoadFlagEnabled(context, ResourceType.RELATIONSHIPTYPES)) {
-            if ( shouldLoad(dhisApi, ResourceType.RELATIONSHIPTYPES) ) {
-                getRelationshipTypesDataFromServer(dhisApi, serverDateTime);
-            }
+            loadGraph.add(ResourceType.RELATIONSHIPTYPES, new Runnable() {
+                @Override
+                public void run() {
+                    if ( shouldLoad(dhisApi, ResourceType.RELATIONSHIPTYPES) ) {
+                        getRelationshipTypesDataFromServer(dhisApi, serverDateTime);
+                    }
+                }
+            });
+        }
+        loadGraph.execute(metaDataLoadThreads);
+    }
+
+    /**
+     * With the http cache enabled, meta data is requested without a lastUpdated filter so the
+     * url stays the same between syncs, letting the server answer 304 Not Modified if nothing
+     * has changed since the cached response.
+     */
+    private static Map<String, String> getMetaDataQueryMap(DateTime lastUpdated) {
+        if (RepoManager.isHttpCacheEnabled()) {
+            return getBasicQueryMap(null);
+        }
+        return getBasicQueryMap(lastUpdated);
+    }
+
+    /**
+     * Returns true if the response was not modified since it was last loaded and saved,
+     * in which case there is nothing to write to the database.
+     */
+    private static boolean isNotModified(DateTime lastUpdated, Response response) {
+        return lastUpdated != null && RepoManager.isNotModified(response);
+    }
+
+    private static <T> List<T> readList(Response response, String key, Class<T> type) throws APIException {
+        try {
+            return JsonStreamReader.readList(response, key, type);
+        } catch (IOException e) {
+            throw APIException.conversionError(response.getUrl(), response, e);
         }
     }
 
@@ -682,12 +966,18 @@ public final class MetaDataController extends ResourceController {
         DateTime lastUpdated = DateTimeManager.getInstance()
                 .getLastUpdated(ResourceType.OPTIONSETS);
 
-        if (lastUpdated != null) {
+        if (lastUpdated != null && !RepoManager.isHttpCacheEnabled()) {
             QUERY_MAP_FULL.put("filter", "lastUpdated:gt:" + lastUpdated.toString());
         }
 
-        List<OptionSet> optionSets = unwrapResponse(dhisApi
-                .getOptionSets(QUERY_MAP_FULL), ApiEndpointContainer.OPTION_SETS);
+        Response response = dhisApi.getOptionSets(QUERY_MAP_FULL);
+        if (isNotModified(lastUpdated, response)) {
+            DateTimeManager.getInstance()
+                    .setLastUpdated(ResourceType.OPTIONSETS, serverDateTime);
+            return;
+        }
+        List<OptionSet> optionSets = readList(response,
+                ApiEndpointContainer.OPTION_SETS, OptionSet.class);
         List<DbOperation> operations = OptionSetWrapper.getOperations(optionSets);
         DbUtils.applyBatch(operations);
         DateTimeManager.getInstance()
@@ -707,8 +997,14 @@ public final class MetaDataController extends ResourceController {
         Log.d(CLASS_TAG, "getConstantsDataFromServer");
         DateTime lastUpdated = DateTimeManager.getInstance()
                 .getLastUpdated(ResourceType.CONSTANTS);
-        List<Constant> constants = unwrapResponse(dhisApi
-                .getConstants(getBasicQueryMap(lastUpdated)), ApiEndpointContainer.CONSTANTS);
+        Response response = dhisApi.getConstants(getMetaDataQueryMap(lastUpdated));
+        if (isNotModified(lastUpdated, response)) {
+            DateTimeManager.getInstance()
+                    .setLastUpdated(ResourceType.CONSTANTS, serverDateTime);
+            return;
+        }
+        List<Constant> constants = readList(response,
+                ApiEndpointContainer.CONSTANTS, Constant.class);
         saveResourceDataFromServer(ResourceType.CONSTANTS, dhisApi, constants, getConstants(), serverDateTime);
     }
 
@@ -716,8 +1012,14 @@ public final class MetaDataController extends ResourceController {
         Log.d(CLASS_TAG, "getProgramRulesDataFromServer");
         DateTime lastUpdated = DateTimeManager.getInstance()
                 .getLastUpdated(ResourceType.PROGRAMRULES);
-        List<ProgramRule> programRules = unwrapResponse(dhisApi
-                .getProgramRules(getBasicQueryMap(lastUpdated)), ApiEndpointContainer.PROGRAMRULES);
+        Response response = dhisApi.getProgramRules(getMetaDataQueryMap(lastUpdated));
+        if (isNotModified(lastUpdated, response)) {
+            DateTimeManager.getInstance()
+                    .setLastUpdated(ResourceType.PROGRAMRULES, serverDateTime);
+            return;
+        }
+        List<ProgramRule> programRules = readList(response,
+                ApiEndpointContainer.PROGRAMRULES, ProgramRule.class);
         saveResourceDataFromServer(ResourceType.PROGRAMRULES, dhisApi, programRules, getProgramRules(), serverDateTime);
     }
 
@@ -725,8 +1027,14 @@ public final class MetaDataController extends ResourceController {
         Log.d(CLASS_TAG, "getProgramRuleVariablesDataFromServer");
         DateTime lastUpdated = DateTimeManager.getInstance()
                 .getLastUpdated(ResourceType.PROGRAMRULEVARIABLES);
-        List<ProgramRuleVariable> programRuleVariables = unwrapResponse(dhisApi
-                .getProgramRuleVariables(getBasicQueryMap(lastUpdated)), ApiEndpointContainer.PROGRAMRULEVARIABLES);
+        Response response = dhisApi.getProgramRuleVariables(getMetaDataQueryMap(lastUpdated));
+        if (isNotModified(lastUpdated, response)) {
+            DateTimeManager.getInstance()
+                    .setLastUpdated(ResourceType.PROGRAMRULEVARIABLES, serverDateTime);
+            return;
+        }
+        List<ProgramRuleVariable> programRuleVariables = readList(response,
+                ApiEndpointContainer.PROGRAMRULEVARIABLES, ProgramRuleVariable.class);
         saveResourceDataFromServer(ResourceType.PROGRAMRULEVARIABLES, dhisApi, programRuleVariables, getProgramRuleVariables(), serverDateTime);
     }
 
@@ -734,8 +1042,14 @@ public final class MetaDataController extends ResourceController {
         Log.d(CLASS_TAG, "getProgramRuleActionsDataFromServer");
         DateTime lastUpdated = DateTimeManager.getInstance()
                 .getLastUpdated(ResourceType.PROGRAMRULEACTIONS);
-        List<ProgramRuleAction> programRuleActions = unwrapResponse(dhisApi
-                .getProgramRuleActions(getBasicQueryMap(lastUpdated)), ApiEndpointContainer.PROGRAMRULEACTIONS);
+        Response response = dhisApi.getProgramRuleActions(getMetaDataQueryMap(lastUpdated));
+        if (isNotModified(lastUpdated, response)) {
+            DateTimeManager.getInstance()
+                    .setLastUpdated(ResourceType.PROGRAMRULEACTIONS, serverDateTime);
+            return;
+        }
+        List<ProgramRuleAction> programRuleActions = readList(response,
+                ApiEndpointContainer.PROGRAMRULEACTIONS, ProgramRuleAction.class);
         saveResourceDataFromServer(ResourceType.PROGRAMRULEACTIONS, dhisApi, programRuleActions, getProgramRuleActions(), serverDateTime);
     }
 
@@ -744,8 +1058,14 @@ public final class MetaDataController extends ResourceController {
         ResourceType resource = ResourceType.RELATIONSHIPTYPES;
         DateTime lastUpdated = DateTimeManager.getInstance()
                 .getLastUpdated(resource);
-        List<RelationshipType> relationshipTypes = unwrapResponse(dhisApi
-                .getRelationshipTypes(getBasicQueryMap(lastUpdated)), ApiEndpointContainer.RELATIONSHIPTYPES);
+        Response response = dhisApi.getRelationshipTypes(getMetaDataQueryMap(lastUpdated));
+        if (isNotModified(lastUpdated, response)) {
+            DateTimeManager.getInstance()
+                    .setLastUpdated(resource, serverDateTime);
+            return;
+        }
+        List<RelationshipType> relationshipTypes = readList(response,
+                ApiEndpointContainer.RELATIONSHIPTYPES, RelationshipType.class);
         saveResourceDataFromServer(resource, dhisApi, relationshipTypes, getRelationshipTypes(), serverDateTime);
     }
 }
@@ -0,0 +1,180 @@
+/*
+ *  Copyright (c) 2016, University of Oslo
+ *  * All rights reserved.
+ *  *
+ *  * Redistribution and use in source and binary forms, with or without
+ *  * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *  * list of conditions and the following disclaimer.
+ *  *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *  * this list of conditions and the following disclaimer in the documentation
+ *  * and/or other materials provided with the distribution.
+ *  * Neither the name of the HISP project nor the names of its contributors may
+ *  * be used to endorse or promote products derived from this software without
+ *  * specific prior written permission.
+ *  *
+ *  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package org.hisp.dhis.android.sdk.controllers.tracker;
+
+import com.raizlabs.android.dbflow.sql.builder.Condition;
+import com.raizlabs.android.dbflow.sql.language.Delete;
+import com.raizlabs.android.dbflow.sql.language.Select;
+import com.raizlabs.android.dbflow.sql.language.Where;
+
+import org.hisp.dhis.android.sdk.persistence.models.BaseSerializableModel;
+import org.hisp.dhis.android.sdk.persistence.models.Event;
+import org.hisp.dhis.android.sdk.persistence.models.FailedItem;
+import org.hisp.dhis.android.sdk.persistence.models.FailedItem$Table;
+import org.hisp.dhis.android.sdk.persistence.models.OutboxItem;
+import org.hisp.dhis.android.sdk.persistence.models.OutboxItem$Table;
+
+import java.util.List;
+
+/**
+ * Keeps track of locally changed items which have to be sent to the server. Items are added
+ * when they are saved locally and removed when they have been imported by the server.
+ * Items which fail to upload are retried with exponential backoff.
+ */
+public final class OutboxController {
+
+    /* delay before the first retry of an item, doubled for each failed attempt */
+    private static final long RETRY_DELAY = 60 * 1000;
+    private static final long MAX_RETRY_DELAY = 24 * 60 * 60 * 1000;
+
+    private OutboxController() {
+        // no instances
+    }
+
+    /**
+     * Adds the given locally saved item to the outbox. If the item is already queued, it is
+     * reset to be sent on the next synchronization since it has changed since the last attempt.
+     *
+     * @param itemType one of the item types of {@link FailedItem}
+     */
+    public static void enqueue(String itemType, BaseSerializableModel item, int priority) {
+        enqueue(itemType, item, priority, item.getCreated() == null ?
+                OutboxItem.OPERATION_CREATE : OutboxItem.OPERATION_UPDATE);
+    }
+
+    /**
+     * Adds an event to the outbox of which only data values have changed. If the event is
+     * already queued to be sent completely, it stays that way.
+     */
+    public static void enqueueDataValueChanges(Event event, int priority) {
+        String operation = OutboxItem.OPERATION_UPDATE_DATA_VALUES;
+        OutboxItem outboxItem = getItem(FailedItem.EVENT, event.getLocalId());
+        if (event.getCreated() == null) {
+            operation = OutboxItem.OPERATION_CREATE;
+        } else if (outboxItem != null) {
+            operation = outboxItem.getOperation();
+        }
+        enqueue(FailedItem.EVENT, event, priority, operation);
+    }
+
+    private static void enqueue(String itemType, BaseSerializableModel item, int priority, String operation) {
+        if (item.getLocalId() < 0) {
+            return;
+        }
+        OutboxItem outboxItem = new OutboxItem();
+        outboxItem.setItemType(itemType);
+        outboxItem.setItemId(item.getLocalId());
+        outboxItem.setOperation(operation);
+        outboxItem.setPriority(priority);
+        outboxItem.save();
+    }
+
+    public static OutboxItem getItem(String itemType, long itemId) {
+        return new Select().from(OutboxItem.class).where(
+                Condition.column(OutboxItem$Table.ITEMTYPE).is(itemType),
+                Condition.column(OutboxItem$Table.ITEMID).is(itemId)).querySingle();
+    }
+
+    public static List<OutboxItem> getPendingItems(String itemType) {
+        return getPendingItems(itemType, false);
+    }
+
+    /**
+     * Returns the queued items of the given type which are due to be sent, fresh items before
+     * retries and then ordered by priority.
+     *
+     * @param force true to return items waiting for a retry as well, for manual synchronizations
+     */
+    public static List<OutboxItem> getPendingItems(String itemType, boolean force) {
+        Where<OutboxItem> where = new Select().from(OutboxItem.class)
+                .where(Condition.column(OutboxItem$Table.ITEMTYPE).is(itemType));
+        if (!force) {
+            where = where.and(Condition.column(OutboxItem$Table.NEXTATTEMPT)
+                    .lessThan(System.currentTimeMillis() + 1));
+        }
+        return where.orderBy(true, OutboxItem$Table.ATTEMPTS, OutboxItem$Table.PRIORITY, OutboxItem$Table.ITEMID)
+                .queryList();
+    }
+
+    public static boolean hasPendingItems() {
+        return hasPendingItems(false);
+    }
+
+    /**
+     * Returns true if any queued item is due to be sent.
+     *
+     * @param force true to count items waiting for a retry as well, for manual synchronizations
+     */
+    public static boolean hasPendingItems(boolean force) {
+        if (force) {
+            return new Select().count().from(OutboxItem.class).count() > 0;
+        }
+        return new Select().count().from(OutboxItem.class)
+                .where(Condition.column(OutboxItem$Table.NEXTATTEMPT).lessThan(System.currentTimeMillis() + 1))
+                .count() > 0;
+    }
+
+    public static List<OutboxItem> getItems() {
+        return new Select().from(OutboxItem.class).queryList();
+    }
+
+    /**
+     * Removes the item from the outbox together with its failure, after it has been imported.
+     */
+    static void remove(String itemType, long itemId) {
+        new Delete().from(OutboxItem.class).where(
+                Condition.column(OutboxItem$Table.ITEMTYPE).is(itemType),
+                Condition.column(OutboxItem$Table.ITEMID).is(itemId)).queryClose();
+        new Delete().from(FailedItem.class).where(
+                Condition.column(FailedItem$Table.ITEMTYPE).is(itemType),
+                Condition.column(FailedItem$Table.ITEMID).is(itemId)).queryClose();
+    }
+
+    /**
+     * Postpones the next attempt to send the item after it has failed to upload.
+     */
+    static void registerFailure(String itemType, long itemId) {
+        OutboxItem outboxItem = getItem(itemType, itemId);
+        if (outboxItem == null) {
+            return;
+        }
+        outboxItem.setAttempts(outboxItem.getAttempts() + 1);
+        outboxItem.setNextAttempt(System.currentTimeMillis() + getRetryDelay(outboxItem.getAttempts()));
+        outboxItem.save();
+    }
+
+    static long getRetryDelay(int attempts) {
+        long delay = RETRY_DELAY;
+        for (int i = 1; i < attempts && delay < MAX_RETRY_DELAY; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, MAX_RETRY_DELAY);
+    }
+}
@@ -42,6 +42,7 @@ import org.hisp.dhis.android.sdk.controllers.ResourceController;
 import org.hisp.dhis.android.sdk.controllers.metadata.MetaDataController;
 import org.hisp.dhis.android.sdk.network.APIException;
 import org.hisp.dhis.android.sdk.network.DhisApi;
+import org.hisp.dhis.android.sdk.network.SyncSession;
 import org.hisp.dhis.android.sdk.persistence.models.DataValue;
 import org.hisp.dhis.android.sdk.persistence.models.DataValue$Table;
 import org.hisp.dhis.android.sdk.persistence.models.Enrollment;
@@ -63,9 +64,11 @@ import org.hisp.dhis.android.sdk.persistence.preferences.DateTimeManager;
 import org.hisp.dhis.android.sdk.persistence.preferences.ResourceType;
 import org.hisp.dhis.android.sdk.utils.UiUtils;
 import org.hisp.dhis.android.sdk.utils.api.ProgramType;
+import org.hisp.dhis.android.sdk.utils.support.DateUtils;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author Simen Skogly Russnes on 23.02.15.
@@ -107,7 +110,7 @@ public final class TrackerController extends ResourceController {
     public static List<Enrollment> getEnrollments(String program, String organisationUnit) {
         return new Select().from(Enrollment.class).where(Condition.column(Enrollment$Table.PROGRAM).
                 is(program)).and(Condition.column(Enrollment$Table.ORGUNIT).is(organisationUnit)).
-                orderBy(false, Enrollment$Table.ENROLLMENTDATE).
+                orderBy(false, Enrollment$Table.ENROLLMENTDATEMILLIS).
                 queryList();
     }
 
@@ -155,8 +158,9 @@ public final class TrackerController extends ResourceController {
                                                  String startDate, String endDate) {
         return new Select().from(Event.class).where(Condition.column(Event$Table.PROGRAMID).is
                 (programId)).and(Condition.column(Event$Table.ORGANISATIONUNITID).is
-                (orgUnitId)).and(Condition.column(Event$Table.DUEDATE).between(startDate).and
-                (endDate)).orderBy(Event$Table.DUEDATE).queryList();
+                (orgUnitId)).and(Condition.column(Event$Table.DUEDATEMILLIS)
+                .between(DateUtils.getMillis(startDate)).and(DateUtils.getMillis(endDate)))
+                .orderBy(Event$Table.DUEDATEMILLIS).queryList();
     }
 
     /**
@@ -191,7 +195,7 @@ public final class TrackerController extends ResourceController {
     public static List<Event> getEvents(String organisationUnitId, String programId) {
         List<Event> events = new Select().from(Event.class).where(Condition.column
                 (Event$Table.ORGANISATIONUNITID).is(organisationUnitId)).
-                and(Condition.column(Event$Table.PROGRAMID).is(programId)).orderBy(false, Event$Table.LASTUPDATED).queryList();
+                and(Condition.column(Event$Table.PROGRAMID).is(programId)).orderBy(false, Event$Table.LASTUPDATEDMILLIS).queryList();
         return events;
     }
 
@@ -352,15 +356,14 @@ public final class TrackerController extends ResourceController {
      */
     public static void clearDataValueLoadedFlags() {
         List<OrganisationUnit> assignedOrganisationUnits = MetaDataController.getAssignedOrganisationUnits();
+        Map<String, List<Program>> programsForOrganisationUnits = MetaDataController
+                .getProgramsForOrganisationUnits(ProgramType.WITHOUT_REGISTRATION);
         for (OrganisationUnit organisationUnit : assignedOrganisationUnits) {
             if (organisationUnit.getId() == null)
                 break;
-            List<Program> programsForOrgUnit = new ArrayList<>();
-            List<Program> programsForOrgUnitSEWoR = MetaDataController.getProgramsForOrganisationUnit
-                    (organisationUnit.getId(),
-                            ProgramType.WITHOUT_REGISTRATION);
-            if (programsForOrgUnitSEWoR != null)
-                programsForOrgUnit.addAll(programsForOrgUnitSEWoR);
+            List<Program> programsForOrgUnit = programsForOrganisationUnits.get(organisationUnit.getId());
+            if (programsForOrgUnit == null)
+                continue;
 
             for (Program program : programsForOrgUnit) {
                 if (program.getUid() == null)
@@ -375,26 +378,84 @@ public final class TrackerController extends ResourceController {
      * or disabling flags in DHIS 2.
      */
     public static void synchronizeDataValues(Context context, DhisApi dhisApi) throws APIException {
-        sendLocalData(dhisApi);
-        loadDataValues(context, dhisApi);
+        SyncSession syncSession = SyncSession.open(dhisApi);
+        sendLocalData(syncSession.getDhisApi());
+        loadDataValues(context, syncSession);
     }
 
     /**
      * Tries to send locally stored data to the server
      */
     public static void sendLocalData(DhisApi dhisApi) throws APIException {
+        sendLocalData(dhisApi, false);
+    }
+
+    /**
+     * Tries to send locally stored data to the server
+     *
+     * @param force true to send items waiting for a retry after failed uploads as well
+     */
+    public static void sendLocalData(DhisApi dhisApi, boolean force) throws APIException {
         Log.d(CLASS_TAG, "sending local data");
-        TrackerDataSender.sendTrackedEntityInstanceChanges(dhisApi, false);
-        TrackerDataSender.sendEnrollmentChanges(dhisApi, true);
-        TrackerDataSender.sendEventChanges(dhisApi);
+        TrackerDataSender.sendLocalData(dhisApi, force);
     }
 
     /**
-     * Loads datavalues from the server and stores it in local persistence.
+     * Loads datavalues from the server and stores it in local persistence, in a SyncSession
+     * of its own.
      */
     public static void loadDataValues(Context context, DhisApi dhisApi) throws APIException {
+        loadDataValues(context, SyncSession.open(dhisApi));
+    }
+
+    /**
+     * Loads datavalues from the server and stores it in local persistence.
+     */
+    public static void loadDataValues(Context context, SyncSession syncSession) throws APIException {
         UiUtils.postProgressMessage(context.getString(R.string.loading_metadata));
-        TrackerDataLoader.updateDataValueDataItems(context, dhisApi);
+        TrackerDataLoader.updateDataValueDataItems(context, syncSession);
+    }
+
+    /**
+     * Sets how many organisation unit/program pairs events are downloaded for at the same time
+     * in loadDataValues. Defaults to 1, which downloads them sequentially.
+     *
+     * @param threads
+     */
+    public static void setEventDownloadThreads(int threads) {
+        TrackerDataLoader.setEventDownloadThreads(threads);
+    }
+
+    /**
+     * Enables loading of several tracked entity instances at once, together with their
+     * enrollments and events, in pages of ResourceType.TRACKEDENTITYINSTANCES page size.
+     * Requires a server which supports nested enrollments in tracked entity instances.
+     *
+     * @param enabled
+     */
+    public static void setTrackedEntityInstanceBulkDownload(boolean enabled) {
+        TrackerDataLoader.setTrackedEntityInstanceBulkDownload(enabled);
+    }
+
+    /**
+     * Sets how many events are sent to the server in each request when sending local data.
+     * With a batch size of 1 (default) every event is sent in a request of its own.
+     *
+     * @param batchSize
+     */
+    public static void setEventUploadBatchSize(int batchSize) {
+        TrackerDataSender.setEventUploadBatchSize(batchSize);
+    }
+
+    /**
+     * Enables sending only the changed data values of events which exist on the server, each
+     * in a request of its own. Events with more changed data values than the threshold, or
+     * with other changes, are sent completely. A threshold of 0 (default) disables it.
+     *
+     * @param threshold
+     */
+    public static void setDataValueDeltaUploadThreshold(int threshold) {
+        TrackerDataSender.setDataValueDeltaUploadThreshold(threshold);
     }
 
     public static List<TrackedEntityInstance> queryTrackedEntityInstancesDataFromServer(DhisApi dhisApi,
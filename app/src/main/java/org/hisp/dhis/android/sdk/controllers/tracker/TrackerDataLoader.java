@@ -30,6 +30,7 @@
 package org.hisp.dhis.android.sdk.controllers.tracker;
 
 import android.content.Context;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.fasterxml.jackson.core.type.TypeReference;
@@ -42,18 +43,22 @@ import org.hisp.dhis.android.sdk.controllers.LoadingController;
 import org.hisp.dhis.android.sdk.controllers.ResourceController;
 import org.hisp.dhis.android.sdk.controllers.metadata.MetaDataController;
 import org.hisp.dhis.android.sdk.controllers.wrappers.EventsWrapper;
+import org.hisp.dhis.android.sdk.controllers.wrappers.TrackedEntityInstancesWrapper;
 import org.hisp.dhis.android.sdk.network.APIException;
 import org.hisp.dhis.android.sdk.network.DhisApi;
+import org.hisp.dhis.android.sdk.network.SyncSession;
+import org.hisp.dhis.android.sdk.persistence.models.BaseIdentifiableObject;
 import org.hisp.dhis.android.sdk.persistence.models.Enrollment;
 import org.hisp.dhis.android.sdk.persistence.models.Event;
 import org.hisp.dhis.android.sdk.persistence.models.OrganisationUnit;
+import org.hisp.dhis.android.sdk.persistence.models.Pager;
 import org.hisp.dhis.android.sdk.persistence.models.Program;
 import org.hisp.dhis.android.sdk.persistence.models.Relationship;
-import org.hisp.dhis.android.sdk.persistence.models.SystemInfo;
 import org.hisp.dhis.android.sdk.persistence.models.TrackedEntityAttributeValue;
 import org.hisp.dhis.android.sdk.persistence.models.TrackedEntityInstance;
 import org.hisp.dhis.android.sdk.persistence.models.meta.DbOperation;
 import org.hisp.dhis.android.sdk.persistence.preferences.DateTimeManager;
+import org.hisp.dhis.android.sdk.persistence.preferences.PageCursorManager;
 import org.hisp.dhis.android.sdk.persistence.preferences.ResourceType;
 import org.hisp.dhis.android.sdk.utils.DbUtils;
 import org.hisp.dhis.android.sdk.utils.UiUtils;
@@ -64,10 +69,16 @@ import org.joda.time.DateTime;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import retrofit.client.Response;
 
 import static org.hisp.dhis.android.sdk.utils.NetworkUtils.unwrapResponse;
 
@@ -78,71 +89,257 @@ final class TrackerDataLoader extends ResourceController {
 
     public static final String CLASS_TAG = TrackerDataLoader.class.getSimpleName();
 
+    /* tracked entity instances with their enrollments and the events of each enrollment */
+    private static final String TRACKED_ENTITY_INSTANCE_GRAPH_FIELDS = "*,enrollments[enrollment," +
+            "created,lastUpdated,orgUnit,program,trackedEntityInstance,enrollmentDate,incidentDate," +
+            "followup,status,events[*]]";
+
+    private static boolean trackedEntityInstanceBulkDownload = false;
+
     private TrackerDataLoader() {}
 
+    private static final int DEFAULT_EVENT_DOWNLOAD_THREADS = 1;
+
+    private static int eventDownloadThreads = DEFAULT_EVENT_DOWNLOAD_THREADS;
+
+    /**
+     * Sets the maximum number of organisation unit/program pairs for which events are
+     * downloaded concurrently. A value of 1 (the default) loads them one after another.
+     *
+     * @param threads
+     */
+    static void setEventDownloadThreads(int threads) {
+        eventDownloadThreads = Math.max(1, threads);
+    }
+
+    static int getEventDownloadThreads() {
+        return eventDownloadThreads;
+    }
+
     /**
      * Loads datavalue items that is scheduled to be loaded but has not yet been.
+     * The server time is the one shared by all resources loaded in the given session.
      */
-    static void updateDataValueDataItems(Context context, DhisApi dhisApi) throws APIException {
-        SystemInfo serverSystemInfo = dhisApi.getSystemInfo();
-        DateTime serverDateTime = serverSystemInfo.getServerDate();
+    static void updateDataValueDataItems(Context context, SyncSession syncSession) throws APIException {
+        DhisApi dhisApi = syncSession.getDhisApi();
+        DateTime serverDateTime = syncSession.getServerDateTime();
         List<OrganisationUnit> assignedOrganisationUnits = MetaDataController.getAssignedOrganisationUnits();
-        Hashtable<String, List<Program>> programsForOrganisationUnits = new Hashtable<>();
 
         if (LoadingController.isLoadFlagEnabled(context, ResourceType.EVENTS)) {
-            for (OrganisationUnit organisationUnit : assignedOrganisationUnits) {
-                if (organisationUnit.getId() == null || organisationUnit.getId().length() == Utils.randomUUID.length()) {
-                    continue;
-                }
-
-                List<Program> programsForOrgUnit = new ArrayList<>();
-                List<Program> programsForOrgUnitSEWoR = MetaDataController.getProgramsForOrganisationUnit
-                        (organisationUnit.getId(),
-                                ProgramType.WITHOUT_REGISTRATION);
-                if (programsForOrgUnitSEWoR != null) {
-                    programsForOrgUnit.addAll(programsForOrgUnitSEWoR);
-                }
-
-                programsForOrganisationUnits.put(organisationUnit.getId(), programsForOrgUnit);
-            }
+            Map<String, List<Program>> programsForOrganisationUnits = MetaDataController
+                    .getProgramsForOrganisationUnits(ProgramType.WITHOUT_REGISTRATION);
 
+            List<EventsLoadTask> tasks = new ArrayList<>();
             for (final OrganisationUnit organisationUnit : assignedOrganisationUnits) {
                 if (organisationUnit.getId() == null || organisationUnit.getId().length() == Utils.randomUUID.length())
                     continue;
 
-                for (final Program program : programsForOrganisationUnits.get(organisationUnit.getId())) {
+                List<Program> programsForOrgUnit = programsForOrganisationUnits.get(organisationUnit.getId());
+                if (programsForOrgUnit == null)
+                    continue;
+
+                for (final Program program : programsForOrgUnit) {
                     if (program.getUid() == null || program.getUid().length() == Utils.randomUUID.length())
                         continue;
 
                     if (shouldLoad(dhisApi, ResourceType.EVENTS, organisationUnit.getId() + program.getUid())) {
-                        UiUtils.postProgressMessage(context.getString(R.string.loading_events) + ": "
-                                + organisationUnit.getLabel() + ": " + program.getName());
-                        try {
-                        getEventsDataFromServer(dhisApi, organisationUnit.getId(), program.getUid(), serverDateTime);
-                        } catch (APIException e) {
-                        e.printStackTrace();
-                        //todo: could probably do something prettier here. This catch is done to prevent
-                        // stopping loading of the following program/orgUnit as throwing and exception would exit the loop..
-                        }
+                        tasks.add(new EventsLoadTask(context, dhisApi, organisationUnit, program,
+                                new EventsDownload(organisationUnit.getId(), program.getUid(), serverDateTime)));
+                    }
+                }
+            }
+
+            if (eventDownloadThreads <= 1 || tasks.size() <= 1) {
+                for (EventsLoadTask task : tasks) {
+                    try {
+                        task.call();
+                    } finally {
+                        task.download.save();
+                    }
+                }
+            } else {
+                loadEventsConcurrently(tasks, eventDownloadThreads);
+            }
+        }
+    }
+
+    /**
+     * Runs the given tasks on a bounded pool of worker threads and waits for all of them to finish.
+     * Failures of single organisation unit/program pairs are handled inside each task, so only
+     * errors that would have stopped the sequential loading are re-thrown here, once every other
+     * pair has been given the chance to finish. The checkpoints of each task are saved on the
+     * calling thread once the task is done, so the workers never write them.
+     */
+    private static void loadEventsConcurrently(List<EventsLoadTask> tasks, int threads) throws APIException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+        List<Future<Void>> futures = new ArrayList<>();
+        RuntimeException failure = null;
+        try {
+            for (EventsLoadTask task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    if (failure == null && e.getCause() instanceof RuntimeException) {
+                        failure = (RuntimeException) e.getCause();
+                    } else {
+                        Log.e(CLASS_TAG, "Failed to load events", e.getCause());
                     }
                 }
+                tasks.get(i).download.save();
+            }
+        } catch (InterruptedException e) {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
             }
+            Thread.currentThread().interrupt();
+            throw APIException.unexpectedError(null, e);
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failure != null) {
+            throw failure;
         }
     }
 
+    /**
+     * Loads the events for one organisation unit and program pair.
+     */
+    private static class EventsLoadTask implements Callable<Void> {
+        private final Context context;
+        private final DhisApi dhisApi;
+        private final OrganisationUnit organisationUnit;
+        private final Program program;
+        private final EventsDownload download;
+
+        EventsLoadTask(Context context, DhisApi dhisApi, OrganisationUnit organisationUnit,
+                       Program program, EventsDownload download) {
+            this.context = context;
+            this.dhisApi = dhisApi;
+            this.organisationUnit = organisationUnit;
+            this.program = program;
+            this.download = download;
+        }
+
+        @Override
+        public Void call() throws APIException {
+            UiUtils.postProgressMessage(context.getString(R.string.loading_events) + ": "
+                    + organisationUnit.getLabel() + ": " + program.getName());
+            try {
+                loadEventPages(dhisApi, download);
+            } catch (APIException e) {
+                // a failing pair must not keep the other pairs from being loaded
+                Log.e(CLASS_TAG, "Failed to load events of " + download.salt, e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Position of the paged event download of one organisation unit and program pair. The
+     * cursor and checkpoint are read when it is created and written by {@link #save()}, both
+     * on the thread which started the download, while the pages may be loaded on a worker.
+     */
+    private static final class EventsDownload {
+        private final String organisationUnitUid;
+        private final String programUid;
+        private final String salt;
+        private final DateTime lastUpdated;
+        private final DateTime startedDateTime;
+        private final boolean resumed;
+        private final int storedPage;
+
+        private int lastCompletedPage;
+        private boolean completed;
+
+        EventsDownload(String organisationUnitUid, String programUid, DateTime serverDateTime) {
+            this.organisationUnitUid = organisationUnitUid;
+            this.programUid = programUid;
+            this.salt = organisationUnitUid + programUid;
+            this.lastUpdated = DateTimeManager.getInstance()
+                    .getLastUpdated(ResourceType.EVENTS, salt);
+
+            PageCursorManager pageCursor = PageCursorManager.getInstance();
+            DateTime cursorDateTime = pageCursor.getStartedDateTime(ResourceType.EVENTS, salt);
+            this.resumed = cursorDateTime != null;
+            this.startedDateTime = resumed ? cursorDateTime : serverDateTime;
+            this.storedPage = resumed ?
+                    pageCursor.getLastCompletedPage(ResourceType.EVENTS, salt) : 0;
+            this.lastCompletedPage = storedPage;
+        }
+
+        /**
+         * Sets the last updated time if all pages have been loaded, or stores the last
+         * completed page if the download stopped before the last one.
+         */
+        void save() {
+            PageCursorManager pageCursor = PageCursorManager.getInstance();
+            if (completed) {
+                DateTimeManager.getInstance()
+                        .setLastUpdated(ResourceType.EVENTS, salt, startedDateTime);
+                if (resumed) {
+                    pageCursor.deleteCursor(ResourceType.EVENTS, salt);
+                }
+            } else if (lastCompletedPage > storedPage) {
+                pageCursor.setLastCompletedPage(ResourceType.EVENTS, salt, startedDateTime,
+                        lastCompletedPage);
+            }
+        }
+    }
+
+    /**
+     * Loads events for the given organisation unit and program page by page until all pages
+     * have been loaded. Each page is saved as soon as it arrives. If the download stops before
+     * the last page, the last completed page is stored once, so the following sync continues
+     * from the next page instead of starting over. Events are ordered by lastUpdated and limited
+     * to those updated before the download was started, so the pages keep their content across
+     * sessions. The last updated time is only set when all pages have been loaded.
+     */
     static void getEventsDataFromServer(DhisApi dhisApi, String organisationUnitUid, String programUid, DateTime serverDateTime) throws APIException {
+        EventsDownload download = new EventsDownload(organisationUnitUid, programUid, serverDateTime);
+        try {
+            loadEventPages(dhisApi, download);
+        } finally {
+            download.save();
+        }
+    }
+
+    private static void loadEventPages(DhisApi dhisApi, EventsDownload download) throws APIException {
         Log.d(CLASS_TAG, "getEventsDataFromServer");
-        DateTime lastUpdated = DateTimeManager.getInstance()
-                .getLastUpdated(ResourceType.EVENTS,organisationUnitUid+programUid);
         final Map<String, String> map = new HashMap<>();
         map.put("fields", "[:all]");
-        if (lastUpdated != null) {
-            map.put("lastUpdated", lastUpdated.toString());
+        map.put("order", "lastUpdated:asc,event:asc");
+        map.put("lastUpdatedEndDate", download.startedDateTime.toString());
+        if (download.lastUpdated != null) {
+            map.put("lastUpdated", download.lastUpdated.toString());
         }
-        JsonNode response = dhisApi.getEvents(programUid, organisationUnitUid, 200,
-                map);
-        List<Event> events = EventsWrapper.getEvents(response);
-        saveResourceDataFromServer(ResourceType.EVENTS,organisationUnitUid+programUid, dhisApi, events, null, serverDateTime);
+
+        int pageSize = getPageSize(ResourceType.EVENTS);
+        boolean hasNextPage;
+        do {
+            int page = download.lastCompletedPage + 1;
+            Response response = dhisApi.getEvents(download.programUid,
+                    download.organisationUnitUid, page, pageSize, map);
+            List<Event> events = new ArrayList<>();
+            Pager pager;
+            try {
+                pager = EventsWrapper.readEvents(response, events);
+            } catch (IOException e) {
+                throw APIException.conversionError(response.getUrl(), response, e);
+            }
+            saveResourceData(events, null, true);
+            download.lastCompletedPage = page;
+
+            if (pager != null) {
+                hasNextPage = pager.hasNextPage();
+            } else {
+                // servers which don't return a pager: a full page means there may be more.
+                hasNextPage = events.size() >= pageSize;
+            }
+        } while (hasNextPage);
+        download.completed = true;
     }
 
     static List<TrackedEntityInstance> queryTrackedEntityInstancesDataFromServer(DhisApi dhisApi,
@@ -176,10 +373,22 @@ final class TrackerDataLoader extends ResourceController {
         return trackedEntityInstances;
     }
 
+    static void setTrackedEntityInstanceBulkDownload(boolean enabled) {
+        trackedEntityInstanceBulkDownload = enabled;
+    }
+
+    static boolean isTrackedEntityInstanceBulkDownload() {
+        return trackedEntityInstanceBulkDownload;
+    }
+
     static void getTrackedEntityInstancesDataFromServer(DhisApi dhisApi, List<TrackedEntityInstance> trackedEntityInstances, boolean getEnrollments) {
         if(trackedEntityInstances == null) {
             return;
         }
+        if(trackedEntityInstanceBulkDownload && trackedEntityInstances.size() > 1) {
+            getTrackedEntityInstancesGraphFromServer(dhisApi, trackedEntityInstances, getEnrollments);
+            return;
+        }
         for(TrackedEntityInstance trackedEntityInstance: trackedEntityInstances) {
             try {
                 getTrackedEntityInstanceDataFromServer(dhisApi, trackedEntityInstance.getTrackedEntityInstance(), getEnrollments);
@@ -189,6 +398,148 @@ final class TrackerDataLoader extends ResourceController {
         }
     }
 
+    /**
+     * Loads the given tracked entity instances in pages, each page being one request which
+     * includes the enrollments and events of the tracked entity instances through nested fields.
+     * Each page is written in one transaction.
+     */
+    static void getTrackedEntityInstancesGraphFromServer(DhisApi dhisApi, List<TrackedEntityInstance> trackedEntityInstances, boolean getEnrollments) {
+        DateTime serverDateTime = dhisApi.getSystemInfo()
+                .getServerDate();
+        int pageSize = getPageSize(ResourceType.TRACKEDENTITYINSTANCES);
+        for (int i = 0; i < trackedEntityInstances.size(); i += pageSize) {
+            List<TrackedEntityInstance> page = trackedEntityInstances.
+                    subList(i, Math.min(i + pageSize, trackedEntityInstances.size()));
+            List<String> uids = new ArrayList<>();
+            for (TrackedEntityInstance trackedEntityInstance : page) {
+                uids.add(trackedEntityInstance.getTrackedEntityInstance());
+            }
+
+            final Map<String, String> map = new HashMap<>();
+            map.put("trackedEntityInstance", TextUtils.join(";", uids));
+            map.put("ouMode", "ACCESSIBLE");
+            map.put("pageSize", String.valueOf(uids.size()));
+            if (getEnrollments) {
+                map.put("fields", TRACKED_ENTITY_INSTANCE_GRAPH_FIELDS);
+            } else {
+                map.put("fields", "*");
+            }
+            try {
+                Response response = dhisApi.queryTrackedEntityInstances(map);
+                saveTrackedEntityInstanceGraph(TrackedEntityInstancesWrapper.readTrackedEntityInstances(response),
+                        getEnrollments, serverDateTime);
+            } catch (APIException e) { //can't throw this further up because we want to continue loading the next pages..
+                e.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void saveTrackedEntityInstanceGraph(final List<TrackedEntityInstance> trackedEntityInstances,
+                                                       final boolean saveEnrollments,
+                                                       final DateTime serverDateTime) {
+        DbUtils.transact(new Runnable() {
+            @Override
+            public void run() {
+                for (TrackedEntityInstance trackedEntityInstance : trackedEntityInstances) {
+                    //need to save the TEI first to get a auto-increment id
+                    trackedEntityInstance.save();
+                    if (trackedEntityInstance.getAttributes() != null) {
+                        for (TrackedEntityAttributeValue value : trackedEntityInstance.getAttributes()) {
+                            if (value != null) {
+                                value.setTrackedEntityInstanceId(trackedEntityInstance.getTrackedEntityInstance());
+                                value.setLocalTrackedEntityInstanceId(trackedEntityInstance.getLocalId());
+                                value.save();
+                            }
+                        }
+                    }
+                    if (trackedEntityInstance.getRelationships() != null) {
+                        for (Relationship relationship : trackedEntityInstance.getRelationships()) {
+                            if (relationship != null) {
+                                relationship.save();
+                            }
+                        }
+                    }
+                    if (saveEnrollments && trackedEntityInstance.getEnrollments() != null) {
+                        saveEnrollmentGraph(trackedEntityInstance);
+                    }
+                }
+
+                // the checkpoints are written in the same transaction as the data
+                for (TrackedEntityInstance trackedEntityInstance : trackedEntityInstances) {
+                    DateTimeManager.getInstance().setLastUpdated(ResourceType.TRACKEDENTITYINSTANCE,
+                            trackedEntityInstance.getTrackedEntityInstance(), serverDateTime);
+                    if (saveEnrollments && trackedEntityInstance.getEnrollments() != null) {
+                        DateTimeManager.getInstance().setLastUpdated(ResourceType.ENROLLMENTS,
+                                trackedEntityInstance.getTrackedEntityInstance(), serverDateTime);
+                        for (Enrollment enrollment : trackedEntityInstance.getEnrollments()) {
+                            DateTimeManager.getInstance().setLastUpdated(ResourceType.EVENTS,
+                                    enrollment.getEnrollment(), serverDateTime);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Saves the enrollments and events of the tracked entity instance like the requests per
+     * tracked entity instance do: only items updated since the last load are written, and
+     * only if they are newer than the persisted ones.
+     */
+    private static void saveEnrollmentGraph(TrackedEntityInstance trackedEntityInstance) {
+        String uid = trackedEntityInstance.getTrackedEntityInstance();
+        Map<String, List<Event>> eventsByEnrollment = new HashMap<>();
+        List<Enrollment> enrollments = new ArrayList<>();
+        for (Enrollment enrollment : trackedEntityInstance.getEnrollments()) {
+            enrollment.setLocalTrackedEntityInstanceId(trackedEntityInstance.getLocalId());
+            if (enrollment.getEvents() != null) {
+                eventsByEnrollment.put(enrollment.getEnrollment(), enrollment.getEvents());
+            }
+            // the events are diffed on their own below, instead of being saved with the enrollment
+            enrollment.setEvents(null);
+            enrollments.add(enrollment);
+        }
+
+        List<Enrollment> persistedEnrollments = TrackerController.getEnrollments(trackedEntityInstance);
+        DbUtils.applyBatch(DbUtils.createOperations(persistedEnrollments,
+                getUpdatedSince(enrollments, DateTimeManager.getInstance()
+                        .getLastUpdated(ResourceType.ENROLLMENTS, uid)), true));
+
+        Map<String, Enrollment> savedEnrollments = BaseIdentifiableObject.toMap(
+                TrackerController.getEnrollments(trackedEntityInstance));
+        for (Map.Entry<String, List<Event>> entry : eventsByEnrollment.entrySet()) {
+            Enrollment enrollment = savedEnrollments.get(entry.getKey());
+            if (enrollment == null) {
+                continue;
+            }
+            for (Event event : entry.getValue()) {
+                event.setLocalEnrollmentId(enrollment.getLocalId());
+            }
+            DbUtils.applyBatch(DbUtils.createOperations(
+                    TrackerController.getEventsByEnrollment(enrollment.getLocalId()),
+                    getUpdatedSince(entry.getValue(), DateTimeManager.getInstance()
+                            .getLastUpdated(ResourceType.EVENTS, entry.getKey())), true));
+        }
+    }
+
+    /**
+     * Returns the items which were updated after the given time, or all items if it is null.
+     */
+    private static <T extends BaseIdentifiableObject> List<T> getUpdatedSince(List<T> items, DateTime lastUpdated) {
+        if (lastUpdated == null) {
+            return items;
+        }
+        List<T> updatedItems = new ArrayList<>();
+        for (T item : items) {
+            if (item.getLastUpdatedMillis() == 0 || item.getLastUpdatedMillis() > lastUpdated.getMillis()) {
+                updatedItems.add(item);
+            }
+        }
+        return updatedItems;
+    }
+
     static void getTrackedEntityInstanceDataFromServer(DhisApi dhisApi, String uid, boolean getEnrollments) throws APIException {
         DateTime lastUpdated = DateTimeManager.getInstance()
                 .getLastUpdated(ResourceType.TRACKEDENTITYINSTANCE, uid);
@@ -215,7 +566,6 @@ final class TrackerDataLoader extends ResourceController {
         if (trackedEntityInstance.getRelationships() != null) {
             for (Relationship relationship : trackedEntityInstance.getRelationships()) {
                 if (relationship != null) {
-                    relationship.async().save();
                     operations.add(DbOperation.save(relationship));
                 }
             }
@@ -30,17 +30,20 @@
 package org.hisp.dhis.android.sdk.controllers.tracker;
 
 import android.net.Uri;
+import android.text.TextUtils;
 import android.util.Log;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import com.raizlabs.android.dbflow.runtime.TransactionManager;
 import com.raizlabs.android.dbflow.sql.builder.Condition;
 import com.raizlabs.android.dbflow.sql.language.Select;
 import com.raizlabs.android.dbflow.sql.language.Update;
 
-import org.hisp.dhis.android.sdk.controllers.DhisController;
+import org.hisp.dhis.android.sdk.controllers.ApiEndpointContainer;
+import org.hisp.dhis.android.sdk.controllers.wrappers.ImportSummaryWrapper;
+import org.hisp.dhis.android.sdk.controllers.wrappers.JsonStreamReader;
 import org.hisp.dhis.android.sdk.network.APIException;
 import org.hisp.dhis.android.sdk.network.DhisApi;
-import org.hisp.dhis.android.sdk.persistence.models.ApiResponse;
+import org.hisp.dhis.android.sdk.persistence.Dhis2Database;
 import org.hisp.dhis.android.sdk.persistence.models.DataValue;
 import org.hisp.dhis.android.sdk.persistence.models.DataValue$Table;
 import org.hisp.dhis.android.sdk.persistence.models.Enrollment;
@@ -49,24 +52,29 @@ import org.hisp.dhis.android.sdk.persistence.models.Event;
 import org.hisp.dhis.android.sdk.persistence.models.Event$Table;
 import org.hisp.dhis.android.sdk.persistence.models.FailedItem;
 import org.hisp.dhis.android.sdk.persistence.models.ImportSummary;
+import org.hisp.dhis.android.sdk.persistence.models.OutboxItem;
 import org.hisp.dhis.android.sdk.persistence.models.Relationship;
 import org.hisp.dhis.android.sdk.persistence.models.Relationship$Table;
 import org.hisp.dhis.android.sdk.persistence.models.TrackedEntityAttributeValue;
 import org.hisp.dhis.android.sdk.persistence.models.TrackedEntityAttributeValue$Table;
 import org.hisp.dhis.android.sdk.persistence.models.TrackedEntityInstance;
 import org.hisp.dhis.android.sdk.persistence.models.TrackedEntityInstance$Table;
-import org.hisp.dhis.android.sdk.utils.StringConverter;
+import org.hisp.dhis.android.sdk.utils.DbUtils;
 import org.hisp.dhis.android.sdk.utils.Utils;
 import org.hisp.dhis.android.sdk.utils.NetworkUtils;
 
 import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import retrofit.client.Header;
 import retrofit.client.Response;
-import retrofit.converter.ConversionException;
 
 /**
  * @author Simen Skogly Russnes on 24.08.15.
@@ -74,19 +82,68 @@ import retrofit.converter.ConversionException;
 final class TrackerDataSender {
 
     public static final String CLASS_TAG = TrackerDataSender.class.getSimpleName();
+    public static final int DEFAULT_EVENT_UPLOAD_BATCH_SIZE = 1;
+    public static final int DATA_VALUE_DELTA_UPLOAD_DISABLED = 0;
+
+    /* number of uids per request when loading timestamps of imported items */
+    private static final int TIMESTAMP_QUERY_CHUNK_SIZE = 50;
+
+    private static int eventUploadBatchSize = DEFAULT_EVENT_UPLOAD_BATCH_SIZE;
+    private static int dataValueDeltaUploadThreshold = DATA_VALUE_DELTA_UPLOAD_DISABLED;
 
     private TrackerDataSender() {
     }
 
+    static void setEventUploadBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        eventUploadBatchSize = batchSize;
+    }
+
+    static int getEventUploadBatchSize() {
+        return eventUploadBatchSize;
+    }
+
+    static void setDataValueDeltaUploadThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Threshold must not be negative");
+        }
+        dataValueDeltaUploadThreshold = threshold;
+    }
+
+    /**
+     * Sends all pending local changes in one pass. Parents are sent before the items referring
+     * to them, so new tracked entity instances, their enrollments and events are all uploaded
+     * in the same synchronization.
+     *
+     * @param force true to send items waiting for a retry as well, for manual synchronizations
+     */
+    static void sendLocalData(DhisApi dhisApi, boolean force) throws APIException {
+        UploadPlanner uploadPlanner = new UploadPlanner(force);
+
+        // instances are queued again when relationships to them have become valid
+        // after they were imported, so they are sent in a second round
+        for (int round = 0; round < 2; round++) {
+            List<TrackedEntityInstance> trackedEntityInstances = uploadPlanner.getTrackedEntityInstances();
+            if (trackedEntityInstances.isEmpty()) {
+                break;
+            }
+            uploadPlanner.addImportedTrackedEntityInstances(
+                    sendTrackedEntityInstanceChanges(dhisApi, trackedEntityInstances, false));
+        }
+        uploadPlanner.addImportedEnrollments(
+                sendEnrollmentChanges(dhisApi, uploadPlanner.getEnrollments(), false));
+        sendEventChanges(dhisApi, uploadPlanner.getEvents());
+    }
+
     static void sendEventChanges(DhisApi dhisApi) throws APIException {
-        List<Event> events = new Select().from(Event.class).where
-                (Condition.column(Event$Table.FROMSERVER).is(false)).queryList();
-        sendEventChanges(dhisApi, events);
+        sendEventChanges(dhisApi, UploadPlanner.getPendingEvents());
     }
 
-    static void sendEventChanges(DhisApi dhisApi, List<Event> events) throws APIException {
+    static List<Event> sendEventChanges(DhisApi dhisApi, List<Event> events) throws APIException {
         if (events == null || events.isEmpty()) {
-            return;
+            return new ArrayList<>();
         }
 
         for (int i = 0; i < events.size(); i++) {/* removing events with local enrollment reference. In this case, the enrollment needs to be synced first*/
@@ -99,9 +156,209 @@ final class TrackerDataSender {
         }
         Log.d(CLASS_TAG, "got this many events to send:" + events.size());
 
+        List<Event> importedEvents = new ArrayList<>();
+        if (dataValueDeltaUploadThreshold > 0) {
+            for (int i = 0; i < events.size(); i++) {
+                if (sendDataValueChanges(dhisApi, events.get(i), importedEvents)) {
+                    events.remove(i);
+                    i--;
+                }
+            }
+        }
+
+        int batchSize = eventUploadBatchSize;
+        if (batchSize > 1 && events.size() > 1) {
+            for (int i = 0; i < events.size(); i += batchSize) {
+                postEvents(events.subList(i, Math.min(i + batchSize, events.size())), dhisApi, importedEvents);
+            }
+        } else {
+            for (Event event : events) {
+                sendEvent(dhisApi, event, importedEvents);
+            }
+        }
+        clearDataValueChanges(importedEvents);
+        updateEventTimestamps(dhisApi, importedEvents);
+        return importedEvents;
+    }
+
+    /**
+     * Sends the changed data values of an event which exists on the server one by one, if
+     * only its data values have changed and not more than the threshold of them.
+     *
+     * @return false if the whole event has to be sent instead
+     */
+    private static boolean sendDataValueChanges(DhisApi dhisApi, Event event, List<Event> importedEvents) throws APIException {
+        if (event.getCreated() == null) {
+            return false;
+        }
+        OutboxItem outboxItem = OutboxController.getItem(FailedItem.EVENT, event.getLocalId());
+        if (outboxItem == null || !OutboxItem.OPERATION_UPDATE_DATA_VALUES.equals(outboxItem.getOperation())) {
+            return false;
+        }
+        List<DataValue> dataValues = new Select().from(DataValue.class).where(
+                Condition.column(DataValue$Table.LOCALEVENTID).is(event.getLocalId()),
+                Condition.column(DataValue$Table.CHANGED).is(true)).queryList();
+        if (dataValues.isEmpty() || dataValues.size() > dataValueDeltaUploadThreshold) {
+            return false;
+        }
+
+        Log.d(CLASS_TAG, "sending " + dataValues.size() + " changed data values of event: " + event.getEvent());
+        try {
+            for (DataValue dataValue : dataValues) {
+                Response response = dhisApi.putEventDataValue(event.getEvent(),
+                        dataValue.getDataElement(), getDataValueBody(event, dataValue));
+                ImportSummary importSummary = null;
+                if (response.getStatus() >= 200 && response.getStatus() < 300) {
+                    importSummary = getImportSummary(response);
+                }
+                if (importSummary == null) {
+                    throw APIException.httpError(response.getUrl(), response);
+                }
+                handleImportSummary(importSummary, FailedItem.EVENT, event.getLocalId());
+                if (!ImportSummary.SUCCESS.equals(importSummary.getStatus()) &&
+                        !ImportSummary.OK.equals(importSummary.getStatus())) {
+                    return true;
+                }
+                clearDataValueChange(event.getLocalId(), dataValue);
+            }
+            event.setFromServer(true);
+            event.save();
+            // the values which have been sent, for clearDataValueChanges
+            event.setDataValues(dataValues);
+            OutboxController.remove(FailedItem.EVENT, event.getLocalId());
+            importedEvents.add(event);
+        } catch (APIException apiException) {
+            NetworkUtils.handleEventSendException(apiException, event);
+            OutboxController.registerFailure(FailedItem.EVENT, event.getLocalId());
+        }
+        return true;
+    }
+
+    private static Map<String, Object> getDataValueBody(Event event, DataValue dataValue) {
+        Map<String, Object> body = new HashMap<>();
+        body.put("event", event.getEvent());
+        body.put("program", event.getProgramId());
+        body.put("programStage", event.getProgramStageId());
+        body.put("orgUnit", event.getOrganisationUnitId());
+        body.put("status", event.getStatus());
+        body.put("eventDate", event.getEventDate());
+        List<DataValue> dataValues = new ArrayList<>();
+        dataValues.add(dataValue);
+        body.put("dataValues", dataValues);
+        return body;
+    }
+
+    /**
+     * Clears the change flags of the data values which have been sent with the given events.
+     * Values which have been changed again while they were being sent keep their flag.
+     */
+    private static void clearDataValueChanges(final List<Event> importedEvents) {
+        if (importedEvents.isEmpty()) {
+            return;
+        }
+        TransactionManager.transact(Dhis2Database.NAME, new Runnable() {
+            @Override
+            public void run() {
+                for (Event event : importedEvents) {
+                    for (DataValue dataValue : event.getDataValues()) {
+                        clearDataValueChange(event.getLocalId(), dataValue);
+                    }
+                }
+            }
+        });
+    }
+
+    private static void clearDataValueChange(long localEventId, DataValue sentDataValue) {
+        Condition value = sentDataValue.getValue() == null ?
+                Condition.column(DataValue$Table.VALUE).isNull() :
+                Condition.column(DataValue$Table.VALUE).is(sentDataValue.getValue());
+        new Update<>(DataValue.class).set(Condition.column(DataValue$Table.CHANGED).is(false))
+                .where(Condition.column(DataValue$Table.LOCALEVENTID).is(localEventId),
+                        Condition.column(DataValue$Table.DATAELEMENT).is(sentDataValue.getDataElement()),
+                        value)
+                .queryClose();
+    }
+
+    /**
+     * Sends the given events to the server in one request, creating new events and updating
+     * existing ones. The returned import summaries are matched to the events by reference.
+     * If some of the events are rejected, the server answers 409 Conflict with the import
+     * summaries of all events in the body, so only the rejected events and events without
+     * an import summary are marked as failed. Any other response outside of 2xx fails all of
+     * the events.
+     */
+    private static void postEvents(List<Event> events, DhisApi dhisApi, List<Event> importedEvents) throws APIException {
+        Map<String, List<Event>> body = new HashMap<>();
+        body.put("events", events);
+        try {
+            Response response = dhisApi.postEvents(body);
+            if (response.getStatus() < 200 || response.getStatus() >= 300) {
+                throw APIException.httpError(response.getUrl(), response);
+            }
+            List<Event> eventsWithoutSummary = applyEventImportSummaries(events,
+                    getImportSummaries(response), importedEvents);
+            registerEventFailures(eventsWithoutSummary,
+                    APIException.httpError(response.getUrl(), response));
+        } catch (APIException apiException) {
+            List<Event> failedEvents = events;
+            if (apiException.getKind() == APIException.Kind.HTTP &&
+                    apiException.getResponse().getStatus() == HttpURLConnection.HTTP_CONFLICT &&
+                    apiException.getResponse().getBody() != null) {
+                failedEvents = applyEventImportSummaries(events,
+                        getImportSummaries(apiException.getResponse()), importedEvents);
+            }
+            registerEventFailures(failedEvents, apiException);
+        }
+    }
+
+    private static void registerEventFailures(List<Event> events, APIException apiException) {
         for (Event event : events) {
-            sendEventChanges(dhisApi, event);
+            NetworkUtils.handleEventSendException(apiException, event);
+            OutboxController.registerFailure(FailedItem.EVENT, event.getLocalId());
+        }
+    }
+
+    /**
+     * Applies the import summaries to the events they belong to.
+     *
+     * @return the events without an import summary
+     */
+    private static List<Event> applyEventImportSummaries(List<Event> events, List<ImportSummary> importSummaries,
+                                                         List<Event> importedEvents) {
+        List<Event> eventsWithoutSummary = new ArrayList<>();
+        Map<String, ImportSummary> importSummaryMap = new HashMap<>();
+        for (ImportSummary importSummary : importSummaries) {
+            if (importSummary.getReference() != null) {
+                importSummaryMap.put(importSummary.getReference(), importSummary);
+            }
+        }
+
+        for (int i = 0; i < events.size(); i++) {
+            Event event = events.get(i);
+            ImportSummary importSummary = importSummaryMap.get(event.getEvent());
+            if (importSummary == null && importSummaries.size() == events.size()) {
+                // summaries without reference are returned in the same order as sent
+                importSummary = importSummaries.get(i);
+            }
+            if (importSummary == null) {
+                Log.d(CLASS_TAG, "no import summary for event: " + event.getEvent());
+                eventsWithoutSummary.add(event);
+                continue;
+            }
+            handleImportSummary(importSummary, FailedItem.EVENT, event.getLocalId());
+            if (ImportSummary.SUCCESS.equals(importSummary.getStatus()) ||
+                    ImportSummary.OK.equals(importSummary.getStatus())) {
+                event.setFromServer(true);
+                event.save();
+                OutboxController.remove(FailedItem.EVENT, event.getLocalId());
+                if (Utils.isLocal(event.getEvent()) && isNewReference(event.getEvent(), importSummary)) {
+                    updateEventReferences(event.getLocalId(), importSummary.getReference());
+                    event.setEvent(importSummary.getReference());
+                }
+                importedEvents.add(event);
+            }
         }
+        return eventsWithoutSummary;
     }
 
     static void sendEventChanges(DhisApi dhisApi, Event event) throws APIException {
@@ -109,18 +366,27 @@ final class TrackerDataSender {
             return;
         }
 
+        List<Event> importedEvents = new ArrayList<>();
+        if (dataValueDeltaUploadThreshold <= 0 || !sendDataValueChanges(dhisApi, event, importedEvents)) {
+            sendEvent(dhisApi, event, importedEvents);
+        }
+        clearDataValueChanges(importedEvents);
+        updateEventTimestamps(dhisApi, importedEvents);
+    }
+
+    private static void sendEvent(DhisApi dhisApi, Event event, List<Event> importedEvents) throws APIException {
         if (Utils.isLocal(event.getEnrollment()) && event.getEnrollment() != null/*if enrollments==null, then it is probably a single event without reg*/) {
             return;
         }
 
         if (event.getCreated() == null) {
-            postEvent(event, dhisApi);
+            postEvent(event, dhisApi, importedEvents);
         } else {
-            putEvent(event, dhisApi);
+            putEvent(event, dhisApi, importedEvents);
         }
     }
 
-    private static void postEvent(Event event, DhisApi dhisApi) throws APIException {
+    private static void postEvent(Event event, DhisApi dhisApi, List<Event> importedEvents) throws APIException {
         try {
             Response response = dhisApi.postEvent(event);
             if (response.getStatus() == 200) {
@@ -128,22 +394,24 @@ final class TrackerDataSender {
                 handleImportSummary(importSummary, FailedItem.EVENT, event.getLocalId());
                 if (ImportSummary.SUCCESS.equals(importSummary.getStatus()) ||
                         ImportSummary.OK.equals(importSummary.getStatus())) {
-                    // also, we will need to find UUID of newly created event,
-                    // which is contained inside of HTTP Location header
-                    Header header = NetworkUtils.findLocationHeader(response.getHeaders());
                     // change state and save event
                     event.setFromServer(true);
                     event.save();
-                    clearFailedItem(FailedItem.EVENT, event.getLocalId());
-                    UpdateEventTimestamp(event, dhisApi);
+                    OutboxController.remove(FailedItem.EVENT, event.getLocalId());
+                    if (isNewReference(event.getEvent(), importSummary)) {
+                        updateEventReferences(event.getLocalId(), importSummary.getReference());
+                        event.setEvent(importSummary.getReference());
+                    }
+                    importedEvents.add(event);
                 }
             }
         } catch (APIException apiException) {
             NetworkUtils.handleEventSendException(apiException, event);
+            OutboxController.registerFailure(FailedItem.EVENT, event.getLocalId());
         }
     }
 
-    private static void putEvent(Event event, DhisApi dhisApi) throws APIException {
+    private static void putEvent(Event event, DhisApi dhisApi, List<Event> importedEvents) throws APIException {
         try {
             Response response = dhisApi.putEvent(event.getEvent(), event);
             if (response.getStatus() == 200) {
@@ -154,53 +422,95 @@ final class TrackerDataSender {
 
                     event.setFromServer(true);
                     event.save();
-                    clearFailedItem(FailedItem.EVENT, event.getLocalId());
-                    UpdateEventTimestamp(event, dhisApi);
+                    OutboxController.remove(FailedItem.EVENT, event.getLocalId());
+                    importedEvents.add(event);
                 }
             }
         } catch (APIException apiException) {
             NetworkUtils.handleEventSendException(apiException, event);
+            OutboxController.registerFailure(FailedItem.EVENT, event.getLocalId());
         }
     }
 
-    private static void updateEventReferences(long localId, String newReference) {
-        new Update(DataValue.class).set(Condition.column
-                (DataValue$Table.EVENT).is
-                (newReference)).where(Condition.column(DataValue$Table.LOCALEVENTID).is(localId)).async().execute();
-
-        new Update(Event.class).set(Condition.column
-                (Event$Table.EVENT).is
-                (newReference), Condition.column(Event$Table.FROMSERVER).
-                is(true)).where(Condition.column(Event$Table.LOCALID).is(localId)).async().execute();
+    private static void updateEventReferences(final long localId, final String newReference) {
+        DbUtils.transact(new Runnable() {
+            @Override
+            public void run() {
+                new Update(DataValue.class).set(Condition.column
+                        (DataValue$Table.EVENT).is
+                        (newReference)).where(Condition.column(DataValue$Table.LOCALEVENTID).is(localId)).queryClose();
+
+                new Update(Event.class).set(Condition.column
+                        (Event$Table.EVENT).is
+                        (newReference), Condition.column(Event$Table.FROMSERVER).
+                        is(true)).where(Condition.column(Event$Table.LOCALID).is(localId)).queryClose();
+            }
+        });
         Event event = new Event();
         event.save();
         event.delete();//for triggering modelchangelistener
     }
 
-    private static void UpdateEventTimestamp(Event event, DhisApi dhisApi) throws APIException {
-        try {
-            final Map<String, String> QUERY_PARAMS = new HashMap<>();
-            QUERY_PARAMS.put("fields", "created,lastUpdated");
-            Event updatedEvent = dhisApi
-                    .getEvent(event.getEvent(), QUERY_PARAMS);
-
-            // merging updated timestamp to local event model
-            event.setCreated(updatedEvent.getCreated());
-            event.setLastUpdated(updatedEvent.getLastUpdated());
-            event.save();
-        } catch (APIException apiException) {
-            NetworkUtils.handleApiException(apiException);
+    /**
+     * Import summaries don't contain the created and last updated time of imported items,
+     * so they are loaded for all events imported in one pass with as few requests as possible
+     * and written back in one transaction.
+     */
+    private static void updateEventTimestamps(DhisApi dhisApi, List<Event> importedEvents) throws APIException {
+        if (importedEvents.isEmpty()) {
+            return;
+        }
+        Map<String, Event> eventMap = new HashMap<>();
+        for (Event event : importedEvents) {
+            eventMap.put(event.getEvent(), event);
+        }
+
+        final List<Event> updatedEvents = new ArrayList<>();
+        Set<String> missingUids = new HashSet<>(eventMap.keySet());
+        for (List<String> uids : splitUids(eventMap.keySet())) {
+            try {
+                Map<String, String> queryMap = getTimestampQueryMap("event");
+                queryMap.put("event", TextUtils.join(";", uids));
+                queryMap.put("pageSize", String.valueOf(uids.size()));
+                Response response = dhisApi.queryEvents(queryMap);
+                for (Event updatedEvent : getItems(response, ApiEndpointContainer.EVENTS, Event.class)) {
+                    Event event = eventMap.get(updatedEvent.getEvent());
+                    if (event != null && missingUids.remove(updatedEvent.getEvent())) {
+                        // merging updated timestamp to local event model
+                        event.setCreated(updatedEvent.getCreated());
+                        event.setLastUpdated(updatedEvent.getLastUpdated());
+                        updatedEvents.add(event);
+                    }
+                }
+            } catch (APIException apiException) {
+                NetworkUtils.handleApiException(apiException);
+            }
         }
+
+        logMissingTimestamps(FailedItem.EVENT, missingUids);
+
+        TransactionManager.transact(Dhis2Database.NAME, new Runnable() {
+            @Override
+            public void run() {
+                for (Event event : updatedEvents) {
+                    new Update<>(Event.class).set(
+                            Condition.column(Event$Table.CREATED).is(event.getCreated()),
+                            Condition.column(Event$Table.CREATEDMILLIS).is(event.getCreatedMillis()),
+                            Condition.column(Event$Table.LASTUPDATED).is(event.getLastUpdated()),
+                            Condition.column(Event$Table.LASTUPDATEDMILLIS).is(event.getLastUpdatedMillis()))
+                            .where(Condition.column(Event$Table.LOCALID).is(event.getLocalId())).queryClose();
+                }
+            }
+        });
     }
 
     static void sendEnrollmentChanges(DhisApi dhisApi, boolean sendEvents) throws APIException {
-        List<Enrollment> enrollments = new Select().from(Enrollment.class).where(Condition.column(Enrollment$Table.FROMSERVER).is(false)).queryList();
-        sendEnrollmentChanges(dhisApi, enrollments, sendEvents);
+        sendEnrollmentChanges(dhisApi, UploadPlanner.getPendingEnrollments(), sendEvents);
     }
 
-    static void sendEnrollmentChanges(DhisApi dhisApi, List<Enrollment> enrollments, boolean sendEvents) throws APIException {
+    static List<Enrollment> sendEnrollmentChanges(DhisApi dhisApi, List<Enrollment> enrollments, boolean sendEvents) throws APIException {
         if (enrollments == null || enrollments.isEmpty()) {
-            return;
+            return new ArrayList<>();
         }
 
         for (int i = 0; i < enrollments.size(); i++) {/* workaround for not attempting to upload enrollments with local tei reference*/
@@ -211,36 +521,38 @@ final class TrackerDataSender {
             }
         }
         Log.d(CLASS_TAG, "got this many enrollments to send:" + enrollments.size());
+
+        List<Enrollment> importedEnrollments = new ArrayList<>();
+        List<Event> events = new ArrayList<>();
         for (Enrollment enrollment : enrollments) {
-            sendEnrollmentChanges(dhisApi, enrollment, sendEvents);
+            boolean success;
+            if (enrollment.getCreated() == null) {
+                success = postEnrollment(enrollment, dhisApi, importedEnrollments);
+            } else {
+                success = putEnrollment(enrollment, dhisApi, importedEnrollments);
+            }
+            if (success && sendEvents) {
+                events.addAll(TrackerController.getEventsByEnrollment(enrollment.getLocalId()));
+            }
+        }
+        updateEnrollmentTimestamps(dhisApi, importedEnrollments);
+
+        if (sendEvents) {
+            sendEventChanges(dhisApi, events);
         }
+        return importedEnrollments;
     }
 
     static void sendEnrollmentChanges(DhisApi dhisApi, Enrollment enrollment, boolean sendEvents) throws APIException {
         if (enrollment == null) {
             return;
         }
-        if (Utils.isLocal(enrollment.getTrackedEntityInstance())) {//don't send enrollment with locally made uid
-            return;
-        }
-        boolean success;
-
-        if(enrollment.getCreated() == null) {
-            success = postEnrollment(enrollment, dhisApi);
-            if( success && sendEvents ) {
-                List<Event> events = TrackerController.getEventsByEnrollment(enrollment.getLocalId());
-                sendEventChanges(dhisApi, events);
-            }
-        } else {
-            success = putEnrollment(enrollment, dhisApi);
-            if( success && sendEvents ) {
-                List<Event> events = TrackerController.getEventsByEnrollment(enrollment.getLocalId());
-                sendEventChanges(dhisApi, events);
-            }
-        }
+        List<Enrollment> enrollments = new ArrayList<>();
+        enrollments.add(enrollment);
+        sendEnrollmentChanges(dhisApi, enrollments, sendEvents);
     }
 
-    private static boolean postEnrollment(Enrollment enrollment, DhisApi dhisApi) throws APIException {
+    private static boolean postEnrollment(Enrollment enrollment, DhisApi dhisApi, List<Enrollment> importedEnrollments) throws APIException {
         try {
             Response response = dhisApi.postEnrollment(enrollment);
             if (response.getStatus() == 200) {
@@ -254,18 +566,23 @@ final class TrackerDataSender {
                     //enrollment.setState(State.SYNCED);
                     enrollment.setFromServer(true);
                     enrollment.save();
-                    clearFailedItem(FailedItem.ENROLLMENT, enrollment.getLocalId());
-                    UpdateEnrollmentTimestamp(enrollment, dhisApi);
+                    OutboxController.remove(FailedItem.ENROLLMENT, enrollment.getLocalId());
+                    if (isNewReference(enrollment.getEnrollment(), importSummary)) {
+                        updateEnrollmentReferences(enrollment.getLocalId(), importSummary.getReference());
+                        enrollment.setEnrollment(importSummary.getReference());
+                    }
+                    importedEnrollments.add(enrollment);
                 }
             }
         } catch (APIException apiException) {
             NetworkUtils.handleEnrollmentSendException(apiException, enrollment);
+            OutboxController.registerFailure(FailedItem.ENROLLMENT, enrollment.getLocalId());
             return false;
         }
         return true;
     }
 
-    private static boolean putEnrollment(Enrollment enrollment, DhisApi dhisApi) throws APIException {
+    private static boolean putEnrollment(Enrollment enrollment, DhisApi dhisApi, List<Enrollment> importedEnrollments) throws APIException {
         try {
             Response response = dhisApi.putEnrollment(enrollment.getEnrollment(), enrollment);
             if (response.getStatus() == 200) {
@@ -278,81 +595,137 @@ final class TrackerDataSender {
                     //enrollment.setState(State.SYNCED);
                     enrollment.setFromServer(true);
                     enrollment.save();
-                    clearFailedItem(FailedItem.ENROLLMENT, enrollment.getLocalId());
-                    UpdateEnrollmentTimestamp(enrollment, dhisApi);
+                    OutboxController.remove(FailedItem.ENROLLMENT, enrollment.getLocalId());
+                    importedEnrollments.add(enrollment);
                 }
             }
         } catch (APIException apiException) {
             NetworkUtils.handleEnrollmentSendException(apiException, enrollment);
+            OutboxController.registerFailure(FailedItem.ENROLLMENT, enrollment.getLocalId());
             return false;
         }
         return true;
     }
 
-    private static void updateEnrollmentReferences(long localId, String newReference) {
+    private static void updateEnrollmentReferences(final long localId, final String newReference) {
         //updating any local events that had reference to local enrollment to new
         //reference from server.
         Log.d(CLASS_TAG, "updating enrollment references");
-        new Update(Event.class).set(Condition.column
-                (Event$Table.ENROLLMENT).is
-                (newReference)).where(Condition.column(Event$Table.LOCALENROLLMENTID).is(localId)).async().execute();
-
-        new Update(Enrollment.class).set(Condition.column
-                (Enrollment$Table.ENROLLMENT).is
-                (newReference), Condition.column(Enrollment$Table.FROMSERVER)
-                .is(true)).where(Condition.column(Enrollment$Table.LOCALID).is
-                (localId)).async().execute();
+        DbUtils.transact(new Runnable() {
+            @Override
+            public void run() {
+                new Update(Event.class).set(Condition.column
+                        (Event$Table.ENROLLMENT).is
+                        (newReference)).where(Condition.column(Event$Table.LOCALENROLLMENTID).is(localId)).queryClose();
+
+                new Update(Enrollment.class).set(Condition.column
+                        (Enrollment$Table.ENROLLMENT).is
+                        (newReference), Condition.column(Enrollment$Table.FROMSERVER)
+                        .is(true)).where(Condition.column(Enrollment$Table.LOCALID).is
+                        (localId)).queryClose();
+            }
+        });
     }
 
-    private static void UpdateEnrollmentTimestamp(Enrollment enrollment, DhisApi dhisApi) throws APIException {
-        try {
-            final Map<String, String> QUERY_PARAMS = new HashMap<>();
-            QUERY_PARAMS.put("fields", "created,lastUpdated");
-            Enrollment updatedEnrollment = dhisApi
-                    .getEnrollment(enrollment.getEnrollment(), QUERY_PARAMS);
-
-            // merging updated timestamp to local enrollment model
-            enrollment.setCreated(updatedEnrollment.getCreated());
-            enrollment.setLastUpdated(updatedEnrollment.getLastUpdated());
-            enrollment.save();
-        } catch (APIException apiException) {
-            NetworkUtils.handleApiException(apiException);
+    private static void updateEnrollmentTimestamps(DhisApi dhisApi, List<Enrollment> importedEnrollments) throws APIException {
+        if (importedEnrollments.isEmpty()) {
+            return;
+        }
+        Map<String, Enrollment> enrollmentMap = new HashMap<>();
+        Set<String> trackedEntityInstanceUids = new HashSet<>();
+        for (Enrollment enrollment : importedEnrollments) {
+            enrollmentMap.put(enrollment.getEnrollment(), enrollment);
+            trackedEntityInstanceUids.add(enrollment.getTrackedEntityInstance());
+        }
+
+        // the enrollments endpoint can't be queried by enrollment uids, so they are loaded
+        // nested in their tracked entity instances, which can be queried by uids
+        final List<Enrollment> updatedEnrollments = new ArrayList<>();
+        Set<String> missingUids = new HashSet<>(enrollmentMap.keySet());
+        for (List<String> uids : splitUids(trackedEntityInstanceUids)) {
+            try {
+                Map<String, String> queryMap = getTimestampQueryMap("trackedEntityInstance");
+                queryMap.put("fields", "trackedEntityInstance,enrollments[enrollment,created,lastUpdated]");
+                queryMap.put("trackedEntityInstance", TextUtils.join(";", uids));
+                queryMap.put("pageSize", String.valueOf(uids.size()));
+                Response response = dhisApi.queryTrackedEntityInstances(queryMap);
+                for (TrackedEntityInstance trackedEntityInstance : getItems(response,
+                        ApiEndpointContainer.TRACKED_ENTITY_INSTANCES, TrackedEntityInstance.class)) {
+                    if (trackedEntityInstance.getEnrollments() == null) {
+                        continue;
+                    }
+                    for (Enrollment updatedEnrollment : trackedEntityInstance.getEnrollments()) {
+                        Enrollment enrollment = enrollmentMap.get(updatedEnrollment.getEnrollment());
+                        if (enrollment != null && missingUids.remove(updatedEnrollment.getEnrollment())) {
+                            // merging updated timestamp to local enrollment model
+                            enrollment.setCreated(updatedEnrollment.getCreated());
+                            enrollment.setLastUpdated(updatedEnrollment.getLastUpdated());
+                            updatedEnrollments.add(enrollment);
+                        }
+                    }
+                }
+            } catch (APIException apiException) {
+                NetworkUtils.handleApiException(apiException);
+            }
         }
+        logMissingTimestamps(FailedItem.ENROLLMENT, missingUids);
+
+        TransactionManager.transact(Dhis2Database.NAME, new Runnable() {
+            @Override
+            public void run() {
+                for (Enrollment enrollment : updatedEnrollments) {
+                    new Update<>(Enrollment.class).set(
+                            Condition.column(Enrollment$Table.CREATED).is(enrollment.getCreated()),
+                            Condition.column(Enrollment$Table.CREATEDMILLIS).is(enrollment.getCreatedMillis()),
+                            Condition.column(Enrollment$Table.LASTUPDATED).is(enrollment.getLastUpdated()),
+                            Condition.column(Enrollment$Table.LASTUPDATEDMILLIS).is(enrollment.getLastUpdatedMillis()))
+                            .where(Condition.column(Enrollment$Table.LOCALID).is(enrollment.getLocalId())).queryClose();
+                }
+            }
+        });
     }
 
     static void sendTrackedEntityInstanceChanges(DhisApi dhisApi, boolean sendEnrollments) throws APIException {
-        List<TrackedEntityInstance> trackedEntityInstances = new Select().from(TrackedEntityInstance.class).where(Condition.column(TrackedEntityInstance$Table.FROMSERVER).is(false)).queryList();
-        sendTrackedEntityInstanceChanges(dhisApi, trackedEntityInstances, sendEnrollments);
+        sendTrackedEntityInstanceChanges(dhisApi, UploadPlanner.getPendingTrackedEntityInstances(), sendEnrollments);
     }
 
-    static void sendTrackedEntityInstanceChanges(DhisApi dhisApi, List<TrackedEntityInstance> trackedEntityInstances, boolean sendEnrollments) throws APIException {
+    static List<TrackedEntityInstance> sendTrackedEntityInstanceChanges(DhisApi dhisApi, List<TrackedEntityInstance> trackedEntityInstances, boolean sendEnrollments) throws APIException {
         if (trackedEntityInstances == null || trackedEntityInstances.isEmpty()) {
-            return;
+            return new ArrayList<>();
         }
         Log.d(CLASS_TAG, "got this many teis to send:" + trackedEntityInstances.size());
 
+        List<TrackedEntityInstance> importedTrackedEntityInstances = new ArrayList<>();
+        List<Enrollment> enrollments = new ArrayList<>();
         for (TrackedEntityInstance trackedEntityInstance : trackedEntityInstances) {
-            sendTrackedEntityInstanceChanges(dhisApi, trackedEntityInstance, sendEnrollments);
+            boolean success;
+            if (trackedEntityInstance.getCreated() == null) {
+                success = postTrackedEntityInstance(trackedEntityInstance, dhisApi, importedTrackedEntityInstances);
+            } else {
+                success = putTrackedEntityInstance(trackedEntityInstance, dhisApi, importedTrackedEntityInstances);
+            }
+            if (success && sendEnrollments) {
+                enrollments.addAll(TrackerController.getEnrollments(trackedEntityInstance));
+            }
+        }
+        updateTrackedEntityInstanceTimestamps(dhisApi, importedTrackedEntityInstances);
+
+        if (sendEnrollments) {
+            sendEnrollmentChanges(dhisApi, enrollments, sendEnrollments);
         }
+        return importedTrackedEntityInstances;
     }
 
     static void sendTrackedEntityInstanceChanges(DhisApi dhisApi, TrackedEntityInstance trackedEntityInstance, boolean sendEnrollments) throws APIException {
         if (trackedEntityInstance == null) {
             return;
         }
-        boolean success;
-        if(trackedEntityInstance.getCreated() == null) {
-            success = postTrackedEntityInstance(trackedEntityInstance, dhisApi);
-        } else {
-            success = putTrackedEntityInstance(trackedEntityInstance, dhisApi);
-        }
-        if( success && sendEnrollments ) {
-            List<Enrollment> enrollments = TrackerController.getEnrollments(trackedEntityInstance);
-            sendEnrollmentChanges(dhisApi, enrollments, sendEnrollments);
-        }
+        List<TrackedEntityInstance> trackedEntityInstances = new ArrayList<>();
+        trackedEntityInstances.add(trackedEntityInstance);
+        sendTrackedEntityInstanceChanges(dhisApi, trackedEntityInstances, sendEnrollments);
     }
 
-    private static boolean postTrackedEntityInstance(TrackedEntityInstance trackedEntityInstance, DhisApi dhisApi) throws APIException {
+    private static boolean postTrackedEntityInstance(TrackedEntityInstance trackedEntityInstance, DhisApi dhisApi, List<TrackedEntityInstance> importedTrackedEntityInstances) throws APIException {
         try {
             Response response = dhisApi.postTrackedEntityInstance(trackedEntityInstance);
             if (response.getStatus() == 200) {
@@ -367,18 +740,24 @@ final class TrackerDataSender {
                     trackedEntityInstance.setFromServer(true);
                     trackedEntityInstance.save();
 
-                    clearFailedItem(FailedItem.TRACKEDENTITYINSTANCE, trackedEntityInstance.getLocalId());
-                    UpdateTrackedEntityInstanceTimestamp(trackedEntityInstance, dhisApi);
+                    OutboxController.remove(FailedItem.TRACKEDENTITYINSTANCE, trackedEntityInstance.getLocalId());
+                    if (isNewReference(trackedEntityInstance.getTrackedEntityInstance(), importSummary)) {
+                        updateTrackedEntityInstanceReferences(trackedEntityInstance.getLocalId(),
+                                importSummary.getReference(), trackedEntityInstance.getTrackedEntityInstance());
+                        trackedEntityInstance.setTrackedEntityInstance(importSummary.getReference());
+                    }
+                    importedTrackedEntityInstances.add(trackedEntityInstance);
                 }
             }
         } catch (APIException apiException) {
             NetworkUtils.handleTrackedEntityInstanceSendException(apiException, trackedEntityInstance);
+            OutboxController.registerFailure(FailedItem.TRACKEDENTITYINSTANCE, trackedEntityInstance.getLocalId());
             return false;
         }
         return true;
     }
 
-    private static boolean putTrackedEntityInstance(TrackedEntityInstance trackedEntityInstance, DhisApi dhisApi) throws APIException {
+    private static boolean putTrackedEntityInstance(TrackedEntityInstance trackedEntityInstance, DhisApi dhisApi, List<TrackedEntityInstance> importedTrackedEntityInstances) throws APIException {
         try {
             Response response = dhisApi.putTrackedEntityInstance(trackedEntityInstance.getTrackedEntityInstance(), trackedEntityInstance);
             if (response.getStatus() == 200) {
@@ -389,158 +768,223 @@ final class TrackerDataSender {
                     //trackedentityinstance.setState(State.SYNCED);
                     trackedEntityInstance.setFromServer(true);
                     trackedEntityInstance.save();
-                    clearFailedItem(FailedItem.TRACKEDENTITYINSTANCE, trackedEntityInstance.getLocalId());
-                    UpdateTrackedEntityInstanceTimestamp(trackedEntityInstance, dhisApi);
+                    OutboxController.remove(FailedItem.TRACKEDENTITYINSTANCE, trackedEntityInstance.getLocalId());
+                    importedTrackedEntityInstances.add(trackedEntityInstance);
                 }
             }
         } catch (APIException apiException) {
             NetworkUtils.handleTrackedEntityInstanceSendException(apiException, trackedEntityInstance);
+            OutboxController.registerFailure(FailedItem.TRACKEDENTITYINSTANCE, trackedEntityInstance.getLocalId());
             return false;
         }
         return true;
     }
 
-    private static void updateTrackedEntityInstanceReferences(long localId, String newTrackedEntityInstanceReference, String oldTempTrackedEntityInstanceReference) {
-        //update references with uid received from server
-        new Update(TrackedEntityAttributeValue.class).set(Condition.column
-                (TrackedEntityAttributeValue$Table.TRACKEDENTITYINSTANCEID).is
-                (newTrackedEntityInstanceReference)).where(Condition.column(TrackedEntityAttributeValue$Table.LOCALTRACKEDENTITYINSTANCEID).is(localId)).async().execute();
-
-        new Update(Event.class).set(Condition.column(Event$Table.
-                TRACKEDENTITYINSTANCE).is(newTrackedEntityInstanceReference)).where(Condition.
-                column(Event$Table.TRACKEDENTITYINSTANCE).is(oldTempTrackedEntityInstanceReference)).async().execute();
-
-        new Update(Enrollment.class).set(Condition.column
-                (Enrollment$Table.TRACKEDENTITYINSTANCE).is(newTrackedEntityInstanceReference)).
-                where(Condition.column(Enrollment$Table.TRACKEDENTITYINSTANCE).is
-                        (oldTempTrackedEntityInstanceReference)).async().execute();
-
-        long updated = new Update(Relationship.class).set(Condition.column(Relationship$Table.TRACKEDENTITYINSTANCEA
-        ).is(newTrackedEntityInstanceReference)).where(Condition.
-                column(Relationship$Table.TRACKEDENTITYINSTANCEA).is(oldTempTrackedEntityInstanceReference)).count();
-
-        updated += new Update(Relationship.class).set(Condition.column(Relationship$Table.TRACKEDENTITYINSTANCEB
-        ).is(newTrackedEntityInstanceReference)).where(Condition.
-                column(Relationship$Table.TRACKEDENTITYINSTANCEB).is(oldTempTrackedEntityInstanceReference)).count();
-
-        Log.d(CLASS_TAG, "updated relationships: " + updated);
-
-                    /* mechanism for triggering updating of relationships
-                    * a relationship can only be uploaded if both involved teis are sent to server
-                    * and have a valid UID.
-                    * So, we check if this tei was just updated with a valid reference, and if there now
-                    * exist >0 relationships that are valid. If >0 relationship is valid, it
-                    * should get uploaded, as it is the first time it has been valid. */
-        boolean hasValidRelationship = false;
-        if (Utils.isLocal(oldTempTrackedEntityInstanceReference)) {
-            List<Relationship> teiIsB = new Select().from(Relationship.class).where(Condition.column(Relationship$Table.TRACKEDENTITYINSTANCEB).is(newTrackedEntityInstanceReference)).queryList();
-            List<Relationship> teiIsA = new Select().from(Relationship.class).where(Condition.column(Relationship$Table.TRACKEDENTITYINSTANCEA).is(newTrackedEntityInstanceReference)).queryList();
-            if (teiIsB != null) {
-                for (Relationship relationship : teiIsB) {
-                    if (!Utils.isLocal(relationship.getTrackedEntityInstanceA())) {
-                        hasValidRelationship = true;
+    private static void updateTrackedEntityInstanceReferences(final long localId, final String newTrackedEntityInstanceReference, final String oldTempTrackedEntityInstanceReference) {
+        final boolean[] fullySynced = {true};
+        DbUtils.transact(new Runnable() {
+            @Override
+            public void run() {
+                //update references with uid received from server
+                new Update(TrackedEntityAttributeValue.class).set(Condition.column
+                        (TrackedEntityAttributeValue$Table.TRACKEDENTITYINSTANCEID).is
+                        (newTrackedEntityInstanceReference)).where(Condition.column(TrackedEntityAttributeValue$Table.LOCALTRACKEDENTITYINSTANCEID).is(localId)).queryClose();
+
+                new Update(Event.class).set(Condition.column(Event$Table.
+                        TRACKEDENTITYINSTANCE).is(newTrackedEntityInstanceReference)).where(Condition.
+                        column(Event$Table.TRACKEDENTITYINSTANCE).is(oldTempTrackedEntityInstanceReference)).queryClose();
+
+                new Update(Enrollment.class).set(Condition.column
+                        (Enrollment$Table.TRACKEDENTITYINSTANCE).is(newTrackedEntityInstanceReference)).
+                        where(Condition.column(Enrollment$Table.TRACKEDENTITYINSTANCE).is
+                                (oldTempTrackedEntityInstanceReference)).queryClose();
+
+                long updated = new Update(Relationship.class).set(Condition.column(Relationship$Table.TRACKEDENTITYINSTANCEA
+                ).is(newTrackedEntityInstanceReference)).where(Condition.
+                        column(Relationship$Table.TRACKEDENTITYINSTANCEA).is(oldTempTrackedEntityInstanceReference)).count();
+
+                updated += new Update(Relationship.class).set(Condition.column(Relationship$Table.TRACKEDENTITYINSTANCEB
+                ).is(newTrackedEntityInstanceReference)).where(Condition.
+                        column(Relationship$Table.TRACKEDENTITYINSTANCEB).is(oldTempTrackedEntityInstanceReference)).count();
+
+                Log.d(CLASS_TAG, "updated relationships: " + updated);
+
+                /* mechanism for triggering updating of relationships
+                 * a relationship can only be uploaded if both involved teis are sent to server
+                 * and have a valid UID.
+                 * So, we check if this tei was just updated with a valid reference, and if there now
+                 * exist >0 relationships that are valid. If >0 relationship is valid, it
+                 * should get uploaded, as it is the first time it has been valid. */
+                boolean hasValidRelationship = false;
+                if (Utils.isLocal(oldTempTrackedEntityInstanceReference)) {
+                    List<Relationship> teiIsB = new Select().from(Relationship.class).where(Condition.column(Relationship$Table.TRACKEDENTITYINSTANCEB).is(newTrackedEntityInstanceReference)).queryList();
+                    List<Relationship> teiIsA = new Select().from(Relationship.class).where(Condition.column(Relationship$Table.TRACKEDENTITYINSTANCEA).is(newTrackedEntityInstanceReference)).queryList();
+                    if (teiIsB != null) {
+                        for (Relationship relationship : teiIsB) {
+                            if (!Utils.isLocal(relationship.getTrackedEntityInstanceA())) {
+                                hasValidRelationship = true;
+                            }
+                        }
+                    }
+                    if (teiIsA != null) {
+                        for (Relationship relationship : teiIsA) {
+                            if (!Utils.isLocal(relationship.getTrackedEntityInstanceB())) {
+                                hasValidRelationship = true;
+                            }
+                        }
                     }
                 }
+                fullySynced[0] = !(hasValidRelationship && updated > 0);
+
+                new Update(TrackedEntityInstance.class).set(Condition.column
+                        (TrackedEntityInstance$Table.TRACKEDENTITYINSTANCE).is
+                        (newTrackedEntityInstanceReference), Condition.column(TrackedEntityInstance$Table.FROMSERVER).is(fullySynced[0])).
+                        where(Condition.column(TrackedEntityInstance$Table.LOCALID).is(localId)).queryClose();
+            }
+        });
+
+        if (!fullySynced[0]) {
+            // sent again in the same pass to upload the relationships which have become valid
+            TrackedEntityInstance trackedEntityInstance = TrackerController.getTrackedEntityInstance(localId);
+            if (trackedEntityInstance != null) {
+                OutboxController.enqueue(FailedItem.TRACKEDENTITYINSTANCE, trackedEntityInstance,
+                        OutboxItem.PRIORITY_NORMAL);
             }
-            if (teiIsA != null) {
-                for (Relationship relationship : teiIsA) {
-                    if (!Utils.isLocal(relationship.getTrackedEntityInstanceB())) {
-                        hasValidRelationship = true;
+        }
+    }
+
+    private static void updateTrackedEntityInstanceTimestamps(DhisApi dhisApi, List<TrackedEntityInstance> importedTrackedEntityInstances) throws APIException {
+        if (importedTrackedEntityInstances.isEmpty()) {
+            return;
+        }
+        Map<String, TrackedEntityInstance> trackedEntityInstanceMap = new HashMap<>();
+        for (TrackedEntityInstance trackedEntityInstance : importedTrackedEntityInstances) {
+            trackedEntityInstanceMap.put(trackedEntityInstance.getTrackedEntityInstance(), trackedEntityInstance);
+        }
+
+        final List<TrackedEntityInstance> updatedTrackedEntityInstances = new ArrayList<>();
+        Set<String> missingUids = new HashSet<>(trackedEntityInstanceMap.keySet());
+        for (List<String> uids : splitUids(trackedEntityInstanceMap.keySet())) {
+            try {
+                Map<String, String> queryMap = getTimestampQueryMap("trackedEntityInstance");
+                queryMap.put("trackedEntityInstance", TextUtils.join(";", uids));
+                queryMap.put("pageSize", String.valueOf(uids.size()));
+                Response response = dhisApi.queryTrackedEntityInstances(queryMap);
+                for (TrackedEntityInstance updatedTrackedEntityInstance : getItems(response,
+                        ApiEndpointContainer.TRACKED_ENTITY_INSTANCES, TrackedEntityInstance.class)) {
+                    String uid = updatedTrackedEntityInstance.getTrackedEntityInstance();
+                    TrackedEntityInstance trackedEntityInstance = trackedEntityInstanceMap.get(uid);
+                    if (trackedEntityInstance != null && missingUids.remove(uid)) {
+                        // merging updated timestamp to local trackedentityinstance model
+                        trackedEntityInstance.setCreated(updatedTrackedEntityInstance.getCreated());
+                        trackedEntityInstance.setLastUpdated(updatedTrackedEntityInstance.getLastUpdated());
+                        updatedTrackedEntityInstances.add(trackedEntityInstance);
                     }
                 }
+            } catch (APIException apiException) {
+                NetworkUtils.handleApiException(apiException);
             }
         }
-        boolean fullySynced = !(hasValidRelationship && updated > 0);
 
-        new Update(TrackedEntityInstance.class).set(Condition.column
-                (TrackedEntityInstance$Table.TRACKEDENTITYINSTANCE).is
-                (newTrackedEntityInstanceReference), Condition.column(TrackedEntityInstance$Table.FROMSERVER).is(fullySynced)).
-                where(Condition.column(TrackedEntityInstance$Table.LOCALID).is(localId)).async().execute();
+        logMissingTimestamps(FailedItem.TRACKEDENTITYINSTANCE, missingUids);
+
+        TransactionManager.transact(Dhis2Database.NAME, new Runnable() {
+            @Override
+            public void run() {
+                for (TrackedEntityInstance trackedEntityInstance : updatedTrackedEntityInstances) {
+                    new Update<>(TrackedEntityInstance.class).set(
+                            Condition.column(TrackedEntityInstance$Table.CREATED).is(trackedEntityInstance.getCreated()),
+                            Condition.column(TrackedEntityInstance$Table.CREATEDMILLIS).is(trackedEntityInstance.getCreatedMillis()),
+                            Condition.column(TrackedEntityInstance$Table.LASTUPDATED).is(trackedEntityInstance.getLastUpdated()),
+                            Condition.column(TrackedEntityInstance$Table.LASTUPDATEDMILLIS).is(trackedEntityInstance.getLastUpdatedMillis()))
+                            .where(Condition.column(TrackedEntityInstance$Table.LOCALID).is(trackedEntityInstance.getLocalId())).queryClose();
+                }
+            }
+        });
     }
 
-    private static void UpdateTrackedEntityInstanceTimestamp(TrackedEntityInstance trackedEntityInstance, DhisApi dhisApi) throws APIException {
-        try {
-            final Map<String, String> QUERY_PARAMS = new HashMap<>();
-            QUERY_PARAMS.put("fields", "created,lastUpdated");
-            TrackedEntityInstance updatedTrackedEntityInstance = dhisApi
-                    .getTrackedEntityInstance(trackedEntityInstance.getTrackedEntityInstance(), QUERY_PARAMS);
-
-            // merging updated timestamp to local trackedentityinstance model
-            trackedEntityInstance.setCreated(updatedTrackedEntityInstance.getCreated());
-            trackedEntityInstance.setLastUpdated(updatedTrackedEntityInstance.getLastUpdated());
-            trackedEntityInstance.save();
-        } catch (APIException apiException) {
-            NetworkUtils.handleApiException(apiException);
+    /**
+     * Returns a query for the uid, created and last updated time of items. Callers add the
+     * parameter selecting the items.
+     */
+    private static Map<String, String> getTimestampQueryMap(String uidField) {
+        final Map<String, String> QUERY_PARAMS = new HashMap<>();
+        QUERY_PARAMS.put("fields", uidField + ",created,lastUpdated");
+        QUERY_PARAMS.put("ouMode", "ACCESSIBLE");
+        return QUERY_PARAMS;
+    }
+
+    /**
+     * Items missing from the batched timestamp query are not loaded one by one. They keep
+     * their local timestamps, and are reported as an error of the synchronization.
+     */
+    private static void logMissingTimestamps(String itemType, Set<String> missingUids) {
+        if (!missingUids.isEmpty()) {
+            Log.e(CLASS_TAG, "Timestamps of uploaded items of type " + itemType +
+                    " missing from the server response: " + TextUtils.join(", ", missingUids));
         }
     }
 
+    private static List<List<String>> splitUids(Collection<String> uids) {
+        List<List<String>> chunks = new ArrayList<>();
+        List<String> chunk = new ArrayList<>();
+        for (String uid : uids) {
+            chunk.add(uid);
+            if (chunk.size() == TIMESTAMP_QUERY_CHUNK_SIZE) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
 
-    static void clearFailedItem(String type, long id) {
-        FailedItem item = TrackerController.getFailedItem(type, id);
-        if (item != null) {
-            item.async().delete();
+    private static <T> List<T> getItems(Response response, String key, Class<T> type) {
+        try {
+            return JsonStreamReader.readList(response, key, type);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        return new ArrayList<>();
+    }
+
+
+    /**
+     * Returns true if the server has imported the item with another uid than the local one,
+     * so references to the item have to be rewritten.
+     */
+    private static boolean isNewReference(String localReference, ImportSummary importSummary) {
+        return importSummary.getReference() != null && !importSummary.getReference().equals(localReference);
     }
 
     private static void handleImportSummary(ImportSummary importSummary, String type, long id) {
         if (ImportSummary.ERROR.equals(importSummary.getStatus())) {
             Log.d(CLASS_TAG, "failed.. ");
             NetworkUtils.handleImportSummaryError(importSummary, type, 200, id);
+            OutboxController.registerFailure(type, id);
         }
     }
 
     private static ImportSummary getImportSummary(Response response) {
-        //because the web api almost randomly gives the responses in different forms, this
-        //method checks which one it is that is being returned, and parses accordingly.
+        //because the web api almost randomly gives the responses in different forms, the
+        //wrapper checks which one it is that is being returned, and parses accordingly.
         try {
-            JsonNode node = DhisController.getInstance().getObjectMapper().
-                    readTree(new StringConverter().fromBody(response.getBody(), String.class));
-            if (node == null) {
-                return null;
-            }
-            if (node.has("response")) {
-                return getPutImportSummary(response);
-            } else {
-                return getPostImportSummary(response);
-            }
+            return ImportSummaryWrapper.getImportSummary(response);
         } catch (IOException e) {
             e.printStackTrace();
-        } catch (ConversionException e) {
-            e.printStackTrace();
         }
         return null;
     }
 
-    private static ImportSummary getPostImportSummary(Response response) {
-        ImportSummary importSummary = null;
+    private static List<ImportSummary> getImportSummaries(Response response) {
         try {
-            String body = new StringConverter().fromBody(response.getBody(), String.class);
-            Log.d(CLASS_TAG, body);
-            importSummary = DhisController.getInstance().getObjectMapper().
-                    readValue(body, ImportSummary.class);
+            return ImportSummaryWrapper.getImportSummaries(response);
         } catch (IOException e) {
             e.printStackTrace();
-        } catch (ConversionException e) {
-            e.printStackTrace();
         }
-        return importSummary;
+        return new ArrayList<>();
     }
 
-    private static ImportSummary getPutImportSummary(Response response) {
-        ApiResponse apiResponse = null;
-        try {
-            String body = new StringConverter().fromBody(response.getBody(), String.class);
-            Log.d(CLASS_TAG, body);
-            apiResponse = DhisController.getInstance().getObjectMapper().
-                    readValue(body, ApiResponse.class);
-            if (apiResponse != null && apiResponse.getImportSummaries() != null && !apiResponse.getImportSummaries().isEmpty()) {
-                return (apiResponse.getImportSummaries().get(0));
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (ConversionException e) {
-            e.printStackTrace();
-        }
-        return null;
-    }
 }
@@ -0,0 +1,354 @@
+/*
+ *  Copyright (c) 2016, University of Oslo
+ *  * All rights reserved.
+ *  *
+ *  * Redistribution and use in source and binary forms, with or without
+ *  * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *  * list of conditions and the following disclaimer.
+ *  *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *  * this list of conditions and the following disclaimer in the documentation
+ *  * and/or other materials provided with the distribution.
+ *  * Neither the name of the HISP project nor the names of its contributors may
+ *  * be used to endorse or promote products derived from this software without
+ *  * specific prior written permission.
+ *  *
+ *  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package org.hisp.dhis.android.sdk.controllers.tracker;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.raizlabs.android.dbflow.config.FlowManager;
+import com.raizlabs.android.dbflow.sql.SqlUtils;
+import com.raizlabs.android.dbflow.structure.Model;
+
+import org.hisp.dhis.android.sdk.controllers.metadata.MetaDataController;
+import org.hisp.dhis.android.sdk.persistence.Dhis2Database;
+import org.hisp.dhis.android.sdk.persistence.models.DataValue;
+import org.hisp.dhis.android.sdk.persistence.models.DataValue$Table;
+import org.hisp.dhis.android.sdk.persistence.models.Enrollment;
+import org.hisp.dhis.android.sdk.persistence.models.Enrollment$Table;
+import org.hisp.dhis.android.sdk.persistence.models.Event;
+import org.hisp.dhis.android.sdk.persistence.models.Event$Table;
+import org.hisp.dhis.android.sdk.persistence.models.ProgramTrackedEntityAttribute;
+import org.hisp.dhis.android.sdk.persistence.models.Relationship;
+import org.hisp.dhis.android.sdk.persistence.models.Relationship$Table;
+import org.hisp.dhis.android.sdk.persistence.models.TrackedEntityAttributeValue;
+import org.hisp.dhis.android.sdk.persistence.models.TrackedEntityAttributeValue$Table;
+import org.hisp.dhis.android.sdk.persistence.models.TrackedEntityInstance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loads tracked entity instances, enrollments and events together with the related items
+ * asked for, instead of letting each model query its own items lazily. Every level of the graph
+ * is read with one IN query (split up for large numbers of items) and attached to the models
+ * with their setters, so that the getters don't query the database again.
+ */
+public final class TrackerGraphLoader {
+
+    /**
+     * The related items to load. ATTRIBUTES, RELATIONSHIPS and ENROLLMENTS apply to tracked
+     * entity instances, ATTRIBUTES and EVENTS to enrollments and DATA_VALUES to events.
+     * DATA_VALUES for enrollments implies EVENTS.
+     */
+    public enum Include {
+        ATTRIBUTES, RELATIONSHIPS, ENROLLMENTS, EVENTS, DATA_VALUES
+    }
+
+    // SQLite allows 999 bound variables per statement
+    private static final int MAX_VARIABLES = 900;
+
+    private TrackerGraphLoader() {
+        // no instances
+    }
+
+    /**
+     * Returns the tracked entity instance with the given local id and the given related items,
+     * or null if it does not exist.
+     */
+    public static TrackedEntityInstance getTrackedEntityInstance(long localId, Include... includes) {
+        TrackedEntityInstance trackedEntityInstance = TrackerController.getTrackedEntityInstance(localId);
+        if (trackedEntityInstance != null) {
+            loadTrackedEntityInstances(Collections.singletonList(trackedEntityInstance), includes);
+        }
+        return trackedEntityInstance;
+    }
+
+    /**
+     * Returns the enrollment with the given local id and the given related items,
+     * or null if it does not exist.
+     */
+    public static Enrollment getEnrollment(long localId, Include... includes) {
+        Enrollment enrollment = TrackerController.getEnrollment(localId);
+        if (enrollment != null) {
+            loadEnrollments(Collections.singletonList(enrollment), includes);
+        }
+        return enrollment;
+    }
+
+    public static void loadTrackedEntityInstances(List<TrackedEntityInstance> trackedEntityInstances,
+                                                  Include... includes) {
+        Set<Include> include = toSet(includes);
+        if (trackedEntityInstances == null || trackedEntityInstances.isEmpty() || include.isEmpty()) {
+            return;
+        }
+
+        Set<String> localIds = new LinkedHashSet<>();
+        Set<String> uids = new LinkedHashSet<>();
+        for (TrackedEntityInstance trackedEntityInstance : trackedEntityInstances) {
+            localIds.add(String.valueOf(trackedEntityInstance.getLocalId()));
+            if (trackedEntityInstance.getTrackedEntityInstance() != null) {
+                uids.add(trackedEntityInstance.getTrackedEntityInstance());
+            }
+        }
+
+        Map<Long, List<TrackedEntityAttributeValue>> attributeValues = null;
+        if (include.contains(Include.ATTRIBUTES)) {
+            attributeValues = getAttributeValues(localIds);
+            for (TrackedEntityInstance trackedEntityInstance : trackedEntityInstances) {
+                trackedEntityInstance.setAttributes(
+                        get(attributeValues, trackedEntityInstance.getLocalId()));
+            }
+        }
+
+        if (include.contains(Include.RELATIONSHIPS)) {
+            Map<String, List<Relationship>> relationships = new HashMap<>();
+            Set<String> loaded = new HashSet<>();
+            for (Relationship relationship : queryIn(Relationship.class,
+                    Relationship$Table.TABLE_NAME, null, uids,
+                    Relationship$Table.TRACKEDENTITYINSTANCEA, Relationship$Table.TRACKEDENTITYINSTANCEB)) {
+                // a relationship between instances in different chunks is read twice
+                String a = relationship.getTrackedEntityInstanceA();
+                String b = relationship.getTrackedEntityInstanceB();
+                if (!loaded.add(relationship.getRelationship() + ':' + a + ':' + b)) {
+                    continue;
+                }
+                put(relationships, a, relationship);
+                if (b != null && !b.equals(a)) {
+                    put(relationships, b, relationship);
+                }
+            }
+            for (TrackedEntityInstance trackedEntityInstance : trackedEntityInstances) {
+                trackedEntityInstance.setRelationships(
+                        get(relationships, trackedEntityInstance.getTrackedEntityInstance()));
+            }
+        }
+
+        if (include.contains(Include.ENROLLMENTS)) {
+            List<Enrollment> enrollments = queryIn(Enrollment.class, Enrollment$Table.TABLE_NAME,
+                    null, localIds, Enrollment$Table.LOCALTRACKEDENTITYINSTANCEID);
+            Map<Long, List<Enrollment>> enrollmentsByInstance = new HashMap<>();
+            for (Enrollment enrollment : enrollments) {
+                put(enrollmentsByInstance, enrollment.getLocalTrackedEntityInstanceId(), enrollment);
+            }
+            for (TrackedEntityInstance trackedEntityInstance : trackedEntityInstances) {
+                trackedEntityInstance.setEnrollments(
+                        get(enrollmentsByInstance, trackedEntityInstance.getLocalId()));
+            }
+            loadEnrollments(enrollments, include, attributeValues);
+        }
+    }
+
+    public static void loadEnrollments(List<Enrollment> enrollments, Include... includes) {
+        loadEnrollments(enrollments, toSet(includes), null);
+    }
+
+    public static void loadEvents(List<Event> events, Include... includes) {
+        if (events != null && !events.isEmpty() && toSet(includes).contains(Include.DATA_VALUES)) {
+            loadDataValues(events);
+        }
+    }
+
+    /**
+     * @param attributeValues the attribute values of the tracked entity instances of the
+     *                        enrollments by local id, or null if they haven't been read yet
+     */
+    private static void loadEnrollments(List<Enrollment> enrollments, Set<Include> include,
+                                        Map<Long, List<TrackedEntityAttributeValue>> attributeValues) {
+        if (enrollments == null || enrollments.isEmpty()) {
+            return;
+        }
+
+        if (include.contains(Include.ATTRIBUTES)) {
+            if (attributeValues == null) {
+                Set<String> trackedEntityInstanceIds = new LinkedHashSet<>();
+                for (Enrollment enrollment : enrollments) {
+                    trackedEntityInstanceIds.add(String.valueOf(enrollment.getLocalTrackedEntityInstanceId()));
+                }
+                attributeValues = getAttributeValues(trackedEntityInstanceIds);
+            }
+            Map<String, List<ProgramTrackedEntityAttribute>> programAttributes = new HashMap<>();
+            for (Enrollment enrollment : enrollments) {
+                String program = enrollment.getProgramId();
+                List<ProgramTrackedEntityAttribute> attributes = programAttributes.get(program);
+                if (attributes == null) {
+                    attributes = MetaDataController.getProgramTrackedEntityAttributes(program);
+                    programAttributes.put(program, attributes);
+                }
+                enrollment.setAttributes(getEnrollmentAttributes(attributes,
+                        get(attributeValues, enrollment.getLocalTrackedEntityInstanceId())));
+            }
+        }
+
+        if (include.contains(Include.EVENTS) || include.contains(Include.DATA_VALUES)) {
+            Set<String> localIds = new LinkedHashSet<>();
+            for (Enrollment enrollment : enrollments) {
+                localIds.add(String.valueOf(enrollment.getLocalId()));
+            }
+            List<Event> events = queryIn(Event.class, Event$Table.TABLE_NAME, null, localIds,
+                    Event$Table.LOCALENROLLMENTID);
+            Map<Long, List<Event>> eventsByEnrollment = new HashMap<>();
+            for (Event event : events) {
+                put(eventsByEnrollment, event.getLocalEnrollmentId(), event);
+            }
+            for (Enrollment enrollment : enrollments) {
+                enrollment.setEvents(get(eventsByEnrollment, enrollment.getLocalId()));
+            }
+            if (include.contains(Include.DATA_VALUES) && !events.isEmpty()) {
+                loadDataValues(events);
+            }
+        }
+    }
+
+    private static void loadDataValues(List<Event> events) {
+        Set<String> localIds = new LinkedHashSet<>();
+        for (Event event : events) {
+            localIds.add(String.valueOf(event.getLocalId()));
+        }
+        Map<Long, List<DataValue>> dataValues = new HashMap<>();
+        for (DataValue dataValue : queryIn(DataValue.class, DataValue$Table.TABLE_NAME, null,
+                localIds, DataValue$Table.LOCALEVENTID)) {
+            put(dataValues, dataValue.getLocalEventId(), dataValue);
+        }
+        for (Event event : events) {
+            event.setDataValues(get(dataValues, event.getLocalId()));
+        }
+    }
+
+    private static Map<Long, List<TrackedEntityAttributeValue>> getAttributeValues(
+            Collection<String> localTrackedEntityInstanceIds) {
+        Map<Long, List<TrackedEntityAttributeValue>> attributeValues = new HashMap<>();
+        for (TrackedEntityAttributeValue value : queryIn(TrackedEntityAttributeValue.class,
+                TrackedEntityAttributeValue$Table.TABLE_NAME,
+                TrackedEntityAttributeValue$Table.TRACKEDENTITYATTRIBUTEID,
+                localTrackedEntityInstanceIds,
+                TrackedEntityAttributeValue$Table.LOCALTRACKEDENTITYINSTANCEID)) {
+            put(attributeValues, value.getLocalTrackedEntityInstanceId(), value);
+        }
+        return attributeValues;
+    }
+
+    /**
+     * Returns the non-empty values of the given program attributes, in their order,
+     * like {@link Enrollment#getAttributes()}.
+     */
+    private static List<TrackedEntityAttributeValue> getEnrollmentAttributes(
+            List<ProgramTrackedEntityAttribute> programAttributes,
+            List<TrackedEntityAttributeValue> values) {
+        Map<String, TrackedEntityAttributeValue> valuesByAttribute = new HashMap<>();
+        for (TrackedEntityAttributeValue value : values) {
+            valuesByAttribute.put(value.getTrackedEntityAttributeId(), value);
+        }
+        List<TrackedEntityAttributeValue> attributes = new ArrayList<>();
+        for (ProgramTrackedEntityAttribute programAttribute : programAttributes) {
+            TrackedEntityAttributeValue value =
+                    valuesByAttribute.get(programAttribute.getTrackedEntityAttributeId());
+            if (value != null && value.getValue() != null && !value.getValue().isEmpty()) {
+                attributes.add(value);
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Reads the rows of the given table where any of the given columns matches one of the
+     * values. The values are split up into as many queries as needed to stay below the limit
+     * of bound variables. Rows are only ordered within each query.
+     */
+    private static <T extends Model> List<T> queryIn(Class<T> type, String tableName, String orderBy,
+                                                     Collection<String> values, String... columns) {
+        List<T> models = new ArrayList<>();
+        if (values.isEmpty()) {
+            return models;
+        }
+
+        List<String> valueList = new ArrayList<>(values);
+        int chunkSize = MAX_VARIABLES / columns.length;
+        SQLiteDatabase database = FlowManager.getDatabase(Dhis2Database.NAME).getWritableDatabase();
+        for (int start = 0; start < valueList.size(); start += chunkSize) {
+            List<String> chunk = valueList.subList(start, Math.min(start + chunkSize, valueList.size()));
+            List<String> args = new ArrayList<>();
+            StringBuilder sql = new StringBuilder("SELECT * FROM `").append(tableName).append("` WHERE ");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i > 0 ? " OR `" : "`").append(columns[i]).append("` IN (");
+                for (int j = 0; j < chunk.size(); j++) {
+                    sql.append(j > 0 ? ", ?" : "?");
+                }
+                sql.append(')');
+                args.addAll(chunk);
+            }
+            if (orderBy != null) {
+                sql.append(" ORDER BY `").append(orderBy).append('`');
+            }
+
+            Cursor cursor = database.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+            try {
+                models.addAll(SqlUtils.convertToList(type, cursor));
+            } finally {
+                cursor.close();
+            }
+        }
+        return models;
+    }
+
+    private static Set<Include> toSet(Include... includes) {
+        Set<Include> include = EnumSet.noneOf(Include.class);
+        if (includes != null) {
+            include.addAll(Arrays.asList(includes));
+        }
+        return include;
+    }
+
+    private static <K, V> void put(Map<K, List<V>> map, K key, V value) {
+        List<V> values = map.get(key);
+        if (values == null) {
+            values = new ArrayList<>();
+            map.put(key, values);
+        }
+        values.add(value);
+    }
+
+    /**
+     * Returns the list for the given key, or a new empty list, so that the getters of the
+     * models don't go to the database for items without related items.
+     */
+    private static <K, V> List<V> get(Map<K, List<V>> map, K key) {
+        List<V> values = map.get(key);
+        return values != null ? values : new ArrayList<V>();
+    }
+}
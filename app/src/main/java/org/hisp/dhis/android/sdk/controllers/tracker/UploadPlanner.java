@@ -0,0 +1,217 @@
+/*
+ *  Copyright (c) 2016, University of Oslo
+ *  * All rights reserved.
+ *  *
+ *  * Redistribution and use in source and binary forms, with or without
+ *  * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *  * list of conditions and the following disclaimer.
+ *  *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *  * this list of conditions and the following disclaimer in the documentation
+ *  * and/or other materials provided with the distribution.
+ *  * Neither the name of the HISP project nor the names of its contributors may
+ *  * be used to endorse or promote products derived from this software without
+ *  * specific prior written permission.
+ *  *
+ *  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package org.hisp.dhis.android.sdk.controllers.tracker;
+
+import org.hisp.dhis.android.sdk.persistence.models.BaseSerializableModel;
+import org.hisp.dhis.android.sdk.persistence.models.Enrollment;
+import org.hisp.dhis.android.sdk.persistence.models.Event;
+import org.hisp.dhis.android.sdk.persistence.models.FailedItem;
+import org.hisp.dhis.android.sdk.persistence.models.OutboxItem;
+import org.hisp.dhis.android.sdk.persistence.models.Relationship;
+import org.hisp.dhis.android.sdk.persistence.models.TrackedEntityInstance;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Orders pending items from the outbox for upload in one pass. Tracked entity instances are
+ * sent first, with related instances before the instances referring to them, then enrollments
+ * and then events. Enrollments and events are only planned when their parent exists on the
+ * server or has been imported earlier in the pass, the others are left in the outbox.
+ */
+final class UploadPlanner {
+
+    private final Set<Long> plannedTrackedEntityInstances = new HashSet<>();
+    private final Set<Long> resentTrackedEntityInstances = new HashSet<>();
+    private final Set<Long> importedTrackedEntityInstances = new HashSet<>();
+    private final Set<Long> importedEnrollments = new HashSet<>();
+    private final boolean force;
+
+    /**
+     * @param force true to plan items waiting for a retry as well, for manual synchronizations
+     */
+    UploadPlanner(boolean force) {
+        this.force = force;
+    }
+
+    /**
+     * Returns the pending tracked entity instances which have not been planned before in this
+     * pass, ordered by their relationships. Instances which have been queued again after they
+     * were imported, to upload relationships which have become valid, are returned once more.
+     */
+    List<TrackedEntityInstance> getTrackedEntityInstances() {
+        Map<String, TrackedEntityInstance> pending = new LinkedHashMap<>();
+        for (TrackedEntityInstance trackedEntityInstance : getPendingTrackedEntityInstances(force)) {
+            long localId = trackedEntityInstance.getLocalId();
+            if (plannedTrackedEntityInstances.add(localId) || (importedTrackedEntityInstances.contains(localId)
+                    && resentTrackedEntityInstances.add(localId))) {
+                pending.put(trackedEntityInstance.getTrackedEntityInstance(), trackedEntityInstance);
+            }
+        }
+
+        List<TrackedEntityInstance> order = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        for (String trackedEntityInstance : pending.keySet()) {
+            addToOrder(trackedEntityInstance, pending, visited, order);
+        }
+        return order;
+    }
+
+    /**
+     * Adds the related pending instances before the given one. For relationships in both
+     * directions the instance visited last is sent last, so it carries the relationship.
+     */
+    private static void addToOrder(String uid, Map<String, TrackedEntityInstance> pending,
+                                   Set<String> visited, List<TrackedEntityInstance> order) {
+        if (!visited.add(uid)) {
+            return;
+        }
+        TrackedEntityInstance trackedEntityInstance = pending.get(uid);
+        List<Relationship> relationships = trackedEntityInstance.getRelationships();
+        if (relationships != null) {
+            for (Relationship relationship : relationships) {
+                String related = uid.equals(relationship.getTrackedEntityInstanceA()) ?
+                        relationship.getTrackedEntityInstanceB() : relationship.getTrackedEntityInstanceA();
+                if (related != null && pending.containsKey(related)) {
+                    addToOrder(related, pending, visited, order);
+                }
+            }
+        }
+        order.add(trackedEntityInstance);
+    }
+
+    void addImportedTrackedEntityInstances(List<TrackedEntityInstance> trackedEntityInstances) {
+        for (TrackedEntityInstance trackedEntityInstance : trackedEntityInstances) {
+            importedTrackedEntityInstances.add(trackedEntityInstance.getLocalId());
+        }
+    }
+
+    void addImportedEnrollments(List<Enrollment> enrollments) {
+        for (Enrollment enrollment : enrollments) {
+            importedEnrollments.add(enrollment.getLocalId());
+        }
+    }
+
+    List<Enrollment> getEnrollments() {
+        Map<Long, Boolean> parents = new HashMap<>();
+        List<Enrollment> enrollments = new ArrayList<>();
+        for (Enrollment enrollment : getPendingEnrollments(force)) {
+            long parent = enrollment.getLocalTrackedEntityInstanceId();
+            if (!parents.containsKey(parent)) {
+                parents.put(parent, importedTrackedEntityInstances.contains(parent) ||
+                        isOnServer(TrackerController.getTrackedEntityInstance(parent)));
+            }
+            if (parents.get(parent)) {
+                enrollments.add(enrollment);
+            }
+        }
+        return enrollments;
+    }
+
+    List<Event> getEvents() {
+        Map<Long, Boolean> parents = new HashMap<>();
+        List<Event> events = new ArrayList<>();
+        for (Event event : getPendingEvents(force)) {
+            long parent = event.getLocalEnrollmentId();
+            if (parent > 0 && !parents.containsKey(parent)) {
+                parents.put(parent, importedEnrollments.contains(parent) ||
+                        isOnServer(TrackerController.getEnrollment(parent)));
+            }
+            if (parent <= 0 || parents.get(parent)) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Returns false for items which are only stored locally and have never been imported.
+     * Items which are not stored at all don't block their children.
+     */
+    private static boolean isOnServer(BaseSerializableModel item) {
+        return item == null || item.isFromServer() || item.getCreated() != null;
+    }
+
+    static List<TrackedEntityInstance> getPendingTrackedEntityInstances() {
+        return getPendingTrackedEntityInstances(false);
+    }
+
+    static List<TrackedEntityInstance> getPendingTrackedEntityInstances(boolean force) {
+        List<TrackedEntityInstance> trackedEntityInstances = new ArrayList<>();
+        for (OutboxItem outboxItem : OutboxController.getPendingItems(FailedItem.TRACKEDENTITYINSTANCE, force)) {
+            TrackedEntityInstance trackedEntityInstance = TrackerController.getTrackedEntityInstance(outboxItem.getItemId());
+            if (trackedEntityInstance == null || trackedEntityInstance.isFromServer()) {
+                OutboxController.remove(FailedItem.TRACKEDENTITYINSTANCE, outboxItem.getItemId());
+            } else {
+                trackedEntityInstances.add(trackedEntityInstance);
+            }
+        }
+        return trackedEntityInstances;
+    }
+
+    static List<Enrollment> getPendingEnrollments() {
+        return getPendingEnrollments(false);
+    }
+
+    static List<Enrollment> getPendingEnrollments(boolean force) {
+        List<Enrollment> enrollments = new ArrayList<>();
+        for (OutboxItem outboxItem : OutboxController.getPendingItems(FailedItem.ENROLLMENT, force)) {
+            Enrollment enrollment = TrackerController.getEnrollment(outboxItem.getItemId());
+            if (enrollment == null || enrollment.isFromServer()) {
+                OutboxController.remove(FailedItem.ENROLLMENT, outboxItem.getItemId());
+            } else {
+                enrollments.add(enrollment);
+            }
+        }
+        return enrollments;
+    }
+
+    static List<Event> getPendingEvents() {
+        return getPendingEvents(false);
+    }
+
+    static List<Event> getPendingEvents(boolean force) {
+        List<Event> events = new ArrayList<>();
+        for (OutboxItem outboxItem : OutboxController.getPendingItems(FailedItem.EVENT, force)) {
+            Event event = TrackerController.getEvent(outboxItem.getItemId());
+            if (event == null || event.isFromServer()) {
+                OutboxController.remove(FailedItem.EVENT, outboxItem.getItemId());
+            } else {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+}
@@ -33,19 +33,15 @@ import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
-import com.fasterxml.jackson.databind.JsonNode;
 
 import org.hisp.dhis.android.sdk.controllers.ApiEndpointContainer;
-import org.hisp.dhis.android.sdk.controllers.DhisController;
 import org.hisp.dhis.android.sdk.controllers.metadata.MetaDataController;
 import org.hisp.dhis.android.sdk.persistence.models.OrganisationUnit;
 import org.hisp.dhis.android.sdk.persistence.models.OrganisationUnitProgramRelationship;
 import org.hisp.dhis.android.sdk.persistence.models.meta.DbOperation;
-import org.hisp.dhis.android.sdk.utils.StringConverter;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 import retrofit.client.Response;
@@ -58,43 +54,35 @@ import retrofit.converter.ConversionException;
 public class AssignedProgramsWrapper extends JsonDeserializer<List<OrganisationUnit>> {
     @Override
     public List<OrganisationUnit> deserialize(JsonParser p, DeserializationContext ctxt) throws IOException, JsonProcessingException {
-        List<OrganisationUnit> organisationUnits = new ArrayList<>();
-        JsonNode node = p.getCodec().readTree(p);
-        JsonNode organisationUnitsNode = node.get(ApiEndpointContainer.ORGANISATIONUNITS);
-
-        if (organisationUnitsNode == null) { /* in case there are no items */
-            return organisationUnits;
-        } else {
-            Iterator<JsonNode> nodes = organisationUnitsNode.elements();
-            while(nodes.hasNext()) {
-                JsonNode indexNode = nodes.next();
-                OrganisationUnit item = DhisController.getInstance().getObjectMapper().
-                        readValue(indexNode.toString(), OrganisationUnit.class);
-                organisationUnits.add(item);
-            }
-        }
+        final List<OrganisationUnit> organisationUnits = new ArrayList<>();
+        JsonStreamReader.readObject(p, new OrganisationUnitsReader(organisationUnits));
         return organisationUnits;
     }
 
     public List<OrganisationUnit> deserialize(Response response) throws ConversionException, IOException {
-        List<OrganisationUnit> organisationUnits = new ArrayList<>();
-        String responseBodyString = new StringConverter().fromBody(response.getBody(), String.class);
-        JsonNode node = DhisController.getInstance().getObjectMapper().
-                    readTree(responseBodyString);
-        JsonNode organisationUnitsNode = node.get(ApiEndpointContainer.ORGANISATIONUNITS);
+        final List<OrganisationUnit> organisationUnits = new ArrayList<>();
+        JsonStreamReader.readObject(response, new OrganisationUnitsReader(organisationUnits));
+        return organisationUnits;
+    }
 
-        if (organisationUnitsNode == null) { /* in case there are no items */
-            return organisationUnits;
-        } else {
-            Iterator<JsonNode> nodes = organisationUnitsNode.elements();
-            while(nodes.hasNext()) {
-                JsonNode indexNode = nodes.next();
-                OrganisationUnit item = DhisController.getInstance().getObjectMapper().
-                        readValue(indexNode.toString(), OrganisationUnit.class);
-                organisationUnits.add(item);
+    /**
+     * Streams the organisation units of the response one by one, skipping all other fields.
+     */
+    private static class OrganisationUnitsReader implements JsonStreamReader.FieldReader {
+        private final List<OrganisationUnit> organisationUnits;
+
+        OrganisationUnitsReader(List<OrganisationUnit> organisationUnits) {
+            this.organisationUnits = organisationUnits;
+        }
+
+        @Override
+        public void readField(String fieldName, JsonParser parser) throws IOException {
+            if (ApiEndpointContainer.ORGANISATIONUNITS.equals(fieldName)) { /* in case there are no items the field is missing */
+                organisationUnits.addAll(JsonStreamReader.readList(parser, OrganisationUnit.class));
+            } else {
+                parser.skipChildren();
             }
         }
-        return organisationUnits;
     }
 
     public static List<DbOperation> getOperations(List<OrganisationUnit> organisationUnits) {
@@ -29,16 +29,20 @@
 
 package org.hisp.dhis.android.sdk.controllers.wrappers;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 
 import org.hisp.dhis.android.sdk.controllers.DhisController;
 import org.hisp.dhis.android.sdk.persistence.models.Event;
+import org.hisp.dhis.android.sdk.persistence.models.Pager;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import retrofit.client.Response;
+
 /**
  * @author Simen Skogly Russnes on 26.08.15.
  */
@@ -62,4 +66,26 @@ public class EventsWrapper {
         return events;
     }
 
+    /**
+     * Streams the events of a paged events response into the given list.
+     *
+     * @return the pager of the response, or null if the response is not paged.
+     */
+    public static Pager readEvents(Response response, final List<Event> events) throws IOException {
+        final Pager[] pager = new Pager[1];
+        JsonStreamReader.readObject(response, new JsonStreamReader.FieldReader() {
+            @Override
+            public void readField(String fieldName, JsonParser parser) throws IOException {
+                if ("events".equals(fieldName)) {
+                    events.addAll(JsonStreamReader.readList(parser, Event.class));
+                } else if ("pager".equals(fieldName)) {
+                    pager[0] = parser.readValueAs(Pager.class);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        });
+        return pager[0];
+    }
+
 }
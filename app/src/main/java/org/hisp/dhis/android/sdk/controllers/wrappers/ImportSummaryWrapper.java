@@ -0,0 +1,119 @@
+/*
+ *  Copyright (c) 2016, University of Oslo
+ *  * All rights reserved.
+ *  *
+ *  * Redistribution and use in source and binary forms, with or without
+ *  * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *  * list of conditions and the following disclaimer.
+ *  *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *  * this list of conditions and the following disclaimer in the documentation
+ *  * and/or other materials provided with the distribution.
+ *  * Neither the name of the HISP project nor the names of its contributors may
+ *  * be used to endorse or promote products derived from this software without
+ *  * specific prior written permission.
+ *  *
+ *  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package org.hisp.dhis.android.sdk.controllers.wrappers;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.hisp.dhis.android.sdk.controllers.DhisController;
+import org.hisp.dhis.android.sdk.persistence.models.ImportSummary;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import retrofit.client.Response;
+
+/**
+ * Reads import summaries from the responses of the web api, which are returned in
+ * different forms depending on the endpoint and server version:
+ * a single import summary, a single import summary wrapped in "response", or a list of
+ * "importSummaries" either at the top level or wrapped in "response".
+ */
+public class ImportSummaryWrapper {
+
+    private static final String RESPONSE = "response";
+    private static final String IMPORT_SUMMARIES = "importSummaries";
+    private static final String STATUS = "status";
+
+    /**
+     * Returns all import summaries of the response, or an empty list if there are none.
+     * The list of import summaries is streamed, only the fields of a single import summary
+     * are held in memory as a tree.
+     */
+    public static List<ImportSummary> getImportSummaries(Response response) throws IOException {
+        final List<ImportSummary> importSummaries = new ArrayList<>();
+        final ObjectNode fields = DhisController.getInstance().getObjectMapper().createObjectNode();
+        JsonStreamReader.readObject(response, new JsonStreamReader.FieldReader() {
+            @Override
+            public void readField(String fieldName, JsonParser parser) throws IOException {
+                readImportSummaryField(fieldName, parser, importSummaries, fields);
+            }
+        });
+        addImportSummary(fields, importSummaries);
+        return importSummaries;
+    }
+
+    /**
+     * Returns the first import summary of the response, or null if there is none.
+     */
+    public static ImportSummary getImportSummary(Response response) throws IOException {
+        List<ImportSummary> importSummaries = getImportSummaries(response);
+        if (importSummaries.isEmpty()) {
+            return null;
+        }
+        return importSummaries.get(0);
+    }
+
+    private static void readImportSummaryField(String fieldName, JsonParser parser,
+                                               final List<ImportSummary> importSummaries,
+                                               ObjectNode fields) throws IOException {
+        if (IMPORT_SUMMARIES.equals(fieldName)) {
+            importSummaries.addAll(JsonStreamReader.readList(parser, ImportSummary.class));
+        } else if (RESPONSE.equals(fieldName)) {
+            final List<ImportSummary> responseImportSummaries = new ArrayList<>();
+            final ObjectNode responseFields = DhisController.getInstance().getObjectMapper().createObjectNode();
+            JsonStreamReader.readObject(parser, new JsonStreamReader.FieldReader() {
+                @Override
+                public void readField(String fieldName, JsonParser parser) throws IOException {
+                    readImportSummaryField(fieldName, parser, responseImportSummaries, responseFields);
+                }
+            });
+            addImportSummary(responseFields, responseImportSummaries);
+            importSummaries.addAll(responseImportSummaries);
+        } else {
+            JsonNode value = parser.readValueAsTree();
+            fields.set(fieldName, value);
+        }
+    }
+
+    /**
+     * Adds the object with the given fields as an import summary if it is one, and no
+     * import summaries have been found inside of it.
+     */
+    private static void addImportSummary(ObjectNode fields, List<ImportSummary> importSummaries) throws IOException {
+        if (importSummaries.isEmpty() && fields.has(STATUS)) {
+            ObjectMapper objectMapper = DhisController.getInstance().getObjectMapper();
+            importSummaries.add(objectMapper.treeToValue(fields, ImportSummary.class));
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *  Copyright (c) 2016, University of Oslo
+ *  * All rights reserved.
+ *  *
+ *  * Redistribution and use in source and binary forms, with or without
+ *  * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *  * list of conditions and the following disclaimer.
+ *  *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *  * this list of conditions and the following disclaimer in the documentation
+ *  * and/or other materials provided with the distribution.
+ *  * Neither the name of the HISP project nor the names of its contributors may
+ *  * be used to endorse or promote products derived from this software without
+ *  * specific prior written permission.
+ *  *
+ *  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package org.hisp.dhis.android.sdk.controllers.wrappers;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import org.hisp.dhis.android.sdk.controllers.DhisController;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import retrofit.client.Response;
+
+/**
+ * Reads JSON responses token by token from the body stream, so that large responses
+ * don't have to be held in memory as a String or a JsonNode tree before being mapped
+ * to models. Only one model object is materialized at a time.
+ */
+public final class JsonStreamReader {
+
+    /**
+     * Reads the value of one field of a JSON object. The parser is positioned at the first
+     * token of the value, and the implementation must either read or skip the whole value.
+     */
+    public interface FieldReader {
+        void readField(String fieldName, JsonParser parser) throws IOException;
+    }
+
+    /**
+     * Receives the items of a JSON array as soon as each of them has been read.
+     */
+    public interface ItemCallback<T> {
+        void onItem(T item);
+    }
+
+    private JsonStreamReader() {
+        // no instances
+    }
+
+    /**
+     * Reads the root object of the response body, passing each of its fields to fieldReader.
+     * The body stream is closed afterwards.
+     */
+    public static void readObject(Response response, FieldReader fieldReader) throws IOException {
+        if (response == null || response.getBody() == null) {
+            return;
+        }
+        InputStream in = response.getBody().in();
+        try {
+            JsonParser parser = DhisController.getInstance().getObjectMapper().
+                    getFactory().createParser(in);
+            try {
+                parser.nextToken();
+                readObject(parser, fieldReader);
+            } finally {
+                parser.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the object at the current position of the parser, passing each of its fields
+     * to fieldReader. Anything else than an object is skipped.
+     */
+    public static void readObject(JsonParser parser, FieldReader fieldReader) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            fieldReader.readField(fieldName, parser);
+        }
+    }
+
+    /**
+     * Reads the array at the current position of the parser, mapping each item to the given
+     * type. Anything else than an array is skipped.
+     */
+    public static <T> void readArray(JsonParser parser, Class<T> type, ItemCallback<T> callback) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return;
+        }
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            T item = parser.readValueAs(type);
+            if (item != null) {
+                callback.onItem(item);
+            }
+        }
+    }
+
+    public static <T> List<T> readList(JsonParser parser, Class<T> type) throws IOException {
+        final List<T> items = new ArrayList<>();
+        readArray(parser, type, new ItemCallback<T>() {
+            @Override
+            public void onItem(T item) {
+                items.add(item);
+            }
+        });
+        return items;
+    }
+
+    /**
+     * Reads the items of the array in the given field of the root object of the response.
+     * All other fields are skipped.
+     */
+    public static <T> List<T> readList(Response response, final String field, final Class<T> type) throws IOException {
+        final List<T> items = new ArrayList<>();
+        readObject(response, new FieldReader() {
+            @Override
+            public void readField(String fieldName, JsonParser parser) throws IOException {
+                if (field.equals(fieldName)) {
+                    items.addAll(readList(parser, type));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        });
+        return items;
+    }
+}
@@ -40,12 +40,17 @@ import org.hisp.dhis.android.sdk.persistence.models.ProgramStage;
 import org.hisp.dhis.android.sdk.persistence.models.ProgramStageDataElement;
 import org.hisp.dhis.android.sdk.persistence.models.ProgramStageSection;
 import org.hisp.dhis.android.sdk.persistence.models.ProgramTrackedEntityAttribute;
+import org.hisp.dhis.android.sdk.persistence.models.TrackedEntityAttribute;
 import org.hisp.dhis.android.sdk.persistence.models.meta.DbOperation;
+import org.hisp.dhis.android.sdk.utils.DbUtils;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * @author Simen Skogly Russnes on 21.08.15.
@@ -53,125 +58,286 @@ import java.util.Map;
  */
 public class ProgramWrapper {
 
+    /**
+     * Returns the operations needed to bring the persisted program tree up to date with the given
+     * program from the server. Items with a uid are compared by lastUpdated, link rows without a
+     * uid by their content, so unchanged items don't produce any operation.
+     */
     public static List<DbOperation> setReferences(Program program) {
         List<DbOperation> operations = new ArrayList<>();
+        if (program == null) {
+            return operations;
+        }
+
+        operations.addAll(DbUtils.createOperations(
+                asList(MetaDataController.getProgram(program.getUid())), asList(program), true));
+        operations.addAll(diffProgramTrackedEntityAttributes(program));
+
         Map<String, Attribute> attributes = new HashMap<>();
-        if(program != null) {
-            operations.addAll(update(program));
-            operations.add(DbOperation.save(program));
-            int sortOrder = 0;
-            for (ProgramTrackedEntityAttribute ptea : program.getProgramTrackedEntityAttributes()) {
-                ptea.setProgram(program.getUid());
-                ptea.setSortOrder(sortOrder);
-                operations.add(DbOperation.save(ptea));
-                sortOrder++;
-            }
-
-            for (ProgramStage programStage : program.getProgramStages()) {
-                operations.add(DbOperation.save(programStage));
-                if (programStage.getProgramStageSections() != null && !programStage.getProgramStageSections().isEmpty()) {
-                    // due to the way the WebAPI lists programStageSections we have to manually
-                    // set id of programStageSection in programStageDataElements to be able to
-                    // access it later when loading from local db
-                    for (ProgramStageSection programStageSection : programStage.getProgramStageSections()) {
-                        operations.add(DbOperation.save(programStageSection));
-                        //programStageSection.async().save();
-                        for (ProgramStageDataElement programStageDataElement : programStageSection.getProgramStageDataElements()) {
-                            programStageDataElement.setProgramStageSection(programStageSection.getUid());
-                            operations.add(DbOperation.save(programStageDataElement));
-                            operations.addAll(saveDataElementAttributes(programStageDataElement.getDataElementObj(), attributes));
-                        }
-                        for (ProgramIndicator programIndicator : programStageSection.getProgramIndicators()) {
-                            operations.add(DbOperation.save(programIndicator));
-
-                            // relation to stage
-                            operations.add(saveStageRelation(programIndicator, programStage.getUid()));
-
-                            // relation to section
-                            operations.add(saveStageRelation(programIndicator, programStageSection.getUid()));
-                        }
+        Map<String, DataElement> dataElements = new LinkedHashMap<>();
+        Map<String, ProgramIndicator> programIndicators = new LinkedHashMap<>();
+        Set<String> relationKeys = new HashSet<>();
+        List<ProgramIndicatorToSectionRelationship> relations = new ArrayList<>();
+        Set<String> programSections = new HashSet<>();
+
+        List<ProgramStage> oldProgramStages = MetaDataController.getProgramStages(program.getUid());
+        operations.addAll(DbUtils.createOperations(oldProgramStages, program.getProgramStages(), false));
+
+        Set<String> programStageUids = new HashSet<>();
+        for (ProgramStage programStage : program.getProgramStages()) {
+            programStageUids.add(programStage.getUid());
+            programSections.add(programStage.getUid());
+            List<ProgramStageSection> oldSections = MetaDataController
+                    .getProgramStageSections(programStage.getUid());
+            for (ProgramStageSection oldSection : oldSections) {
+                programSections.add(oldSection.getUid());
+            }
+
+            List<ProgramStageDataElement> programStageDataElements = new ArrayList<>();
+            List<ProgramStageSection> sections = programStage.getProgramStageSections();
+            if (sections != null && !sections.isEmpty()) {
+                operations.addAll(DbUtils.createOperations(oldSections, sections, false));
+                // due to the way the WebAPI lists programStageSections we have to manually
+                // set id of programStageSection in programStageDataElements to be able to
+                // access it later when loading from local db
+                for (ProgramStageSection programStageSection : sections) {
+                    programSections.add(programStageSection.getUid());
+                    for (ProgramStageDataElement programStageDataElement : programStageSection.getProgramStageDataElements()) {
+                        programStageDataElement.setProgramStageSection(programStageSection.getUid());
+                        programStageDataElements.add(programStageDataElement);
                     }
-                } else {
-                    for (ProgramStageDataElement programStageDataElement : programStage.
-                            getProgramStageDataElements()) {
-                        operations.add(DbOperation.save(programStageDataElement));
-                        operations.addAll(saveDataElementAttributes(programStageDataElement.getDataElement(), attributes));
+                    for (ProgramIndicator programIndicator : programStageSection.getProgramIndicators()) {
+                        programIndicators.put(programIndicator.getUid(), programIndicator);
+                        addRelation(relations, relationKeys, programIndicator, programStage.getUid());
+                        addRelation(relations, relationKeys, programIndicator, programStageSection.getUid());
                     }
-                    for (ProgramIndicator programIndicator : programStage.getProgramIndicators()) {
-                        operations.add(DbOperation.save(programIndicator));
+                }
+            } else {
+                operations.addAll(DbUtils.createOperations(oldSections, new ArrayList<ProgramStageSection>(), false));
+                programStageDataElements.addAll(programStage.getProgramStageDataElements());
+                for (ProgramIndicator programIndicator : programStage.getProgramIndicators()) {
+                    programIndicators.put(programIndicator.getUid(), programIndicator);
+                    addRelation(relations, relationKeys, programIndicator, programStage.getUid());
+                }
+            }
 
-                        // relation to stage
-                        operations.add(saveStageRelation(programIndicator, programStage.getUid()));
-                    }
+            operations.addAll(diffProgramStageDataElements(MetaDataController
+                    .getProgramStageDataElements(programStage), programStageDataElements));
+            for (ProgramStageDataElement programStageDataElement : programStageDataElements) {
+                DataElement dataElement = programStageDataElement.getDataElementObj();
+                if (dataElement == null) {
+                    dataElement = programStageDataElement.getDataElement();
+                } else {
+                    dataElements.put(dataElement.getUid(), dataElement);
                 }
+                operations.addAll(saveDataElementAttributes(dataElement, attributes));
+            }
+        }
+
+        // data elements are read from the cache, which is invalidated when the batch is applied
+        List<DataElement> oldDataElements = new ArrayList<>();
+        for (String dataElement : dataElements.keySet()) {
+            DataElement oldDataElement = MetaDataController.getDataElement(dataElement);
+            if (oldDataElement != null) {
+                oldDataElements.add(oldDataElement);
             }
         }
+        operations.addAll(DbUtils.createOperations(oldDataElements,
+                new ArrayList<>(dataElements.values()), true));
+
+        // children of removed program stages are removed together with them
+        for (ProgramStage oldProgramStage : oldProgramStages) {
+            if (programStageUids.contains(oldProgramStage.getUid())) {
+                continue;
+            }
+            programSections.add(oldProgramStage.getUid());
+            for (ProgramStageSection oldSection : MetaDataController
+                    .getProgramStageSections(oldProgramStage.getUid())) {
+                programSections.add(oldSection.getUid());
+                operations.add(DbOperation.delete(oldSection));
+            }
+            for (ProgramStageDataElement oldDataElement : MetaDataController
+                    .getProgramStageDataElements(oldProgramStage)) {
+                operations.add(DbOperation.delete(oldDataElement));
+            }
+        }
+
+        operations.addAll(DbUtils.createOperations(MetaDataController
+                        .getProgramIndicatorsByProgram(program.getUid()),
+                new ArrayList<>(programIndicators.values()), false));
+        operations.addAll(diffRelations(programSections, relations, relationKeys));
         return operations;
     }
 
-    private static List<DbOperation> update(Program program) {
+    private static List<DbOperation> diffProgramTrackedEntityAttributes(Program program) {
         List<DbOperation> operations = new ArrayList<>();
-
-        /**Delete everything (except shared things like dataElement and
-         * trackedEntityAttribute) and store it again cause it's easier, it's not that big, and
-         * it rarely happens.
-         * what needs to be deleted is:
-         * ProgramTrackedEntityAttribute (not the TrackedEntityAttribute itself)
-         * ProgramStageDataElement (not the actual DataElement, we can simply update that)
-         * The program stages since they are referenced with lazy loading
-         *  but we need to delete the ProgramStageDataElements because it is the link
-         *  between the program and dataelement
-         */
-
-        /*firstly we should get the old program from the database and delete using that
-          reference
-         */
-        Program oldProgram = MetaDataController.getProgram(program.getUid());
-        if (oldProgram != null) {
-            for (ProgramTrackedEntityAttribute ptea : oldProgram.getProgramTrackedEntityAttributes()) {
-                operations.add(DbOperation.delete(ptea));
-            }
-            for (ProgramStage programStage : program.getProgramStages()) {
-                for (ProgramStageDataElement psde : programStage.getProgramStageDataElements()) {
-                    operations.add(DbOperation.delete(psde));
+        List<TrackedEntityAttribute> oldTrackedEntityAttributes = new ArrayList<>();
+        List<TrackedEntityAttribute> trackedEntityAttributes = new ArrayList<>();
+        for (ProgramTrackedEntityAttribute ptea : program.getProgramTrackedEntityAttributes()) {
+            TrackedEntityAttribute trackedEntityAttribute = ptea.getTrackedEntityAttributeObj();
+            if (trackedEntityAttribute != null) {
+                trackedEntityAttributes.add(trackedEntityAttribute);
+                TrackedEntityAttribute old = MetaDataController
+                        .getTrackedEntityAttribute(trackedEntityAttribute.getUid());
+                if (old != null) {
+                    oldTrackedEntityAttributes.add(old);
                 }
-                for (ProgramStageSection programStageSection : programStage.getProgramStageSections()) {
-                    operations.add(DbOperation.delete(programStageSection));
-                }
-                operations.add(DbOperation.delete(programStage));
             }
-            for (ProgramIndicator programIndicator : program.getProgramIndicators()) {
-                operations.add(DbOperation.delete(programIndicator));
+        }
+        operations.addAll(DbUtils.createOperations(oldTrackedEntityAttributes, trackedEntityAttributes, true));
+
+        Map<String, ProgramTrackedEntityAttribute> oldAttributes = new HashMap<>();
+        for (ProgramTrackedEntityAttribute ptea : MetaDataController
+                .getProgramTrackedEntityAttributes(program.getUid())) {
+            oldAttributes.put(ptea.getTrackedEntityAttributeId(), ptea);
+        }
+
+        int sortOrder = 0;
+        for (ProgramTrackedEntityAttribute ptea : program.getProgramTrackedEntityAttributes()) {
+            ptea.setProgram(program.getUid());
+            ptea.setSortOrder(sortOrder);
+            sortOrder++;
+            ProgramTrackedEntityAttribute oldPtea = oldAttributes.remove(ptea.getTrackedEntityAttributeId());
+            if (oldPtea == null || oldPtea.getSortOrder() != ptea.getSortOrder()
+                    || oldPtea.getAllowFutureDate() != ptea.getAllowFutureDate()
+                    || oldPtea.getDisplayInList() != ptea.getDisplayInList()
+                    || oldPtea.getMandatory() != ptea.getMandatory()) {
+                operations.add(DbOperation.save(ptea));
             }
         }
+        for (ProgramTrackedEntityAttribute removed : oldAttributes.values()) {
+            operations.add(DbOperation.delete(removed));
+        }
+        return operations;
+    }
 
+    private static List<DbOperation> diffProgramStageDataElements(List<ProgramStageDataElement> oldDataElements,
+                                                                  List<ProgramStageDataElement> newDataElements) {
+        List<DbOperation> operations = new ArrayList<>();
+        Map<String, ProgramStageDataElement> oldDataElementsMap = new HashMap<>();
+        if (oldDataElements != null) {
+            for (ProgramStageDataElement psde : oldDataElements) {
+                oldDataElementsMap.put(psde.getDataelement(), psde);
+            }
+        }
+
+        for (ProgramStageDataElement psde : newDataElements) {
+            ProgramStageDataElement oldPsde = oldDataElementsMap.remove(psde.getDataelement());
+            if (oldPsde == null || oldPsde.getSortOrder() != psde.getSortOrder()
+                    || oldPsde.getCompulsory() != psde.getCompulsory()
+                    || oldPsde.getAllowFutureDate() != psde.getAllowFutureDate()
+                    || oldPsde.getDisplayInReports() != psde.getDisplayInReports()
+                    || oldPsde.getAllowProvidedElsewhere() != psde.getAllowProvidedElsewhere()
+                    || !equals(oldPsde.getProgramStageSection(), psde.getProgramStageSection())) {
+                operations.add(DbOperation.save(psde));
+            }
+        }
+        for (ProgramStageDataElement removed : oldDataElementsMap.values()) {
+            operations.add(DbOperation.delete(removed));
+        }
         return operations;
     }
 
-    private static DbOperation saveStageRelation(ProgramIndicator programIndicator, String programSection) {
-            ProgramIndicatorToSectionRelationship stageRelation = new ProgramIndicatorToSectionRelationship();
-            stageRelation.setProgramIndicator(programIndicator);
-            stageRelation.setProgramSection(programSection);
-            return DbOperation.save(stageRelation);
+    private static void addRelation(List<ProgramIndicatorToSectionRelationship> relations, Set<String> relationKeys,
+                                    ProgramIndicator programIndicator, String programSection) {
+        if (relationKeys.add(getRelationKey(programIndicator.getUid(), programSection))) {
+            ProgramIndicatorToSectionRelationship relation = new ProgramIndicatorToSectionRelationship();
+            relation.setProgramIndicator(programIndicator);
+            relation.setProgramSection(programSection);
+            relations.add(relation);
+        }
+    }
+
+    /**
+     * Relations are identified by their program indicator and stage or section pair. Persisted
+     * pairs are kept, missing ones inserted and the rest, including duplicates, deleted.
+     */
+    private static List<DbOperation> diffRelations(Set<String> programSections,
+                                                   List<ProgramIndicatorToSectionRelationship> relations,
+                                                   Set<String> relationKeys) {
+        List<DbOperation> operations = new ArrayList<>();
+        Set<String> persistedKeys = new HashSet<>();
+        for (String programSection : programSections) {
+            for (ProgramIndicatorToSectionRelationship relation : MetaDataController
+                    .getProgramIndicatorToSectionRelationships(programSection)) {
+                String key = relation.getProgramIndicator() == null ? null :
+                        getRelationKey(relation.getProgramIndicator().getUid(), programSection);
+                if (key != null && relationKeys.contains(key) && persistedKeys.add(key)) {
+                    continue;
+                }
+                operations.add(DbOperation.delete(relation));
+            }
+        }
+        for (ProgramIndicatorToSectionRelationship relation : relations) {
+            if (!persistedKeys.contains(getRelationKey(relation.getProgramIndicator().getUid(),
+                    relation.getProgramSection()))) {
+                operations.add(DbOperation.save(relation));
+            }
+        }
+        return operations;
+    }
+
+    private static String getRelationKey(String programIndicator, String programSection) {
+        return programIndicator + ":" + programSection;
     }
 
     private static List<DbOperation> saveDataElementAttributes(DataElement dataElement, Map<String, Attribute> attributes){
         List<DbOperation> operations = new ArrayList<>();
+        if (dataElement == null) {
+            return operations;
+        }
         List<AttributeValue> attributeValues = dataElement.getAttributeValues();
-        if (attributeValues!=null && !attributeValues.isEmpty()) {
-            for (AttributeValue attributeValue : attributeValues) {
-                attributeValue.setDataElement(dataElement.getUid());
-                //Search for the attribute in the map, if not there, search for it in the DB, if not there create it
+        if (attributeValues == null || attributeValues.isEmpty()) {
+            return operations;
+        }
+
+        // attribute values have a generated id, so they are matched by attribute
+        Map<String, AttributeValue> oldValues = new HashMap<>();
+        for (AttributeValue oldValue : MetaDataController.getAttributeValues(dataElement)) {
+            if (oldValues.containsKey(oldValue.getAttributeId())) {
+                operations.add(DbOperation.delete(oldValue));
+            } else {
+                oldValues.put(oldValue.getAttributeId(), oldValue);
+            }
+        }
+
+        for (AttributeValue attributeValue : attributeValues) {
+            attributeValue.setDataElement(dataElement.getUid());
+            AttributeValue oldValue = oldValues.remove(attributeValue.getAttributeId());
+            if (oldValue == null) {
                 operations.add(DbOperation.save(attributeValue));
-                Attribute attribute = attributes.get(attributeValue.getAttributeId());
-                if (attribute == null)
-                    attribute = attributeValue.getAttributeObj();
-                if (attribute == null)
-                    attribute = attributeValue.getAttribute();
-                attributes.put(attributeValue.getAttributeId(), attribute);
-                operations.add(DbOperation.save(attribute));
+            } else if (!equals(oldValue.getValue(), attributeValue.getValue())
+                    || !equals(oldValue.getLastUpdated(), attributeValue.getLastUpdated())) {
+                attributeValue.setId(oldValue.getId());
+                operations.add(DbOperation.update(attributeValue));
+            }
+
+            //Search for the attribute in the map, if not there, search for it in the DB, if not there create it
+            if (attributes.containsKey(attributeValue.getAttributeId())) {
+                continue;
+            }
+            Attribute attribute = attributeValue.getAttributeObj();
+            Attribute oldAttribute = MetaDataController.getAttribute(attributeValue.getAttributeId());
+            attributes.put(attributeValue.getAttributeId(), attribute != null ? attribute : oldAttribute);
+            if (attribute != null) {
+                operations.addAll(DbUtils.createOperations(asList(oldAttribute), asList(attribute), true));
             }
         }
+        for (AttributeValue removed : oldValues.values()) {
+            operations.add(DbOperation.delete(removed));
+        }
         return operations;
     }
+
+    private static <T> List<T> asList(T item) {
+        List<T> list = new ArrayList<>();
+        if (item != null) {
+            list.add(item);
+        }
+        return list;
+    }
+
+    private static boolean equals(String first, String second) {
+        return first == null ? second == null : first.equals(second);
+    }
 }
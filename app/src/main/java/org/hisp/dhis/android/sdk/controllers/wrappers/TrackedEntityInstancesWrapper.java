@@ -32,6 +32,7 @@ package org.hisp.dhis.android.sdk.controllers.wrappers;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 
+import org.hisp.dhis.android.sdk.controllers.ApiEndpointContainer;
 import org.hisp.dhis.android.sdk.controllers.DhisController;
 import org.hisp.dhis.android.sdk.persistence.models.Header;
 import org.hisp.dhis.android.sdk.persistence.models.TrackedEntityAttributeValue;
@@ -42,6 +43,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import retrofit.client.Response;
+
 /**
  * Wrapper class to support loading of TrackedEntityInstances due to the strange structure of
  * the JSON output from the server.
@@ -102,4 +105,16 @@ public class TrackedEntityInstancesWrapper {
         return trackedEntityInstances;
     }
 
+    /**
+     * Streams the tracked entity instances of a response from the trackedEntityInstances
+     * endpoint in JSON format, including any nested enrollments and events.
+     *
+     * @param response
+     * @return
+     */
+    public static List<TrackedEntityInstance> readTrackedEntityInstances(Response response) throws IOException {
+        return JsonStreamReader.readList(response, ApiEndpointContainer.TRACKED_ENTITY_INSTANCES,
+                TrackedEntityInstance.class);
+    }
+
 }
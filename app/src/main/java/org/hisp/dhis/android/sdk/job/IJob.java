@@ -35,4 +35,6 @@ public interface IJob<T> {
     T inBackground();
 
     void onFinish(T result);
+
+    void onCancel();
 }
\ No newline at end of file
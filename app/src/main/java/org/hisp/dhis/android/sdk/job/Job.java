@@ -34,11 +34,47 @@ import android.os.AsyncTask;
 import static org.hisp.dhis.android.sdk.utils.Preconditions.isNull;
 
 public abstract class Job<T> extends AsyncTask<Void, Void, T> implements IJob<T> {
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_LOW = 2;
+
     private final int mJobId;
+    private final String mKey;
+    private final int mPriority;
+    private final String mLane;
     private JobExecutor mJobExecutor;
+    private long mSequence;
+    private long mEnqueueTime;
 
     public Job(int jobId) {
+        this(jobId, null, PRIORITY_NORMAL);
+    }
+
+    /**
+     * @param jobId
+     * @param key      distinguishes jobs with the same id which may be enqueued at the same
+     *                 time, or null if only one job with the id may be enqueued
+     * @param priority one of {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL}
+     *                 or {@link #PRIORITY_LOW}
+     */
+    public Job(int jobId, String key, int priority) {
+        this(jobId, key, priority, null);
+    }
+
+    /**
+     * @param jobId
+     * @param key      distinguishes jobs with the same id which may be enqueued at the same
+     *                 time, or null if only one job with the id may be enqueued
+     * @param priority one of {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL}
+     *                 or {@link #PRIORITY_LOW}
+     * @param lane     jobs in the same lane never run at the same time, even if their ids
+     *                 differ, or null if the job may run next to any other job
+     */
+    public Job(int jobId, String key, int priority, String lane) {
         mJobId = isNull(jobId, "Job ID must not be null");
+        mKey = key;
+        mPriority = priority;
+        mLane = lane;
     }
 
     public final void onBind(JobExecutor executor) {
@@ -68,11 +104,28 @@ public abstract class Job<T> extends AsyncTask<Void, Void, T> implements IJob<T>
         mJobExecutor.onFinishJob(this);
     }
 
+    @Override
+    public final void onCancelled(T result) {
+        onCancel();
+        if (mJobExecutor != null) {
+            mJobExecutor.onFinishJob(this);
+        }
+    }
+
     @Override
     public void onFinish(T result) {
         // overriding method here just for convenience
     }
 
+    /**
+     * Called instead of {@link #onFinish(Object)} when the job has been cancelled, either
+     * before it was started or while it was running.
+     */
+    @Override
+    public void onCancel() {
+        // overriding method here just for convenience
+    }
+
     public final void onUnbind() {
         mJobExecutor = null;
     }
@@ -80,4 +133,36 @@ public abstract class Job<T> extends AsyncTask<Void, Void, T> implements IJob<T>
     public final int getJobId() {
         return mJobId;
     }
+
+    public final String getJobKey() {
+        return mKey == null ? String.valueOf(mJobId) : mJobId + ":" + mKey;
+    }
+
+    public final int getPriority() {
+        return mPriority;
+    }
+
+    public final String getLane() {
+        return mLane;
+    }
+
+    /**
+     * Returns the {@link JobExecutor} pool this job runs in.
+     */
+    public int getPool() {
+        return JobExecutor.POOL_DATABASE;
+    }
+
+    final void onEnqueue(long sequence, long enqueueTime) {
+        mSequence = sequence;
+        mEnqueueTime = enqueueTime;
+    }
+
+    final long getSequence() {
+        return mSequence;
+    }
+
+    final long getEnqueueTime() {
+        return mEnqueueTime;
+    }
 }
\ No newline at end of file
@@ -29,35 +29,55 @@
 
 package org.hisp.dhis.android.sdk.job;
 
-import android.os.AsyncTask;
-
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.hisp.dhis.android.sdk.utils.Preconditions.isNull;
 
+/**
+ * Runs jobs in two bounded pools, one for network requests and one for database work.
+ * Pending jobs are started in order of their priority, and jobs with the same key are only
+ * enqueued once. Jobs sharing a lane run one after another, while later jobs of other lanes
+ * may overtake them. Low priority jobs never take the last thread of a pool, so user initiated
+ * jobs are not starved by long running background work. Jobs may be enqueued from any thread.
+ */
 public final class JobExecutor {
     private static final String TAG = JobExecutor.class.getSimpleName();
-    private static final int MAX_RUNNING_JOBS = 64;
+    public static final int POOL_NETWORK = 0;
+    public static final int POOL_DATABASE = 1;
+
+    private static final int NETWORK_POOL_SIZE = 3;
+    private static final int DATABASE_POOL_SIZE = 2;
 
     private static JobExecutor mJobExecutor;
 
-    private Queue<Job> mPendingJobs;
-    private Queue<Job> mRunningJobs;
-    private Map<Integer, Job> mPendingJobIds;
-    private Map<Integer, Job> mRunningJobIds;
+    private final JobPool[] mPools;
+    private final Map<String, Job> mPendingJobKeys;
+    private final Map<String, Job> mRunningJobKeys;
+    private final Set<String> mRunningLanes;
+    private long mSequence;
 
     private JobExecutor() {
-        mPendingJobs = new LinkedList<>();
-        mRunningJobs = new LinkedList<>();
+        mPools = new JobPool[]{
+                new JobPool(NETWORK_POOL_SIZE),
+                new JobPool(DATABASE_POOL_SIZE)
+        };
 
-        mPendingJobIds = new HashMap<>();
-        mRunningJobIds = new HashMap<>();
+        mPendingJobKeys = new HashMap<>();
+        mRunningJobKeys = new HashMap<>();
+        mRunningLanes = new HashSet<>();
     }
 
-    public static JobExecutor getInstance() {
+    public static synchronized JobExecutor getInstance() {
         if (mJobExecutor == null) {
             mJobExecutor = new JobExecutor();
         }
@@ -65,77 +85,189 @@ public final class JobExecutor {
         return mJobExecutor;
     }
 
-    private static <T> void run(AsyncTask<Void, Void, T> task) {
-        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-    }
-
+    /**
+     * Enqueues the given job, unless a job with the same key is pending or running already.
+     *
+     * @return the given job, or the job with the same key which has been enqueued before
+     */
     public static <T> Job enqueueJob(Job<T> job) {
         isNull(job, "Job object must not be null");
 
         JobExecutor executor = getInstance();
-        if (!executor.isJobEnqueued(job.getJobId())) {
+        List<Job> jobsToStart;
+        synchronized (executor) {
+            Job enqueuedJob = executor.getEnqueuedJob(job.getJobKey());
+            if (enqueuedJob != null) {
+                return enqueuedJob;
+            }
             executor.enqueuePendingJob(job);
-            executor.executeNextJob();
+            jobsToStart = executor.pollNextJobs(executor.mPools[job.getPool()]);
         }
+        executor.startJobs(jobsToStart);
         return job;
     }
 
+    /**
+     * Returns true if any job with the given id is pending or running.
+     */
     public static boolean isJobRunning(int jobId) {
         JobExecutor executor = getInstance();
-        return executor.isJobEnqueued(jobId);
+        synchronized (executor) {
+            return executor.findJobs(executor.mPendingJobKeys, jobId).size() > 0 ||
+                    executor.findJobs(executor.mRunningJobKeys, jobId).size() > 0;
+        }
     }
 
-    private void executeNextJob() {
-        if (mRunningJobIds.size() < MAX_RUNNING_JOBS &&
-                mPendingJobs.size() > 0) {
-            Job job = mPendingJobs.peek();
-            dequeuePendingJob(job);
-            onStartJob(job);
+    /**
+     * Removes pending jobs with the given id and cancels running ones. Cancelled jobs get
+     * {@link Job#onCancel()} called instead of {@link Job#onFinish(Object)}; pending jobs
+     * on the calling thread, running ones once their work has stopped.
+     */
+    public static void cancelJob(int jobId) {
+        JobExecutor executor = getInstance();
+        List<Job> pendingJobs;
+        List<Job> runningJobs;
+        synchronized (executor) {
+            pendingJobs = executor.findJobs(executor.mPendingJobKeys, jobId);
+            for (Job job : pendingJobs) {
+                executor.dequeuePendingJob(job);
+            }
+            runningJobs = executor.findJobs(executor.mRunningJobKeys, jobId);
+        }
+        for (Job job : pendingJobs) {
+            job.onCancel();
+        }
+        for (Job job : runningJobs) {
+            job.cancel(true);
         }
     }
 
-    <T> void onStartJob(Job<T> job) {
-        bindJob(job);
-        run(job);
+    /**
+     * Returns the current queue depth and wait times of the given pool.
+     *
+     * @param pool {@link #POOL_NETWORK} or {@link #POOL_DATABASE}
+     */
+    public static JobMetrics getMetrics(int pool) {
+        JobExecutor executor = getInstance();
+        synchronized (executor) {
+            JobPool jobPool = executor.mPools[pool];
+            return new JobMetrics(pool, jobPool.pendingJobs.size(), jobPool.runningJobs,
+                    jobPool.startedJobs, jobPool.totalWaitMillis, jobPool.maxWaitMillis);
+        }
     }
 
     void onFinishJob(Job job) {
-        unbindJob(job);
-        executeNextJob();
+        List<Job> jobsToStart = new ArrayList<>();
+        synchronized (this) {
+            job.onUnbind();
+            dequeueRunningJob(job);
+            // the released lane may hold back jobs of the other pool as well
+            for (JobPool pool : mPools) {
+                jobsToStart.addAll(pollNextJobs(pool));
+            }
+        }
+        startJobs(jobsToStart);
     }
 
-    <T> void bindJob(Job<T> job) {
-        job.onBind(this);
-        enqueueRunningJob(job);
+    private List<Job> pollNextJobs(JobPool pool) {
+        List<Job> jobs = new ArrayList<>();
+        Iterator<Job> pendingJobs = pool.pendingJobs.iterator();
+        while (pool.runningJobs < pool.size && pendingJobs.hasNext()) {
+            Job job = pendingJobs.next();
+            if (job.getPriority() >= Job.PRIORITY_LOW && pool.runningJobs >= pool.size - 1) {
+                // the queue is ordered, so only low priority jobs are left
+                break;
+            }
+            if (job.getLane() != null && mRunningLanes.contains(job.getLane())) {
+                // waits for the running job of its lane
+                continue;
+            }
+            pendingJobs.remove();
+            mPendingJobKeys.remove(job.getJobKey());
+            enqueueRunningJob(job);
+
+            long waitMillis = System.currentTimeMillis() - job.getEnqueueTime();
+            pool.startedJobs++;
+            pool.totalWaitMillis += waitMillis;
+            pool.maxWaitMillis = Math.max(pool.maxWaitMillis, waitMillis);
+            jobs.add(job);
+        }
+        return jobs;
     }
 
-    <T> void unbindJob(Job<T> job) {
-        job.onUnbind();
-        dequeueRunningJob(job);
+    @SuppressWarnings("unchecked")
+    private void startJobs(List<Job> jobs) {
+        for (Job job : jobs) {
+            job.executeOnExecutor(mPools[job.getPool()].executor);
+        }
     }
 
     private void enqueuePendingJob(Job job) {
-        mPendingJobIds.put(job.getJobId(), job);
-        mPendingJobs.add(job);
+        job.onEnqueue(mSequence++, System.currentTimeMillis());
+        mPendingJobKeys.put(job.getJobKey(), job);
+        mPools[job.getPool()].pendingJobs.add(job);
     }
 
     private void dequeuePendingJob(Job job) {
-        mPendingJobIds.remove(job.getJobId());
-        mPendingJobs.remove(job);
+        mPendingJobKeys.remove(job.getJobKey());
+        mPools[job.getPool()].pendingJobs.remove(job);
     }
 
     private void enqueueRunningJob(Job job) {
-        mRunningJobIds.put(job.getJobId(), job);
-        mRunningJobs.add(job);
+        job.onBind(this);
+        mRunningJobKeys.put(job.getJobKey(), job);
+        if (job.getLane() != null) {
+            mRunningLanes.add(job.getLane());
+        }
+        mPools[job.getPool()].runningJobs++;
     }
 
-    public void dequeueRunningJob(Job job) {
-        mRunningJobIds.remove(job.getJobId());
-        mRunningJobs.remove(job);
+    private void dequeueRunningJob(Job job) {
+        if (mRunningJobKeys.remove(job.getJobKey()) != null) {
+            if (job.getLane() != null) {
+                mRunningLanes.remove(job.getLane());
+            }
+            mPools[job.getPool()].runningJobs--;
+        }
     }
 
-    private boolean isJobEnqueued(int jobId) {
-        return mPendingJobIds.get(jobId) != null ||
-                mRunningJobIds.get(jobId) != null;
+    private Job getEnqueuedJob(String jobKey) {
+        Job job = mPendingJobKeys.get(jobKey);
+        return job != null ? job : mRunningJobKeys.get(jobKey);
+    }
+
+    private List<Job> findJobs(Map<String, Job> jobKeys, int jobId) {
+        List<Job> jobs = new ArrayList<>();
+        for (Job job : jobKeys.values()) {
+            if (job.getJobId() == jobId) {
+                jobs.add(job);
+            }
+        }
+        return jobs;
+    }
+
+    private static final class JobPool {
+        final int size;
+        final ExecutorService executor;
+        final TreeSet<Job> pendingJobs;
+        int runningJobs;
+        long startedJobs;
+        long totalWaitMillis;
+        long maxWaitMillis;
+
+        JobPool(int size) {
+            this.size = size;
+            this.executor = Executors.newFixedThreadPool(size);
+            this.pendingJobs = new TreeSet<>(new Comparator<Job>() {
+                @Override
+                public int compare(Job lhs, Job rhs) {
+                    if (lhs.getPriority() != rhs.getPriority()) {
+                        return lhs.getPriority() < rhs.getPriority() ? -1 : 1;
+                    }
+                    return lhs.getSequence() < rhs.getSequence() ? -1 :
+                            (lhs.getSequence() == rhs.getSequence() ? 0 : 1);
+                }
+            });
+        }
     }
-}
\ No newline at end of file
+}
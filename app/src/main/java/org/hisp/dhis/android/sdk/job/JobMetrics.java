@@ -0,0 +1,92 @@
+/*
+ *  Copyright (c) 2016, University of Oslo
+ *  * All rights reserved.
+ *  *
+ *  * Redistribution and use in source and binary forms, with or without
+ *  * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *  * list of conditions and the following disclaimer.
+ *  *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *  * this list of conditions and the following disclaimer in the documentation
+ *  * and/or other materials provided with the distribution.
+ *  * Neither the name of the HISP project nor the names of its contributors may
+ *  * be used to endorse or promote products derived from this software without
+ *  * specific prior written permission.
+ *  *
+ *  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package org.hisp.dhis.android.sdk.job;
+
+/**
+ * Snapshot of the queue depth and wait times of one pool of the {@link JobExecutor}.
+ */
+public final class JobMetrics {
+    private final int mPool;
+    private final int mPendingJobs;
+    private final int mRunningJobs;
+    private final long mStartedJobs;
+    private final long mTotalWaitMillis;
+    private final long mMaxWaitMillis;
+
+    JobMetrics(int pool, int pendingJobs, int runningJobs, long startedJobs,
+               long totalWaitMillis, long maxWaitMillis) {
+        mPool = pool;
+        mPendingJobs = pendingJobs;
+        mRunningJobs = runningJobs;
+        mStartedJobs = startedJobs;
+        mTotalWaitMillis = totalWaitMillis;
+        mMaxWaitMillis = maxWaitMillis;
+    }
+
+    public int getPool() {
+        return mPool;
+    }
+
+    /**
+     * Returns the number of jobs waiting for a free thread.
+     */
+    public int getPendingJobs() {
+        return mPendingJobs;
+    }
+
+    public int getRunningJobs() {
+        return mRunningJobs;
+    }
+
+    public long getStartedJobs() {
+        return mStartedJobs;
+    }
+
+    /**
+     * Returns the average time in millis jobs have waited between being enqueued and started.
+     */
+    public long getAverageWaitMillis() {
+        return mStartedJobs == 0 ? 0 : mTotalWaitMillis / mStartedJobs;
+    }
+
+    public long getMaxWaitMillis() {
+        return mMaxWaitMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "JobMetrics{pool=" + mPool +
+                ", pending=" + mPendingJobs +
+                ", running=" + mRunningJobs +
+                ", started=" + mStartedJobs +
+                ", averageWait=" + getAverageWaitMillis() +
+                ", maxWait=" + mMaxWaitMillis + "}";
+    }
+}
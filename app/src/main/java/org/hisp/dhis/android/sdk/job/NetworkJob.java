@@ -35,6 +35,8 @@ import org.hisp.dhis.android.sdk.network.APIException;
 import org.hisp.dhis.android.sdk.persistence.Dhis2Application;
 import org.hisp.dhis.android.sdk.persistence.preferences.ResourceType;
 
+import java.util.concurrent.CancellationException;
+
 public abstract class NetworkJob<T> extends Job<ResponseHolder<T>> {
     private final ResourceType mResourceType;
 
@@ -44,6 +46,24 @@ public abstract class NetworkJob<T> extends Job<ResponseHolder<T>> {
         mResourceType = responseType;
     }
 
+    public NetworkJob(int jobId, String key, int priority, ResourceType responseType) {
+        super(jobId, key, priority);
+
+        mResourceType = responseType;
+    }
+
+    public NetworkJob(int jobId, String key, int priority, String lane,
+                      ResourceType responseType) {
+        super(jobId, key, priority, lane);
+
+        mResourceType = responseType;
+    }
+
+    @Override
+    public final int getPool() {
+        return JobExecutor.POOL_NETWORK;
+    }
+
     @Override
     public final ResponseHolder<T> inBackground() {
         ResponseHolder<T> holder = new ResponseHolder<>();
@@ -64,6 +84,19 @@ public abstract class NetworkJob<T> extends Job<ResponseHolder<T>> {
                 new NetworkJobResult<>(mResourceType, result));
     }
 
+    /**
+     * Posts a failed {@link NetworkJobResult}, so subscribers waiting for the job are
+     * released. Subclasses overriding this method have to call through to it.
+     */
+    @Override
+    public void onCancel() {
+        ResponseHolder<T> holder = new ResponseHolder<>();
+        holder.setApiException(APIException.unexpectedError(null,
+                new CancellationException("Job " + getJobKey() + " has been cancelled")));
+        Dhis2Application.getEventBus().post(
+                new NetworkJobResult<>(mResourceType, holder));
+    }
+
     public static class NetworkJobResult<Type> {
         private final ResourceType mResourceType;
         private final ResponseHolder<Type> mResponseHolder;
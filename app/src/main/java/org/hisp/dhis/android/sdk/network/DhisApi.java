@@ -64,6 +64,7 @@ import retrofit.http.PUT;
 import retrofit.http.Path;
 import retrofit.http.Query;
 import retrofit.http.QueryMap;
+import retrofit.http.Streaming;
 import retrofit.mime.TypedString;
 
 
@@ -206,6 +207,7 @@ public interface DhisApi {
     // Methods for working with Meta data
     /////////////////////////////////////////////////////////////////////////
 
+    @Streaming
     @GET("/me/programs/")
     Response getAssignedPrograms(@QueryMap Map<String, String> queryMap);
 
@@ -213,33 +215,35 @@ public interface DhisApi {
     Program getProgram(@Path("programUid") String programUid, @QueryMap Map<String, String> queryMap);
 
     @GET("/" + ApiEndpointContainer.OPTION_SETS + "?paging=false")
-    Map<String, List<OptionSet>> getOptionSets(@QueryMap Map<String, String> queryParams);
+    Response getOptionSets(@QueryMap Map<String, String> queryParams);
 
     @GET("/" + ApiEndpointContainer.TRACKED_ENTITY_ATTRIBUTES + "?paging=false")
     Map<String, List<TrackedEntityAttribute>> getTrackedEntityAttributes(@QueryMap Map<String, String> queryParams);
 
     @GET("/" + ApiEndpointContainer.CONSTANTS + "?paging=false")
-    Map<String, List<Constant>> getConstants(@QueryMap Map<String, String> queryParams);
+    Response getConstants(@QueryMap Map<String, String> queryParams);
 
     @GET("/" + ApiEndpointContainer.PROGRAMRULES + "?paging=false")
-    Map<String, List<ProgramRule>> getProgramRules(@QueryMap Map<String, String> queryParams);
+    Response getProgramRules(@QueryMap Map<String, String> queryParams);
 
 
     @GET("/" + ApiEndpointContainer.PROGRAMRULEVARIABLES + "?paging=false")
-    Map<String, List<ProgramRuleVariable>> getProgramRuleVariables(@QueryMap Map<String, String> queryParams);
+    Response getProgramRuleVariables(@QueryMap Map<String, String> queryParams);
 
     @GET("/" + ApiEndpointContainer.PROGRAMRULEACTIONS + "?paging=false")
-    Map<String, List<ProgramRuleAction>> getProgramRuleActions(@QueryMap Map<String, String> queryParams);
+    Response getProgramRuleActions(@QueryMap Map<String, String> queryParams);
 
     @GET("/" + ApiEndpointContainer.RELATIONSHIPTYPES + "?paging=false")
-    Map<String, List<RelationshipType>> getRelationshipTypes(@QueryMap Map<String, String> queryParams);
+    Response getRelationshipTypes(@QueryMap Map<String, String> queryParams);
 
     /////////////////////////////////////////////////////////////////////////
     // Methods for working with Tracker Data Values
     /////////////////////////////////////////////////////////////////////////
-    @GET("/" + ApiEndpointContainer.EVENTS + "?page=0")
-    JsonNode getEvents(@Query("program") String programUid,
+    @Streaming
+    @GET("/" + ApiEndpointContainer.EVENTS + "?totalPages=true")
+    Response getEvents(@Query("program") String programUid,
                                        @Query("orgUnit") String organisationUnitUid,
+                                       @Query("page") int page,
                                        @Query("pageSize") int eventLimit,
                                        @QueryMap Map<String, String> queryParams);
 
@@ -250,6 +254,10 @@ public interface DhisApi {
                                                             trackedEntityInstanceUid,
                                                     @QueryMap Map<String, String> queryParams);
 
+    @Streaming
+    @GET("/"+ApiEndpointContainer.EVENTS)
+    Response queryEvents(@QueryMap Map<String, String> queryParams);
+
     @GET("/"+ApiEndpointContainer.EVENTS+"/{eventUid}")
     Event getEvent(@Path("eventUid") String eventUid, @QueryMap Map<String, String> queryMap);
 
@@ -259,6 +267,14 @@ public interface DhisApi {
     @PUT("/"+ApiEndpointContainer.EVENTS+"/{eventUid}")
     Response putEvent(@Path("eventUid") String eventUid, @Body Event event);
 
+    @PUT("/"+ApiEndpointContainer.EVENTS+"/{eventUid}/{dataElementUid}")
+    Response putEventDataValue(@Path("eventUid") String eventUid, @Path("dataElementUid") String dataElementUid,
+                               @Body Map<String, Object> event);
+
+    @Streaming
+    @POST("/"+ApiEndpointContainer.EVENTS+"?strategy=CREATE_AND_UPDATE")
+    Response postEvents(@Body Map<String, List<Event>> events);
+
     @GET("/"+ApiEndpointContainer.ENROLLMENTS+"/{enrollmentUid}")
     Enrollment getEnrollment(@Path("enrollmentUid") String enrollmentUid, @QueryMap Map<String, String> queryMap);
 
@@ -277,6 +293,10 @@ public interface DhisApi {
     @GET("/"+ApiEndpointContainer.TRACKED_ENTITY_INSTANCES+"?skipPaging=true")
     Map<String, List<TrackedEntityInstance>> getTrackedEntityInstances(@Query("ou") String organisationUnitUid, @QueryMap Map<String, String> queryMap);
 
+    @Streaming
+    @GET("/"+ApiEndpointContainer.TRACKED_ENTITY_INSTANCES)
+    Response queryTrackedEntityInstances(@QueryMap Map<String, String> queryParams);
+
     @POST("/"+ApiEndpointContainer.TRACKED_ENTITY_INSTANCES+"/")
     Response postTrackedEntityInstance(@Body TrackedEntityInstance trackedEntityInstance);
 
@@ -31,46 +31,152 @@ package org.hisp.dhis.android.sdk.network;
 
 import android.util.Log;
 
+import com.squareup.okhttp.Cache;
 import com.squareup.okhttp.HttpUrl;
 import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
 import com.squareup.okhttp.Response;
 
 import org.hisp.dhis.android.sdk.controllers.DhisController;
 import org.hisp.dhis.android.sdk.utils.StringConverter;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.util.concurrent.TimeUnit;
 
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
 import retrofit.ErrorHandler;
 import retrofit.RestAdapter;
 import retrofit.RetrofitError;
+import retrofit.client.Header;
 import retrofit.client.OkClient;
 import retrofit.converter.ConversionException;
 import retrofit.converter.Converter;
 import retrofit.converter.JacksonConverter;
 
 import static com.squareup.okhttp.Credentials.basic;
+import static org.hisp.dhis.android.sdk.utils.Preconditions.isNull;
 
 
 public final class RepoManager {
     static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 60 * 1000; // 60s
     static final int DEFAULT_READ_TIMEOUT_MILLIS = 60 * 1000; // 60s
     static final int DEFAULT_WRITE_TIMEOUT_MILLIS = 60 * 1000; // 60s
+    public static final long GZIP_REQUESTS_DISABLED = -1;
+    public static final long DEFAULT_HTTP_CACHE_SIZE = 10 * 1024 * 1024; // 10 MiB
+
+    private static volatile RestAdapter.LogLevel logLevel = RestAdapter.LogLevel.BASIC;
+    private static volatile long gzipRequestThreshold = GZIP_REQUESTS_DISABLED;
+    private static volatile Cache httpCache;
+
+    /* added by NotModifiedInterceptor, never sent to or received from the server */
+    private static final String NOT_MODIFIED_HEADER = "X-Dhis2-Sdk-Not-Modified";
 
     private RepoManager() {
         // no instances
     }
 
+    /**
+     * Sets the log level of services created after this call. Levels below FULL don't
+     * log bodies, so request and response bodies are streamed instead of buffered in memory.
+     * Defaults to BASIC.
+     *
+     * @param level
+     */
+    public static void setLogLevel(RestAdapter.LogLevel level) {
+        isNull(level, "LogLevel object must not be null");
+        logLevel = level;
+    }
+
+    public static RestAdapter.LogLevel getLogLevel() {
+        return logLevel;
+    }
+
+    /**
+     * Enables gzip compression of request bodies which are larger than the given number of
+     * bytes, for services created after this call. The server has to accept gzip encoded
+     * request bodies, so compression is disabled by default. Responses are always requested
+     * with gzip encoding and decompressed transparently by OkHttp.
+     *
+     * @param bytes minimum body size to compress, or GZIP_REQUESTS_DISABLED
+     */
+    public static void setGzipRequestThreshold(long bytes) {
+        gzipRequestThreshold = bytes;
+    }
+
+    public static long getGzipRequestThreshold() {
+        return gzipRequestThreshold;
+    }
+
+    /**
+     * Enables an on-disk http cache in the given directory for services created after this
+     * call. Cached responses with an ETag or Last-Modified header are revalidated with
+     * conditional requests, so the server can answer 304 Not Modified without a body.
+     * The cache is disabled by default: while it is enabled, meta data which supports it is
+     * requested without a lastUpdated filter, so it only pays off on servers which send
+     * validators for those resources.
+     *
+     * @param directory directory of the cache, or null to disable caching
+     * @param maxSize
+     */
+    public static void setHttpCache(File directory, long maxSize) {
+        if (directory == null) {
+            httpCache = null;
+        } else {
+            httpCache = new Cache(directory, maxSize);
+        }
+    }
+
+    public static boolean isHttpCacheEnabled() {
+        return httpCache != null;
+    }
+
+    /**
+     * Removes all responses from the http cache.
+     */
+    public static void clearHttpCache() {
+        Cache cache = httpCache;
+        if (cache != null) {
+            try {
+                cache.evictAll();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the given response was served from the http cache after the server
+     * answered 304 Not Modified.
+     *
+     * @param response
+     * @return
+     */
+    public static boolean isNotModified(retrofit.client.Response response) {
+        if (response == null || response.getHeaders() == null) {
+            return false;
+        }
+        for (Header header : response.getHeaders()) {
+            if (NOT_MODIFIED_HEADER.equalsIgnoreCase(header.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static DhisApi createService(HttpUrl serverUrl, Credentials credentials) {
         RestAdapter restAdapter = new RestAdapter.Builder()
                 .setEndpoint(provideServerUrl(serverUrl))
                 .setConverter(provideJacksonConverter())
                 .setClient(provideOkClient(credentials))
                 .setErrorHandler(new RetrofitErrorHandler())
-                .setLogLevel(RestAdapter.LogLevel.FULL)
+                .setLogLevel(logLevel)
                 .build();
         return restAdapter.create(DhisApi.class);
     }
@@ -92,6 +198,13 @@ public final class RepoManager {
     public static OkHttpClient provideOkHttpClient(Credentials credentials) {
         OkHttpClient client = new OkHttpClient();
         client.interceptors().add(provideInterceptor(credentials));
+        client.interceptors().add(new NotModifiedInterceptor());
+        if (httpCache != null) {
+            client.setCache(httpCache);
+        }
+        if (gzipRequestThreshold >= 0) {
+            client.interceptors().add(new GzipRequestInterceptor(gzipRequestThreshold));
+        }
         client.setConnectTimeout(DEFAULT_CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
         client.setReadTimeout(DEFAULT_READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
         client.setWriteTimeout(DEFAULT_WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
@@ -128,6 +241,75 @@ public final class RepoManager {
         }
     }
 
+    /**
+     * Marks responses which were validated against the http cache with a 304 response,
+     * so the state travels with the response to every caller reading it.
+     */
+    private static class NotModifiedInterceptor implements Interceptor {
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Response response = chain.proceed(chain.request());
+            if (response.cacheResponse() != null && response.networkResponse() != null &&
+                    response.networkResponse().code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return response.newBuilder()
+                        .header(NOT_MODIFIED_HEADER, "true")
+                        .build();
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Compresses request bodies of at least the given size with gzip. Accept-Encoding is
+     * left to OkHttp, which only decompresses responses transparently if it sets the
+     * header itself.
+     */
+    private static class GzipRequestInterceptor implements Interceptor {
+        private final long mThreshold;
+
+        public GzipRequestInterceptor(long threshold) {
+            mThreshold = threshold;
+        }
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            RequestBody body = request.body();
+            if (body == null || request.header("Content-Encoding") != null ||
+                    body.contentLength() < mThreshold) {
+                return chain.proceed(request);
+            }
+
+            Request compressedRequest = request.newBuilder()
+                    .header("Content-Encoding", "gzip")
+                    .method(request.method(), gzip(body))
+                    .build();
+            return chain.proceed(compressedRequest);
+        }
+
+        private static RequestBody gzip(final RequestBody body) {
+            return new RequestBody() {
+                @Override
+                public MediaType contentType() {
+                    return body.contentType();
+                }
+
+                @Override
+                public long contentLength() {
+                    return -1; // unknown until compressed, sent chunked
+                }
+
+                @Override
+                public void writeTo(BufferedSink sink) throws IOException {
+                    BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+                    body.writeTo(gzipSink);
+                    gzipSink.close();
+                }
+            };
+        }
+    }
+
     private static class RetrofitErrorHandler implements ErrorHandler {
 
         @Override
@@ -0,0 +1,208 @@
+/*
+ *  Copyright (c) 2016, University of Oslo
+ *  * All rights reserved.
+ *  *
+ *  * Redistribution and use in source and binary forms, with or without
+ *  * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *  * list of conditions and the following disclaimer.
+ *  *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *  * this list of conditions and the following disclaimer in the documentation
+ *  * and/or other materials provided with the distribution.
+ *  * Neither the name of the HISP project nor the names of its contributors may
+ *  * be used to endorse or promote products derived from this software without
+ *  * specific prior written permission.
+ *  *
+ *  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package org.hisp.dhis.android.sdk.network;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.hisp.dhis.android.sdk.persistence.models.SystemInfo;
+import org.joda.time.DateTime;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import retrofit.http.GET;
+
+import static org.hisp.dhis.android.sdk.utils.Preconditions.isNull;
+
+/**
+ * Wraps a {@link DhisApi} for the duration of one synchronization pass. A session is opened
+ * once at the start of a synchronization job and passed down to the controllers.
+ * The server time is fetched once per session and reused for every resource loaded in it,
+ * and identical GET requests for JSON trees which are in flight at the same time are sent
+ * to the server only once, with every caller receiving its own copy of the tree.
+ */
+public final class SyncSession {
+    private final DhisApi mDelegate;
+    private final DhisApi mDhisApi;
+    private final ConcurrentMap<RequestKey, FutureTask<JsonNode>> mInFlightRequests;
+
+    private SystemInfo mSystemInfo;
+
+    private SyncSession(DhisApi delegate) {
+        mDelegate = delegate;
+        mInFlightRequests = new ConcurrentHashMap<>();
+        mDhisApi = (DhisApi) Proxy.newProxyInstance(DhisApi.class.getClassLoader(),
+                new Class<?>[]{DhisApi.class}, new SessionInvocationHandler());
+    }
+
+    /**
+     * Opens a new session for the given api.
+     *
+     * @param dhisApi
+     * @return
+     */
+    public static SyncSession open(DhisApi dhisApi) {
+        isNull(dhisApi, "DhisApi object must not be null");
+
+        return new SyncSession(dhisApi);
+    }
+
+    /**
+     * Returns the api which should be passed on to controllers during this session.
+     *
+     * @return
+     */
+    public DhisApi getDhisApi() {
+        return mDhisApi;
+    }
+
+    /**
+     * Returns the server system info, which is loaded from the server on first access only.
+     *
+     * @return
+     */
+    public synchronized SystemInfo getSystemInfo() {
+        if (mSystemInfo == null) {
+            mSystemInfo = mDelegate.getSystemInfo();
+        }
+        return mSystemInfo;
+    }
+
+    public DateTime getServerDateTime() {
+        return getSystemInfo().getServerDate();
+    }
+
+    private JsonNode invokeShared(final Method method, final Object[] args) throws Throwable {
+        RequestKey key = new RequestKey(method, args);
+        FutureTask<JsonNode> request = new FutureTask<>(new Callable<JsonNode>() {
+            @Override
+            public JsonNode call() throws Exception {
+                return (JsonNode) invokeDelegate(method, args);
+            }
+        });
+
+        FutureTask<JsonNode> inFlightRequest = mInFlightRequests.putIfAbsent(key, request);
+        if (inFlightRequest == null) {
+            inFlightRequest = request;
+            try {
+                request.run();
+            } finally {
+                mInFlightRequests.remove(key, request);
+            }
+        }
+
+        try {
+            // callers may modify the tree, so none of them gets the shared one
+            JsonNode response = inFlightRequest.get();
+            return response == null ? null : response.deepCopy();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw APIException.unexpectedError(null, e);
+        }
+    }
+
+    private Object invokeDelegate(Method method, Object[] args) throws Exception {
+        try {
+            return method.invoke(mDelegate, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private class SessionInvocationHandler implements InvocationHandler {
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                if ("equals".equals(method.getName())) {
+                    return proxy == args[0];
+                } else if ("hashCode".equals(method.getName())) {
+                    return System.identityHashCode(proxy);
+                }
+                return SyncSession.class.getSimpleName() + "(" + mDelegate + ")";
+            }
+
+            if ("getSystemInfo".equals(method.getName())) {
+                return getSystemInfo();
+            }
+
+            // only JSON trees can be copied for each caller. Models are modified by the
+            // callers, and the body of a raw Response can be consumed only once.
+            if (method.isAnnotationPresent(GET.class) &&
+                    JsonNode.class.equals(method.getReturnType())) {
+                return invokeShared(method, args);
+            }
+
+            return invokeDelegate(method, args);
+        }
+    }
+
+    private static final class RequestKey {
+        private final Method mMethod;
+        private final List<Object> mArguments;
+
+        RequestKey(Method method, Object[] arguments) {
+            mMethod = method;
+            mArguments = arguments == null ? null : Arrays.asList(arguments);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof RequestKey)) {
+                return false;
+            }
+            RequestKey that = (RequestKey) o;
+            return mMethod.equals(that.mMethod) && (mArguments == null ?
+                    that.mArguments == null : mArguments.equals(that.mArguments));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mMethod.hashCode() + (mArguments == null ? 0 : mArguments.hashCode());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ *  Copyright (c) 2016, University of Oslo
+ *  * All rights reserved.
+ *  *
+ *  * Redistribution and use in source and binary forms, with or without
+ *  * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *  * list of conditions and the following disclaimer.
+ *  *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *  * this list of conditions and the following disclaimer in the documentation
+ *  * and/or other materials provided with the distribution.
+ *  * Neither the name of the HISP project nor the names of its contributors may
+ *  * be used to endorse or promote products derived from this software without
+ *  * specific prior written permission.
+ *  *
+ *  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package org.hisp.dhis.android.sdk.persistence.migrations.version7;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.raizlabs.android.dbflow.annotation.Migration;
+import com.raizlabs.android.dbflow.sql.migration.BaseMigration;
+
+import org.hisp.dhis.android.sdk.persistence.Dhis2Database;
+
+import static org.hisp.dhis.android.sdk.persistence.migrations.MigrationUtils.createIndex;
+
+/**
+ * Creates indexes for the columns the tracker and meta data queries filter on.
+ * DataValue (localEventId, dataElement) and ProgramStageDataElement (programStage) are not
+ * indexed here, as they are leading columns of the primary keys of these tables.
+ */
+@Migration(version = 7, databaseName = Dhis2Database.NAME)
+public class Version7MigrationIndexes extends BaseMigration {
+
+    @Override
+    public void migrate(SQLiteDatabase database) {
+        createIndex(database, "Event", "localEnrollmentId", "programStageId");
+        createIndex(database, "Event", "enrollment");
+        createIndex(database, "TrackedEntityAttributeValue", "localTrackedEntityInstanceId",
+                "trackedEntityAttributeId");
+        createIndex(database, "Enrollment", "localTrackedEntityInstanceId");
+        createIndex(database, "Relationship", "trackedEntityInstanceA");
+        createIndex(database, "Relationship", "trackedEntityInstanceB");
+        createIndex(database, "Option", "optionSet");
+        createIndex(database, "ProgramStageDataElement", "programStageSection");
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *  Copyright (c) 2016, University of Oslo
+ *  * All rights reserved.
+ *  *
+ *  * Redistribution and use in source and binary forms, with or without
+ *  * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *  * list of conditions and the following disclaimer.
+ *  *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *  * this list of conditions and the following disclaimer in the documentation
+ *  * and/or other materials provided with the distribution.
+ *  * Neither the name of the HISP project nor the names of its contributors may
+ *  * be used to endorse or promote products derived from this software without
+ *  * specific prior written permission.
+ *  *
+ *  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package org.hisp.dhis.android.sdk.persistence.migrations.version7;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.raizlabs.android.dbflow.annotation.Migration;
+import com.raizlabs.android.dbflow.sql.migration.BaseMigration;
+
+import org.hisp.dhis.android.sdk.persistence.Dhis2Database;
+import org.hisp.dhis.android.sdk.persistence.models.FailedItem;
+import org.hisp.dhis.android.sdk.persistence.models.OutboxItem;
+
+/**
+ * Adds items which have been changed locally before the outbox was introduced to the outbox.
+ */
+@Migration(version = 7, databaseName = Dhis2Database.NAME)
+public class Version7MigrationOutbox extends BaseMigration {
+
+    @Override
+    public void migrate(SQLiteDatabase database) {
+        enqueue(database, "TrackedEntityInstance", FailedItem.TRACKEDENTITYINSTANCE);
+        enqueue(database, "Enrollment", FailedItem.ENROLLMENT);
+        enqueue(database, "Event", FailedItem.EVENT);
+    }
+
+    private static void enqueue(SQLiteDatabase database, String table, String itemType) {
+        database.execSQL("INSERT OR IGNORE INTO OutboxItem " +
+                "(itemType, itemId, operation, priority, attempts, nextAttempt) " +
+                "SELECT '" + itemType + "', localId, " +
+                "CASE WHEN created IS NULL THEN '" + OutboxItem.OPERATION_CREATE + "' " +
+                "ELSE '" + OutboxItem.OPERATION_UPDATE + "' END, " +
+                OutboxItem.PRIORITY_NORMAL + ", 0, 0 FROM " + table + " WHERE fromServer = 0");
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ *  Copyright (c) 2016, University of Oslo
+ *  * All rights reserved.
+ *  *
+ *  * Redistribution and use in source and binary forms, with or without
+ *  * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *  * list of conditions and the following disclaimer.
+ *  *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *  * this list of conditions and the following disclaimer in the documentation
+ *  * and/or other materials provided with the distribution.
+ *  * Neither the name of the HISP project nor the names of its contributors may
+ *  * be used to endorse or promote products derived from this software without
+ *  * specific prior written permission.
+ *  *
+ *  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package org.hisp.dhis.android.sdk.persistence.migrations.version7;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.raizlabs.android.dbflow.annotation.Migration;
+import com.raizlabs.android.dbflow.sql.migration.BaseMigration;
+
+import org.hisp.dhis.android.sdk.persistence.Dhis2Database;
+import org.hisp.dhis.android.sdk.utils.support.DateUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hisp.dhis.android.sdk.persistence.migrations.MigrationUtils.createIndex;
+
+/**
+ * Adds the epoch millis columns kept next to the date strings of identifiable objects, events
+ * and enrollments, and fills them in from the existing rows. Columns which already exist are
+ * skipped, as tables created with this version of the schema have them from the start.
+ */
+@Migration(version = 7, databaseName = Dhis2Database.NAME)
+public class Version7MigrationTimestamps extends BaseMigration {
+
+    private static final String[] IDENTIFIABLE_TABLES = {
+            "Attribute", "Constant", "Dashboard", "DashboardElement", "DashboardItem",
+            "DashboardItemContent", "DataElement", "Enrollment", "Event", "Interpretation",
+            "InterpretationComment", "InterpretationElement", "Option", "OptionSet", "Program",
+            "ProgramIndicator", "ProgramRule", "ProgramRuleAction", "ProgramRuleVariable",
+            "ProgramStage", "ProgramStageSection", "RelationshipType", "TrackedEntityAttribute",
+            "TrackedEntityInstance", "User"
+    };
+
+    private static final String MILLIS_SUFFIX = "Millis";
+
+    @Override
+    public void migrate(SQLiteDatabase database) {
+        for (String table : IDENTIFIABLE_TABLES) {
+            addMillisColumns(database, table, "created", "lastUpdated");
+        }
+        addMillisColumns(database, "Event", "eventDate", "dueDate");
+        addMillisColumns(database, "Enrollment", "enrollmentDate", "incidentDate");
+
+        // created here rather than in Version7MigrationIndexes, as they need the columns above
+        createIndex(database, "Event", "organisationUnitId", "programId", "lastUpdatedMillis");
+        createIndex(database, "Event", "programId", "organisationUnitId", "dueDateMillis");
+        createIndex(database, "Enrollment", "program", "orgUnit", "enrollmentDateMillis");
+    }
+
+    private static void addMillisColumns(SQLiteDatabase database, String table,
+                                         String... dateColumns) {
+        Set<String> existingColumns = getColumns(database, table);
+        List<String> addedColumns = new ArrayList<>();
+        for (String dateColumn : dateColumns) {
+            if (existingColumns.contains(dateColumn) &&
+                    !existingColumns.contains(dateColumn + MILLIS_SUFFIX)) {
+                database.execSQL("ALTER TABLE `" + table + "` ADD COLUMN `" +
+                        dateColumn + MILLIS_SUFFIX + "` INTEGER");
+                addedColumns.add(dateColumn);
+            }
+        }
+        if (!addedColumns.isEmpty()) {
+            fillMillisColumns(database, table, addedColumns);
+        }
+    }
+
+    private static void fillMillisColumns(SQLiteDatabase database, String table,
+                                          List<String> dateColumns) {
+        StringBuilder select = new StringBuilder("SELECT rowid");
+        StringBuilder update = new StringBuilder("UPDATE `").append(table).append("` SET ");
+        for (int i = 0; i < dateColumns.size(); i++) {
+            String dateColumn = dateColumns.get(i);
+            select.append(", `").append(dateColumn).append('`');
+            update.append(i > 0 ? ", `" : "`").append(dateColumn).append(MILLIS_SUFFIX)
+                    .append("` = ?");
+        }
+        select.append(" FROM `").append(table).append('`');
+        update.append(" WHERE rowid = ?");
+
+        SQLiteStatement statement = database.compileStatement(update.toString());
+        Cursor cursor = database.rawQuery(select.toString(), null);
+        try {
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < dateColumns.size(); i++) {
+                    statement.bindLong(i + 1, DateUtils.getMillis(cursor.getString(i + 1)));
+                }
+                statement.bindLong(dateColumns.size() + 1, cursor.getLong(0));
+                statement.execute();
+            }
+        } finally {
+            cursor.close();
+            statement.close();
+        }
+    }
+
+    private static Set<String> getColumns(SQLiteDatabase database, String table) {
+        Set<String> columns = new HashSet<>();
+        Cursor cursor = database.rawQuery("PRAGMA table_info(`" + table + "`)", null);
+        try {
+            int nameIndex = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(nameIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns;
+    }
+}
@@ -37,6 +37,7 @@ import com.raizlabs.android.dbflow.annotation.Column;
 import com.raizlabs.android.dbflow.annotation.PrimaryKey;
 import com.raizlabs.android.dbflow.structure.BaseModel;
 
+import org.hisp.dhis.android.sdk.utils.support.DateUtils;
 import org.joda.time.DateTime;
 
 import java.util.ArrayList;
@@ -59,6 +60,8 @@ public abstract class BaseIdentifiableObject extends BaseModel {
         this.displayName = baseIdentifiableObject.displayName;
         this.created = baseIdentifiableObject.created;
         this.lastUpdated = baseIdentifiableObject.lastUpdated;
+        this.createdMillis = baseIdentifiableObject.createdMillis;
+        this.lastUpdatedMillis = baseIdentifiableObject.lastUpdatedMillis;
         if(baseIdentifiableObject.access != null) {
             this.access = new Access(baseIdentifiableObject.access);
         }
@@ -82,6 +85,18 @@ public abstract class BaseIdentifiableObject extends BaseModel {
     @Column(name = "lastUpdated")
     String lastUpdated;
 
+    /**
+     * Epoch millis of created and lastUpdated, kept in sync by the setters so that
+     * comparisons and queries don't need to parse the date strings.
+     */
+    @JsonIgnore
+    @Column(name = "createdMillis")
+    long createdMillis;
+
+    @JsonIgnore
+    @Column(name = "lastUpdatedMillis")
+    long lastUpdatedMillis;
+
     @JsonProperty("access")
     @Column(name = "access")
     Access access;
@@ -116,6 +131,11 @@ public abstract class BaseIdentifiableObject extends BaseModel {
 
     public void setCreated(String created) {
         this.created = created;
+        this.createdMillis = DateUtils.getMillis(created);
+    }
+
+    public long getCreatedMillis() {
+        return createdMillis;
     }
 
     public String getLastUpdated() {
@@ -124,6 +144,11 @@ public abstract class BaseIdentifiableObject extends BaseModel {
 
     public void setLastUpdated(String lastUpdated) {
         this.lastUpdated = lastUpdated;
+        this.lastUpdatedMillis = DateUtils.getMillis(lastUpdated);
+    }
+
+    public long getLastUpdatedMillis() {
+        return lastUpdatedMillis;
     }
 
     public Access getAccess() {
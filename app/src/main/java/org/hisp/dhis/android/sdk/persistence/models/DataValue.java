@@ -70,6 +70,10 @@ public class DataValue extends BaseValue {
     @Column(name = "storedBy")
     String storedBy;
 
+    @JsonIgnore
+    @Column(name = "changed")
+    boolean changed; /* changed locally since the event was last sent */
+
 
     public DataValue() {
     }
@@ -138,6 +142,14 @@ public class DataValue extends BaseValue {
         return event;
     }
 
+    public boolean isChanged() {
+        return changed;
+    }
+
+    public void setChanged(boolean changed) {
+        this.changed = changed;
+    }
+
     public void setEvent(String event) {
         this.event = event;
     }
@@ -169,7 +181,8 @@ public class DataValue extends BaseValue {
     public void updateManually() {
 
         new Update(DataValue.class).set(
-                Condition.column(DataValue$Table.VALUE).is(this.getValue()))
+                Condition.column(DataValue$Table.VALUE).is(this.getValue()),
+                Condition.column(DataValue$Table.CHANGED).is(changed))
                 .where(Condition.column(DataValue$Table.LOCALEVENTID).is(localEventId),
                         Condition.column(DataValue$Table.DATAELEMENT).is(dataElement)).queryClose();
     }
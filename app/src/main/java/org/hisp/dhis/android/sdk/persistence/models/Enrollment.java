@@ -40,6 +40,7 @@ import com.raizlabs.android.dbflow.sql.builder.Condition;
 import com.raizlabs.android.dbflow.sql.language.Update;
 
 import org.hisp.dhis.android.sdk.controllers.metadata.MetaDataController;
+import org.hisp.dhis.android.sdk.controllers.tracker.OutboxController;
 import org.hisp.dhis.android.sdk.controllers.tracker.TrackerController;
 import org.hisp.dhis.android.sdk.persistence.Dhis2Database;
 import org.hisp.dhis.android.sdk.utils.api.CodeGenerator;
@@ -85,6 +86,14 @@ public class Enrollment extends BaseSerializableModel {
     @Column(name = "incidentDate")
     String incidentDate;
 
+    @JsonIgnore
+    @Column(name = "enrollmentDateMillis")
+    long enrollmentDateMillis;
+
+    @JsonIgnore
+    @Column(name = "incidentDateMillis")
+    long incidentDateMillis;
+
     @JsonProperty("followup")
     @Column(name = "followup")
     boolean followup;
@@ -115,6 +124,8 @@ public class Enrollment extends BaseSerializableModel {
         this.program = enrollment.program;
         this.enrollmentDate = enrollment.enrollmentDate;
         this.incidentDate = enrollment.incidentDate;
+        this.enrollmentDateMillis = enrollment.enrollmentDateMillis;
+        this.incidentDateMillis = enrollment.incidentDateMillis;
         this.followup = enrollment.followup;
         this.status = enrollment.status;
         this.enrollment = enrollment.enrollment;
@@ -128,8 +139,8 @@ public class Enrollment extends BaseSerializableModel {
         fromServer = false;
         this.program = program.getUid();
         this.trackedEntityInstance = trackedEntityInstance;
-        this.enrollmentDate = enrollmentDate;
-        this.incidentDate = incidentDate;
+        setEnrollmentDate(enrollmentDate);
+        setIncidentDate(incidentDate);
         List<Event> events = new ArrayList<>();
         for (ProgramStage programStage : program.getProgramStages()) {
             if (programStage.getAutoGenerateEvent()) {
@@ -231,6 +242,9 @@ public class Enrollment extends BaseSerializableModel {
             //saving the enrollment first to get a autoincrement id from db
             super.save();
         }
+        if (!fromServer) {
+            OutboxController.enqueue(FailedItem.ENROLLMENT, this, OutboxItem.PRIORITY_NORMAL);
+        }
         if (events != null) {
             for (Event event : events) {
                 event.setLocalEnrollmentId(localId);
@@ -273,6 +287,11 @@ public class Enrollment extends BaseSerializableModel {
         }
     }
 
+    @JsonIgnore
+    public String getProgramId() {
+        return program;
+    }
+
     public void setProgram(String program) {
         this.program = program;
     }
@@ -299,6 +318,11 @@ public class Enrollment extends BaseSerializableModel {
 
     public void setEnrollmentDate(String enrollmentDate) {
         this.enrollmentDate = enrollmentDate;
+        this.enrollmentDateMillis = DateUtils.getMillis(enrollmentDate);
+    }
+
+    public long getEnrollmentDateMillis() {
+        return enrollmentDateMillis;
     }
 
     public String getIncidentDate() {
@@ -307,6 +331,11 @@ public class Enrollment extends BaseSerializableModel {
 
     public void setIncidentDate(String incidentDate) {
         this.incidentDate = incidentDate;
+        this.incidentDateMillis = DateUtils.getMillis(incidentDate);
+    }
+
+    public long getIncidentDateMillis() {
+        return incidentDateMillis;
     }
 
     public boolean getFollowup() {
@@ -325,10 +354,16 @@ public class Enrollment extends BaseSerializableModel {
         this.status = status;
     }
 
+    @JsonIgnore
     public List<Event> getEvents() {
         return events;
     }
 
+    /**
+     * Events are only read together with enrollments from the server.
+     * They are not sent together with the enrollment.
+     */
+    @JsonProperty("events")
     public void setEvents(List<Event> events) {
         this.events = events;
     }
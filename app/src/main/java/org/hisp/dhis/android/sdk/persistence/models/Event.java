@@ -42,6 +42,7 @@ import com.raizlabs.android.dbflow.sql.language.Select;
 import com.raizlabs.android.dbflow.sql.language.Update;
 
 import org.hisp.dhis.android.sdk.controllers.DhisController;
+import org.hisp.dhis.android.sdk.controllers.tracker.OutboxController;
 import org.hisp.dhis.android.sdk.controllers.tracker.TrackerController;
 import org.hisp.dhis.android.sdk.persistence.Dhis2Database;
 import org.hisp.dhis.android.sdk.utils.api.CodeGenerator;
@@ -121,9 +122,19 @@ public class Event extends BaseSerializableModel {
     @Column(name = "dueDate")
     String dueDate;
 
+    @JsonIgnore
+    @Column(name = "eventDateMillis")
+    long eventDateMillis;
+
+    @JsonIgnore
+    @Column(name = "dueDateMillis")
+    long dueDateMillis;
+
     @JsonProperty("dataValues")
     List<DataValue> dataValues;
 
+    @JsonIgnore
+    boolean dataValueChangesOnly;
 
     public Event() {
         this.event = CodeGenerator.generateCode();
@@ -134,7 +145,7 @@ public class Event extends BaseSerializableModel {
                  String enrollment, String dueDate) {
         this.event = CodeGenerator.generateCode();
         this.fromServer = false;
-        this.dueDate = dueDate;
+        setDueDate(dueDate);
         this.organisationUnitId = organisationUnitId;
         this.programId = programId;
         this.programStageId = programStage.getUid();
@@ -168,6 +179,19 @@ public class Event extends BaseSerializableModel {
         super.delete();
     }
 
+    /**
+     * Saves the event after only its data values have been changed locally, so that only the
+     * changed values have to be sent to the server.
+     */
+    public void saveDataValueChanges() {
+        dataValueChangesOnly = true;
+        try {
+            save();
+        } finally {
+            dataValueChangesOnly = false;
+        }
+    }
+
     @Override
     public void save() {
         /* check if there is an existing event with the same UID to avoid duplicates */
@@ -183,6 +207,15 @@ public class Event extends BaseSerializableModel {
         } else {
             super.save(); //saving the event first to get a autoincrement index from db
         }
+        if (!fromServer) {
+            int priority = STATUS_COMPLETED.equals(status) ?
+                    OutboxItem.PRIORITY_HIGH : OutboxItem.PRIORITY_NORMAL;
+            if (dataValueChangesOnly) {
+                OutboxController.enqueueDataValueChanges(this, priority);
+            } else {
+                OutboxController.enqueue(FailedItem.EVENT, this, priority);
+            }
+        }
 
         if (dataValues != null) {
             for (DataValue dataValue : dataValues) {
@@ -314,6 +347,11 @@ public class Event extends BaseSerializableModel {
 
     public void setEventDate(String eventDate) {
         this.eventDate = eventDate;
+        this.eventDateMillis = DateUtils.getMillis(eventDate);
+    }
+
+    public long getEventDateMillis() {
+        return eventDateMillis;
     }
 
     public String getDueDate() {
@@ -322,6 +360,11 @@ public class Event extends BaseSerializableModel {
 
     public void setDueDate(String dueDate) {
         this.dueDate = dueDate;
+        this.dueDateMillis = DateUtils.getMillis(dueDate);
+    }
+
+    public long getDueDateMillis() {
+        return dueDateMillis;
     }
 
     public void setDataValues(List<DataValue> dataValues) {
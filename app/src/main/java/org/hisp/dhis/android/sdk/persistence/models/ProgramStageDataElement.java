@@ -92,10 +92,12 @@ public class ProgramStageDataElement extends BaseModel {
         this.programStage = (String) programStage.get("id");
     }
 
+    /**
+     * The data element is saved together with the program, see ProgramWrapper.
+     */
     @JsonProperty("dataElement")
     public void setDataElement(DataElement dataElement) {
         this.dataElement = dataElement.id;
-        dataElement.save();
         dataElementObj = dataElement;
     }
 
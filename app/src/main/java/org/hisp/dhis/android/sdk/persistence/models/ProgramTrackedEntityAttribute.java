@@ -76,10 +76,15 @@ public class ProgramTrackedEntityAttribute extends BaseModel {
     @PrimaryKey
     String program;
 
+    TrackedEntityAttribute trackedEntityAttributeObj;
+
+    /**
+     * The attribute is saved together with the program, see ProgramWrapper.
+     */
     @JsonProperty("trackedEntityAttribute")
     public void setTrackedEntityAttribute(TrackedEntityAttribute trackedEntityAttribute) {
-        trackedEntityAttribute.async().save();
         this.trackedEntityAttribute = trackedEntityAttribute.id;
+        trackedEntityAttributeObj = trackedEntityAttribute;
     }
 
     public boolean getAllowFutureDate() {
@@ -126,6 +131,10 @@ public class ProgramTrackedEntityAttribute extends BaseModel {
         return trackedEntityAttribute;
     }
 
+    public TrackedEntityAttribute getTrackedEntityAttributeObj() {
+        return trackedEntityAttributeObj;
+    }
+
     public int getSortOrder() {
         return sortOrder;
     }
@@ -40,6 +40,7 @@ import com.raizlabs.android.dbflow.annotation.Unique;
 import com.raizlabs.android.dbflow.sql.builder.Condition;
 import com.raizlabs.android.dbflow.sql.language.Update;
 
+import org.hisp.dhis.android.sdk.controllers.tracker.OutboxController;
 import org.hisp.dhis.android.sdk.controllers.tracker.TrackerController;
 import org.hisp.dhis.android.sdk.persistence.Dhis2Database;
 import org.hisp.dhis.android.sdk.utils.api.CodeGenerator;
@@ -73,6 +74,9 @@ public class TrackedEntityInstance extends BaseSerializableModel implements Seri
     @JsonProperty("relationships")
     List<Relationship> relationships;
 
+    @JsonIgnore
+    List<Enrollment> enrollments;
+
     public TrackedEntityInstance() { this.trackedEntityInstance = CodeGenerator.generateCode(); }
 
     public TrackedEntityInstance(TrackedEntityInstance trackedEntityInstance) {
@@ -127,6 +131,25 @@ public class TrackedEntityInstance extends BaseSerializableModel implements Seri
         this.relationships = relationships;
     }
 
+    /**
+     * Returns the enrollments which were loaded from the server, or by
+     * {@link org.hisp.dhis.android.sdk.controllers.tracker.TrackerGraphLoader}, together with
+     * this tracked entity instance, or null if they weren't requested.
+     */
+    @JsonIgnore
+    public List<Enrollment> getEnrollments() {
+        return enrollments;
+    }
+
+    /**
+     * Only used when reading the tracked entity instance from the server.
+     * Enrollments are not sent together with the tracked entity instance.
+     */
+    @JsonProperty("enrollments")
+    public void setEnrollments(List<Enrollment> enrollments) {
+        this.enrollments = enrollments;
+    }
+
     @Override
     public void save() {
         /* check if there is an existing tei with the same UID to avoid duplicates */
@@ -144,6 +167,9 @@ public class TrackedEntityInstance extends BaseSerializableModel implements Seri
         } else {
             super.save();
         }
+        if (!fromServer) {
+            OutboxController.enqueue(FailedItem.TRACKEDENTITYINSTANCE, this, OutboxItem.PRIORITY_NORMAL);
+        }
     }
 
     /**
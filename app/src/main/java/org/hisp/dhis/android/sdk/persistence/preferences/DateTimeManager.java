@@ -31,11 +31,33 @@ package org.hisp.dhis.android.sdk.persistence.preferences;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
+import com.raizlabs.android.dbflow.config.FlowManager;
+import com.raizlabs.android.dbflow.sql.language.Select;
+
+import org.hisp.dhis.android.sdk.persistence.Dhis2Database;
+import org.hisp.dhis.android.sdk.persistence.models.SyncCheckpoint;
+import org.hisp.dhis.android.sdk.persistence.models.SyncCheckpoint$Table;
+import org.hisp.dhis.android.sdk.utils.DbUtils;
 import org.joda.time.DateTime;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
 import static org.hisp.dhis.android.sdk.utils.Preconditions.isNull;
 
+/**
+ * Keeps the times of the last synchronization of resources in the {@link SyncCheckpoint}
+ * table. The table is read into memory on first use, and every change is written as a single
+ * row, so calls made within a database transaction, for example in
+ * {@link DbUtils#transact(Runnable)}, are written together with it. Changes are visible in
+ * memory right away, and dropped again by {@link #reload()} if DbUtils.transact rolls back.
+ * Checkpoints stored in the preferences by earlier versions are moved to the table.
+ */
 public final class DateTimeManager {
     private static final String PREFERENCES = "preferences:lastUpdated";
     private static final String METADATA_UPDATE_DATETIME = "key:metaDataUpdateDateTime";
@@ -43,6 +65,9 @@ public final class DateTimeManager {
     private static DateTimeManager mPreferences;
     private final SharedPreferences mPrefs;
 
+    /* loaded without holding a lock, as loading may wait for a transaction of another thread */
+    private final AtomicReference<Map<String, String>> mCheckpoints = new AtomicReference<>();
+
     private DateTimeManager(Context context) {
         isNull(context, "Context object must not be null");
         mPrefs = context.getSharedPreferences(PREFERENCES,
@@ -104,7 +129,8 @@ public final class DateTimeManager {
      * Removes all key-value pairs.
      */
     public void delete() {
-        mPrefs.edit().clear().commit();
+        getCheckpoints().clear();
+        getDatabase().delete(SyncCheckpoint$Table.TABLE_NAME, null, null);
     }
 
     public void deleteLastUpdated(ResourceType type) {
@@ -119,20 +145,91 @@ public final class DateTimeManager {
         deleteString(identifier);
     }
 
+    /**
+     * Drops the checkpoints held in memory, so they are read from the table again on next use.
+     * Called after a transaction which may have written checkpoints was rolled back.
+     */
+    public void reload() {
+        mCheckpoints.set(null);
+    }
+
     public boolean isLastUpdatedSet(ResourceType type) {
         return getLastUpdated(type) != null;
     }
 
     private void putString(String key, String value) {
-        mPrefs.edit().putString(key, value).commit();
+        getCheckpoints().put(key, value);
+        SQLiteStatement statement = getDatabase().compileStatement("INSERT OR REPLACE INTO `" +
+                SyncCheckpoint$Table.TABLE_NAME + "` (`" + SyncCheckpoint$Table.CHECKPOINT + "`, `" +
+                SyncCheckpoint$Table.LASTUPDATED + "`) VALUES (?, ?)");
+        try {
+            statement.bindString(1, key);
+            statement.bindString(2, value);
+            statement.executeInsert();
+        } finally {
+            statement.close();
+        }
     }
 
     private String getString(String key) {
-        return mPrefs.getString(key, null);
+        return getCheckpoints().get(key);
     }
 
     private void deleteString(String key) {
-        mPrefs.edit().remove(key).commit();
+        getCheckpoints().remove(key);
+        getDatabase().delete(SyncCheckpoint$Table.TABLE_NAME,
+                SyncCheckpoint$Table.CHECKPOINT + " = ?", new String[]{key});
+    }
+
+    private Map<String, String> getCheckpoints() {
+        Map<String, String> checkpoints = mCheckpoints.get();
+        if (checkpoints == null) {
+            checkpoints = loadCheckpoints();
+            if (!mCheckpoints.compareAndSet(null, checkpoints)) {
+                checkpoints = mCheckpoints.get();
+            }
+        }
+        return checkpoints;
+    }
+
+    private Map<String, String> loadCheckpoints() {
+        migratePreferences();
+        Map<String, String> checkpoints = new ConcurrentHashMap<>();
+        List<SyncCheckpoint> syncCheckpoints = new Select().from(SyncCheckpoint.class).queryList();
+        for (SyncCheckpoint syncCheckpoint : syncCheckpoints) {
+            if (syncCheckpoint.getLastUpdated() != null) {
+                checkpoints.put(syncCheckpoint.getCheckpoint(), syncCheckpoint.getLastUpdated());
+            }
+        }
+        return checkpoints;
+    }
+
+    /**
+     * Moves checkpoints stored in the preferences by earlier versions to the table.
+     */
+    private void migratePreferences() {
+        final Map<String, ?> preferences = mPrefs.getAll();
+        if (preferences.isEmpty()) {
+            return;
+        }
+        DbUtils.transact(new Runnable() {
+            @Override
+            public void run() {
+                for (Map.Entry<String, ?> preference : preferences.entrySet()) {
+                    if (preference.getValue() instanceof String) {
+                        SyncCheckpoint syncCheckpoint = new SyncCheckpoint();
+                        syncCheckpoint.setCheckpoint(preference.getKey());
+                        syncCheckpoint.setLastUpdated((String) preference.getValue());
+                        syncCheckpoint.save();
+                    }
+                }
+            }
+        });
+        mPrefs.edit().clear().commit();
+    }
+
+    private static SQLiteDatabase getDatabase() {
+        return FlowManager.getDatabase(Dhis2Database.NAME).getWritableDatabase();
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,135 @@
+/*
+ *  Copyright (c) 2016, University of Oslo
+ *  * All rights reserved.
+ *  *
+ *  * Redistribution and use in source and binary forms, with or without
+ *  * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *  * list of conditions and the following disclaimer.
+ *  *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *  * this list of conditions and the following disclaimer in the documentation
+ *  * and/or other materials provided with the distribution.
+ *  * Neither the name of the HISP project nor the names of its contributors may
+ *  * be used to endorse or promote products derived from this software without
+ *  * specific prior written permission.
+ *  *
+ *  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package org.hisp.dhis.android.sdk.persistence.preferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.joda.time.DateTime;
+
+import static org.hisp.dhis.android.sdk.utils.Preconditions.isNull;
+
+/**
+ * Keeps track of paged downloads which have not been completed yet, so that an interrupted
+ * download can be resumed from the last completed page instead of starting over.
+ */
+public final class PageCursorManager {
+    private static final String PREFERENCES = "preferences:pageCursor";
+    private static final String LAST_COMPLETED_PAGE = "key:lastCompletedPage";
+    private static final String STARTED_DATETIME = "key:startedDateTime";
+
+    private static PageCursorManager mPreferences;
+    private final SharedPreferences mPrefs;
+
+    private PageCursorManager(Context context) {
+        isNull(context, "Context object must not be null");
+        mPrefs = context.getSharedPreferences(PREFERENCES,
+                Context.MODE_PRIVATE);
+    }
+
+    public static void init(Context context) {
+        mPreferences = new PageCursorManager(context);
+    }
+
+    public static PageCursorManager getInstance() {
+        if (mPreferences == null) {
+            throw new IllegalArgumentException("You have to call init() method first");
+        }
+
+        return mPreferences;
+    }
+
+    /**
+     * Stores the last page which has been completely saved for the given resource.
+     *
+     * @param type
+     * @param salt      add some extra salt for a specific resource. For example an UID
+     * @param startedAt server time when the paged download was started. Items updated later
+     *                  are left out of the pages, and this is the time which should be stored
+     *                  as last updated once all pages have been loaded.
+     * @param page      the last completed page
+     */
+    public void setLastCompletedPage(ResourceType type, String salt, DateTime startedAt, int page) {
+        isNull(type, "ResourceType object must not be null");
+        isNull(startedAt, "DateTime object must not be null");
+
+        String identifier = getIdentifier(type, salt);
+        mPrefs.edit()
+                .putString(STARTED_DATETIME + identifier, startedAt.toString())
+                .putInt(LAST_COMPLETED_PAGE + identifier, page)
+                .commit();
+    }
+
+    /**
+     * Returns the last completed page for the given resource, or 0 if no paged download is
+     * in progress.
+     */
+    public int getLastCompletedPage(ResourceType type, String salt) {
+        return mPrefs.getInt(LAST_COMPLETED_PAGE + getIdentifier(type, salt), 0);
+    }
+
+    /**
+     * Returns the server time when the unfinished paged download for the given resource
+     * was started, or null if no paged download is in progress.
+     */
+    public DateTime getStartedDateTime(ResourceType type, String salt) {
+        String dateTimeString = mPrefs.getString(STARTED_DATETIME + getIdentifier(type, salt), null);
+        if (dateTimeString != null) {
+            return DateTime.parse(dateTimeString);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the cursor for the given resource. Should be called when all pages are loaded.
+     */
+    public void deleteCursor(ResourceType type, String salt) {
+        String identifier = getIdentifier(type, salt);
+        mPrefs.edit()
+                .remove(STARTED_DATETIME + identifier)
+                .remove(LAST_COMPLETED_PAGE + identifier)
+                .commit();
+    }
+
+    /**
+     * Removes all key-value pairs.
+     */
+    public void delete() {
+        mPrefs.edit().clear().commit();
+    }
+
+    private static String getIdentifier(ResourceType type, String salt) {
+        String identifier = type.toString();
+        if (salt != null) {
+            identifier += salt;
+        }
+        return identifier;
+    }
+}
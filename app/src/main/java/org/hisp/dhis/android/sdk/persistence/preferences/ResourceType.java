@@ -36,5 +36,5 @@ public enum ResourceType {
     DASHBOARDS_CONTENT, DASHBOARDS, INTERPRETATIONS, USERS, OPTIONSETS, PROGRAMS, PROGRAM,
     TRACKEDENTITYATTRIBUTES, CONSTANTS, ASSIGNEDPROGRAMS, PROGRAMRULES, PROGRAMRULEVARIABLES,
     PROGRAMRULEACTIONS, RELATIONSHIPTYPES, EVENTS, EVENT, TRACKEDENTITYINSTANCE, ENROLLMENT,
-    ENROLLMENTS
+    ENROLLMENTS, TRACKEDENTITYINSTANCES
 }
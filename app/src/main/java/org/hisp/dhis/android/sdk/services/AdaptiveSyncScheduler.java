@@ -0,0 +1,152 @@
+/*
+ *  Copyright (c) 2016, University of Oslo
+ *  * All rights reserved.
+ *  *
+ *  * Redistribution and use in source and binary forms, with or without
+ *  * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *  * list of conditions and the following disclaimer.
+ *  *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *  * this list of conditions and the following disclaimer in the documentation
+ *  * and/or other materials provided with the distribution.
+ *  * Neither the name of the HISP project nor the names of its contributors may
+ *  * be used to endorse or promote products derived from this software without
+ *  * specific prior written permission.
+ *  *
+ *  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package org.hisp.dhis.android.sdk.services;
+
+/**
+ * Synchronizes local changes on every periodic trigger and loads data from the server less
+ * often. Upload is skipped when there are no local changes. After network failures, periodic
+ * triggers are skipped with exponential backoff. Manual triggers always run both phases.
+ */
+public class AdaptiveSyncScheduler implements SyncScheduler {
+
+    /* downloads run at most once per this many intervals, but at least once a day */
+    public static final int DOWNLOAD_INTERVAL_FACTOR = 4;
+    private static final long MAX_DOWNLOAD_INTERVAL = 24 * 60 * 60 * 1000;
+
+    private static final long BACKOFF_DELAY = 60 * 1000;
+    private static final long MAX_BACKOFF_DELAY = 6 * 60 * 60 * 1000;
+
+    private final Clock clock;
+    private long interval;
+
+    private boolean running;
+    private boolean manual;
+    private boolean coalesced;
+    private boolean coalescedManual;
+
+    private long lastDownload;
+    private int networkFailures;
+    private long backoffUntil;
+
+    /**
+     * @param clock
+     * @param interval time in millis between periodic triggers
+     */
+    public AdaptiveSyncScheduler(Clock clock, long interval) {
+        this.clock = clock;
+        this.interval = interval;
+    }
+
+    public synchronized void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    @Override
+    public synchronized boolean onTrigger(boolean manual) {
+        if (running) {
+            coalesced = true;
+            coalescedManual |= manual;
+            return false;
+        }
+        if (!manual && clock.currentTimeMillis() < backoffUntil) {
+            return false;
+        }
+        running = true;
+        this.manual = manual;
+        return true;
+    }
+
+    @Override
+    public synchronized void onTriggerDropped() {
+        running = false;
+        manual = false;
+    }
+
+    @Override
+    public synchronized int onSyncStart(boolean hasLocalChanges) {
+        int phases = 0;
+        if (hasLocalChanges) {
+            phases |= PHASE_UPLOAD;
+        }
+        if (manual || lastDownload == 0 ||
+                clock.currentTimeMillis() - lastDownload >= getDownloadInterval()) {
+            phases |= PHASE_DOWNLOAD;
+        }
+        return phases;
+    }
+
+    @Override
+    public synchronized boolean isManual() {
+        return manual;
+    }
+
+    @Override
+    public synchronized boolean onSyncFinished(int phases, boolean networkFailure) {
+        long now = clock.currentTimeMillis();
+        if (networkFailure) {
+            networkFailures++;
+            backoffUntil = now + getBackoffDelay(networkFailures);
+        } else {
+            networkFailures = 0;
+            backoffUntil = 0;
+            if ((phases & PHASE_DOWNLOAD) != 0) {
+                lastDownload = now;
+            }
+        }
+
+        if (coalesced && (coalescedManual || !networkFailure)) {
+            manual = coalescedManual;
+            coalesced = false;
+            coalescedManual = false;
+            return true;
+        }
+        coalesced = false;
+        coalescedManual = false;
+        running = false;
+        return false;
+    }
+
+    @Override
+    public synchronized long getNextTriggerDelay() {
+        return Math.max(interval, backoffUntil - clock.currentTimeMillis());
+    }
+
+    private long getDownloadInterval() {
+        return Math.max(interval, Math.min(interval * DOWNLOAD_INTERVAL_FACTOR, MAX_DOWNLOAD_INTERVAL));
+    }
+
+    static long getBackoffDelay(int failures) {
+        long delay = BACKOFF_DELAY;
+        for (int i = 1; i < failures && delay < MAX_BACKOFF_DELAY; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, MAX_BACKOFF_DELAY);
+    }
+}
@@ -54,8 +54,11 @@ public class PeriodicSynchronizer extends BroadcastReceiver {
     public static final int DEFAULT_UPDATE_FREQUENCY = FREQUENCY_ONE_HOUR;
 
     public static final String CLASS_TAG = "PeriodicSynchronizer";
+    private static final String ACTIVE = "periodic_synchronizer_active";
 
     private static PeriodicSynchronizer periodicSynchronizer;
+    private static final AdaptiveSyncScheduler syncScheduler =
+            new AdaptiveSyncScheduler(Clock.SYSTEM, 1000 * 60 * 60);
     private int currentInterval = 15;
 
     public static PeriodicSynchronizer getInstance() {
@@ -63,13 +66,26 @@ public class PeriodicSynchronizer extends BroadcastReceiver {
         return periodicSynchronizer;
     }
 
+    /**
+     * Returns the scheduler deciding when and what to synchronize, shared by periodic
+     * and manual synchronizations.
+     */
+    public static SyncScheduler getSyncScheduler() {
+        return syncScheduler;
+    }
+
 	@Override
 	public void onReceive(Context context, Intent intent) {
         if(!DhisController.isUserLoggedIn()) {
             cancelPeriodicSynchronizer(context);
             return;
         }
-        DhisService.synchronize(context);
+        int minutes = getInterval(context);
+        if (minutes > 0) {
+            syncScheduler.setInterval(1000 * 60 * minutes);
+        }
+        scheduleNext(context);
+        DhisService.synchronizePeriodically(context);
 	}
 
 	/**
@@ -80,23 +96,53 @@ public class PeriodicSynchronizer extends BroadcastReceiver {
 	public static void activatePeriodicSynchronizer(Context context, int minutes) {
         if(minutes <= 0) return;
 		Log.d(CLASS_TAG, "activate periodic synchronizer " + minutes);
-		AlarmManager am = (AlarmManager) context
-				.getSystemService(Context.ALARM_SERVICE);
+        syncScheduler.setInterval(1000 * 60 * minutes); // Millisec * Second * Minute
 		Intent i = new Intent(context, PeriodicSynchronizer.class);
         PendingIntent existingPi = PendingIntent.getBroadcast(context, 0, i, PendingIntent.FLAG_NO_CREATE);
-        if(existingPi == null) {
-            PendingIntent pi = PendingIntent.getBroadcast(context, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
-            am.setRepeating(AlarmManager.RTC_WAKEUP, System.currentTimeMillis(),
-                    1000 * 60 * minutes, pi); // Millisec * Second * Minute
+        if(existingPi == null || !isActive(context)) {
+            setActive(context, true);
+            setAlarm(context, 0);
         }
 	}
 
+    /**
+     * Sets the alarm for the next periodic trigger after the delay given by the
+     * {@link SyncScheduler}, if the PeriodicSynchronizer is active. Single alarms are used
+     * instead of a repeating one so that the delay can adapt to failures. Whether it is active
+     * is kept in the preferences, as the system drops the PendingIntent of a fired alarm.
+     * @param context
+     */
+    public static void scheduleNext(Context context) {
+        if(isActive(context)) {
+            setAlarm(context, syncScheduler.getNextTriggerDelay());
+        }
+    }
+
+    private static boolean isActive(Context context) {
+        return context.getSharedPreferences(DhisController.PREFS_NAME, Context.MODE_PRIVATE)
+                .getBoolean(ACTIVE, false);
+    }
+
+    private static void setActive(Context context, boolean active) {
+        context.getSharedPreferences(DhisController.PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putBoolean(ACTIVE, active).commit();
+    }
+
+    private static void setAlarm(Context context, long delay) {
+        AlarmManager am = (AlarmManager) context
+                .getSystemService(Context.ALARM_SERVICE);
+        Intent i = new Intent(context, PeriodicSynchronizer.class);
+        PendingIntent pi = PendingIntent.getBroadcast(context, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
+        am.set(AlarmManager.RTC_WAKEUP, System.currentTimeMillis() + delay, pi);
+    }
+
 	/**
 	 * Cancels the PeriodicSynchronizer
 	 * @param context
 	 */
 	public static void cancelPeriodicSynchronizer(Context context) {
 		Log.d(CLASS_TAG, "cancel periodic synchronizer");
+        setActive(context, false);
 		Intent intent = new Intent(context, PeriodicSynchronizer.class);
 		PendingIntent sender = PendingIntent
 				.getBroadcast(context, 0, intent, PendingIntent.FLAG_NO_CREATE);
@@ -0,0 +1,84 @@
+/*
+ *  Copyright (c) 2016, University of Oslo
+ *  * All rights reserved.
+ *  *
+ *  * Redistribution and use in source and binary forms, with or without
+ *  * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *  * list of conditions and the following disclaimer.
+ *  *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *  * this list of conditions and the following disclaimer in the documentation
+ *  * and/or other materials provided with the distribution.
+ *  * Neither the name of the HISP project nor the names of its contributors may
+ *  * be used to endorse or promote products derived from this software without
+ *  * specific prior written permission.
+ *  *
+ *  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package org.hisp.dhis.android.sdk.services;
+
+/**
+ * Decides when synchronization runs and which of its phases. Triggers arriving while a
+ * synchronization is running are coalesced into one more run after it.
+ * The methods are called in this order: {@link #onTrigger(boolean)}, and if that returns true,
+ * either {@link #onTriggerDropped()}, or {@link #onSyncStart(boolean)} and
+ * {@link #onSyncFinished(int, boolean)} as long as the latter returns true.
+ */
+public interface SyncScheduler {
+
+    int PHASE_UPLOAD = 1;
+    int PHASE_DOWNLOAD = 2;
+
+    /**
+     * @param manual true if the synchronization was requested by the user
+     * @return true if a synchronization should be started, false if the trigger has been
+     * coalesced into a running one or is skipped
+     */
+    boolean onTrigger(boolean manual);
+
+    /**
+     * Called instead of {@link #onSyncStart(boolean)} when the synchronization accepted by
+     * {@link #onTrigger(boolean)} could not be started, because the job of the previous one
+     * has not been released yet or the job has been cancelled. Also called when a running
+     * synchronization is aborted before {@link #onSyncFinished(int, boolean)} returned false.
+     */
+    void onTriggerDropped();
+
+    /**
+     * @param hasLocalChanges true if there is local data waiting to be sent
+     * @return the phases to run, a combination of {@link #PHASE_UPLOAD} and
+     * {@link #PHASE_DOWNLOAD}, or 0 if there is nothing to do
+     */
+    int onSyncStart(boolean hasLocalChanges);
+
+    /**
+     * @return true if the synchronization about to start was requested by the user, directly
+     * or by a manual trigger coalesced into it
+     */
+    boolean isManual();
+
+    /**
+     * @param phases         the phases which have been run
+     * @param networkFailure true if the synchronization failed because of a network error
+     * @return true if triggers have been coalesced while running, and the synchronization
+     * should run again
+     */
+    boolean onSyncFinished(int phases, boolean networkFailure);
+
+    /**
+     * Returns the time in millis until the next periodic trigger should happen.
+     */
+    long getNextTriggerDelay();
+}
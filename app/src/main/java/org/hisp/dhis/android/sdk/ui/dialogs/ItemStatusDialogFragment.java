@@ -58,7 +58,9 @@ import com.raizlabs.android.dbflow.structure.Model;
 
 import org.hisp.dhis.android.sdk.R;
 import org.hisp.dhis.android.sdk.controllers.DhisController;
+import org.hisp.dhis.android.sdk.controllers.DhisService;
 import org.hisp.dhis.android.sdk.controllers.tracker.TrackerController;
+import org.hisp.dhis.android.sdk.job.Job;
 import org.hisp.dhis.android.sdk.job.JobExecutor;
 import org.hisp.dhis.android.sdk.job.NetworkJob;
 import org.hisp.dhis.android.sdk.network.APIException;
@@ -387,8 +389,8 @@ public abstract class ItemStatusDialogFragment extends DialogFragment
 
 
     public static void sendEvent(final Event event) {
-        JobExecutor.enqueueJob(new NetworkJob<Object>(0,
-                ResourceType.EVENT) {
+        JobExecutor.enqueueJob(new NetworkJob<Object>(DhisService.SEND_EVENT,
+                String.valueOf(event.getLocalId()), Job.PRIORITY_HIGH, ResourceType.EVENT) {
 
             @Override
             public Object execute() throws APIException {
@@ -55,13 +55,17 @@ import com.squareup.otto.Subscribe;
 
 import org.hisp.dhis.android.sdk.R;
 import org.hisp.dhis.android.sdk.controllers.DhisController;
+import org.hisp.dhis.android.sdk.controllers.DhisService;
 import org.hisp.dhis.android.sdk.controllers.tracker.TrackerController;
 import org.hisp.dhis.android.sdk.events.LoadingMessageEvent;
 import org.hisp.dhis.android.sdk.events.UiEvent;
 import org.hisp.dhis.android.sdk.ui.fragments.progressdialog.ProgressDialogFragment;
+import org.hisp.dhis.android.sdk.job.Job;
 import org.hisp.dhis.android.sdk.job.JobExecutor;
 import org.hisp.dhis.android.sdk.job.NetworkJob;
 import org.hisp.dhis.android.sdk.network.APIException;
+import org.hisp.dhis.android.sdk.network.DhisApi;
+import org.hisp.dhis.android.sdk.network.SyncSession;
 import org.hisp.dhis.android.sdk.persistence.Dhis2Application;
 import org.hisp.dhis.android.sdk.persistence.models.TrackedEntityInstance;
 import org.hisp.dhis.android.sdk.persistence.preferences.ResourceType;
@@ -307,12 +311,14 @@ public class QueryTrackedEntityInstancesResultDialogFragment extends DialogFragm
     public void initiateLoading() {
         Dhis2Application.getEventBus().post(new UiEvent(UiEvent.UiEventType.SYNCING_START));
         Log.d(TAG, "loading: " + getSelectedTrackedEntityInstances().size());
-        JobExecutor.enqueueJob(new NetworkJob<Object>(0,
-                ResourceType.TRACKEDENTITYINSTANCE) {
+        JobExecutor.enqueueJob(new NetworkJob<Object>(DhisService.LOAD_TRACKED_ENTITY_INSTANCES,
+                null, Job.PRIORITY_HIGH, ResourceType.TRACKEDENTITYINSTANCE) {
 
             @Override
             public Object execute() throws APIException {
-                TrackerController.getTrackedEntityInstancesDataFromServer(DhisController.getInstance().getDhisApi(), getSelectedTrackedEntityInstances(), true);
+                // one session, so the server time is requested once for all of them
+                DhisApi dhisApi = SyncSession.open(DhisController.getInstance().getDhisApi()).getDhisApi();
+                TrackerController.getTrackedEntityInstancesDataFromServer(dhisApi, getSelectedTrackedEntityInstances(), true);
                 Dhis2Application.getEventBus().post(new UiEvent(UiEvent.UiEventType.SYNCING_END));
                 return new Object();
             }
@@ -29,53 +29,100 @@
 
 package org.hisp.dhis.android.sdk.ui.fragments.dataentry;
 
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Worker thread which parks while idle and runs {@link #work()} as soon as it is scheduled.
+ * Calls to {@link #schedule()} made before the work has started are coalesced into one run.
+ */
 public abstract class AsyncHelperThread extends Thread {
+    private final Lock lock = new ReentrantLock();
+    private final Condition scheduled = lock.newCondition();
+    private final Condition finished = lock.newCondition();
+
     private boolean killed = false;
     private boolean working = false;
-    protected boolean doWork = false;
+    private boolean doWork = false;
 
     @Override
     public void run() {
-        while(!killed) {
-            idle();
-            doWork();
+        while(idle()) {
+            try {
+                work();
+            } finally {
+                lock.lock();
+                try {
+                    working = false;
+                    finished.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
         }
     }
 
-    private void doWork() {
-        working = true;
-        doWork = false;
-        work();
-        working = false;
-    }
-
-    private void idle() {
-        while(!doWork) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    /**
+     * Blocks until work is scheduled. Returns false if the thread has been killed.
+     */
+    private boolean idle() {
+        lock.lock();
+        try {
+            while(!doWork && !killed) {
+                scheduled.awaitUninterruptibly();
+            }
+            if(killed) {
+                return false;
             }
+            doWork = false;
+            working = true;
+            return true;
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Stops the thread, waiting for work in progress to finish.
+     */
     protected void kill() {
-        killed = true;
-        doWork = false;
-        while(working) {
-            Thread.yield();
+        lock.lock();
+        try {
+            killed = true;
+            doWork = false;
+            scheduled.signalAll();
+            if(Thread.currentThread() == this) {
+                return;
+            }
+            while(working) {
+                finished.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     public void schedule() {
-        if(killed) {
-            return;
+        lock.lock();
+        try {
+            if(killed) {
+                return;
+            }
+            doWork = true;
+            scheduled.signal();
+        } finally {
+            lock.unlock();
         }
-        doWork = true;
     }
 
     public boolean isKilled() {
-        return killed;
+        lock.lock();
+        try {
+            return killed;
+        } finally {
+            lock.unlock();
+        }
     }
 
     protected abstract void work();
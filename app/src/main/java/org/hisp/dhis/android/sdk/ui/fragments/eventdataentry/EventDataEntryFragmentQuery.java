@@ -34,6 +34,7 @@ import android.content.Context;
 import org.hisp.dhis.android.sdk.R;
 import org.hisp.dhis.android.sdk.controllers.DhisController;
 import org.hisp.dhis.android.sdk.controllers.tracker.TrackerController;
+import org.hisp.dhis.android.sdk.controllers.tracker.TrackerGraphLoader;
 import org.hisp.dhis.android.sdk.controllers.metadata.MetaDataController;
 import org.hisp.dhis.android.sdk.persistence.loaders.Query;
 import org.hisp.dhis.android.sdk.persistence.models.DataElement;
@@ -109,8 +110,9 @@ class EventDataEntryFragmentQuery implements Query<EventDataEntryFragmentForm> {
 
         form.setEvent(event);
         if(enrollmentId > 0) {
-            Enrollment enrollment = TrackerController.getEnrollment(enrollmentId);
-            enrollment.getEvents(true);
+            // the program rules read the attributes and the data values of all events
+            Enrollment enrollment = TrackerGraphLoader.getEnrollment(enrollmentId,
+                    TrackerGraphLoader.Include.ATTRIBUTES, TrackerGraphLoader.Include.DATA_VALUES);
             form.setEnrollment(enrollment);
         }
         form.setStage(stage);
@@ -76,7 +76,7 @@ public class EventSaveThread extends AsyncHelperThread {
             }
 
             while(saveEvent) {
-                saveEvent();
+                saveEvent(false);
             }
 
             boolean invalidateEvent = false;
@@ -87,14 +87,14 @@ public class EventSaveThread extends AsyncHelperThread {
                 invalidateEvent = true;
             }
             if(invalidateEvent) {
-                saveEvent();
+                saveEvent(true);
             }
 
             this.dataEntryFragment.save();
         }
     }
 
-    private void saveEvent() {
+    private void saveEvent(boolean dataValueChangesOnly) {
         saveEvent = false;
         event.setFromServer(false);
         Event tempEvent = new Event();
@@ -118,7 +118,11 @@ public class EventSaveThread extends AsyncHelperThread {
         tempEvent.setCreated(event.getCreated());
         tempEvent.setLastUpdated(event.getLastUpdated());
         tempEvent.setAccess(event.getAccess());
-        tempEvent.save();
+        if(dataValueChangesOnly) {
+            tempEvent.saveDataValueChanges();
+        } else {
+            tempEvent.save();
+        }
         event.setLocalId(tempEvent.getLocalId());
     }
 
@@ -127,6 +131,7 @@ public class EventSaveThread extends AsyncHelperThread {
         DataValue dataValue = dataValues.get(dataElementDataValue);
         dataValue.setLocalEventId(event.getLocalId());
         if(dataValue != null) {
+            dataValue.setChanged(true);
             dataValue.save();
         }
     }
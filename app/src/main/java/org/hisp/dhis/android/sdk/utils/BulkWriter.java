@@ -0,0 +1,324 @@
+/*
+ *  Copyright (c) 2016, University of Oslo
+ *  * All rights reserved.
+ *  *
+ *  * Redistribution and use in source and binary forms, with or without
+ *  * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *  * list of conditions and the following disclaimer.
+ *  *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *  * this list of conditions and the following disclaimer in the documentation
+ *  * and/or other materials provided with the distribution.
+ *  * Neither the name of the HISP project nor the names of its contributors may
+ *  * be used to endorse or promote products derived from this software without
+ *  * specific prior written permission.
+ *  *
+ *  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package org.hisp.dhis.android.sdk.utils;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import com.raizlabs.android.dbflow.config.FlowManager;
+import com.raizlabs.android.dbflow.sql.SqlUtils;
+import com.raizlabs.android.dbflow.structure.BaseModel;
+import com.raizlabs.android.dbflow.structure.Model;
+import com.raizlabs.android.dbflow.structure.ModelAdapter;
+
+import org.hisp.dhis.android.sdk.persistence.models.DataValue;
+import org.hisp.dhis.android.sdk.persistence.models.Event;
+import org.hisp.dhis.android.sdk.persistence.models.TrackedEntityAttributeValue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes models with one compiled statement per table and kind of write, instead of letting
+ * each model look up its own row before writing it. Saves are upserts keyed on the primary
+ * key: an UPDATE, followed by an INSERT if no row was updated. Models which override save()
+ * with logic of their own are not handled, except events, data values and attribute values
+ * loaded from the server. Must be used inside a transaction, and closed afterwards.
+ */
+@SuppressWarnings("unchecked")
+final class BulkWriter {
+    private static final Map<Class<?>, Boolean> plainModels = new HashMap<>();
+
+    private final SQLiteDatabase database;
+    private final Map<String, TableInfo> tables = new HashMap<>();
+    private final Map<String, SQLiteStatement> statements = new HashMap<>();
+    private final Set<Class<? extends Model>> changedTables = new HashSet<>();
+
+    BulkWriter(SQLiteDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Inserts or updates the model. Returns false if the model has to be saved by itself.
+     */
+    boolean save(BaseModel model) {
+        if (model instanceof Event) {
+            return saveEvent((Event) model);
+        }
+        if (!isBulkWritable(model)) {
+            return false;
+        }
+        ModelAdapter adapter = FlowManager.getModelAdapter(model.getClass());
+        ContentValues values = getContentValues(adapter, model);
+        TableInfo table = getTable(adapter.getTableName());
+        if (!update(table, values)) {
+            insert(table, values);
+        }
+        changedTables.add(model.getClass());
+        return true;
+    }
+
+    /**
+     * Updates the row of the model. Returns false if the model has to be updated by itself.
+     */
+    boolean update(BaseModel model) {
+        if (model instanceof Event || !isBulkWritable(model)) {
+            return false;
+        }
+        ModelAdapter adapter = FlowManager.getModelAdapter(model.getClass());
+        update(getTable(adapter.getTableName()), getContentValues(adapter, model));
+        changedTables.add(model.getClass());
+        return true;
+    }
+
+    /**
+     * Inserts the model. Returns false if the model has to be inserted by itself.
+     */
+    boolean insert(BaseModel model) {
+        if (model instanceof Event || !isBulkWritable(model)) {
+            return false;
+        }
+        ModelAdapter adapter = FlowManager.getModelAdapter(model.getClass());
+        insert(getTable(adapter.getTableName()), getContentValues(adapter, model));
+        changedTables.add(model.getClass());
+        return true;
+    }
+
+    /**
+     * Closes the compiled statements and notifies observers once per changed table.
+     */
+    void close() {
+        for (SQLiteStatement statement : statements.values()) {
+            statement.close();
+        }
+        statements.clear();
+        for (Class<? extends Model> table : changedTables) {
+            SqlUtils.notifyModelChanged(table, BaseModel.Action.SAVE);
+        }
+        changedTables.clear();
+    }
+
+    /**
+     * Saves an event from the server and its data values, keeping the local id of an
+     * existing event with the same uid. Local events are left to Event.save(), which
+     * also queues them for upload.
+     */
+    private boolean saveEvent(Event event) {
+        if (!event.isFromServer() || Utils.isLocal(event.getEvent())) {
+            return false;
+        }
+        ModelAdapter adapter = FlowManager.getModelAdapter(Event.class);
+        TableInfo table = getTable(adapter.getTableName());
+        SQLiteStatement select = getStatement("select:" + table.name,
+                "SELECT `localId` FROM `" + table.name + "` WHERE `event` = ?");
+        select.bindString(1, event.getEvent());
+        long localId = -1;
+        try {
+            localId = select.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            // no existing event
+        }
+
+        ContentValues values = getContentValues(adapter, event);
+        if (localId >= 0) {
+            event.setLocalId(localId);
+            values.put("localId", localId);
+            update(table, values);
+        } else {
+            values.remove("localId");
+            event.setLocalId(insert(table, values));
+        }
+        changedTables.add(Event.class);
+
+        if (event.getDataValues() != null) {
+            for (DataValue dataValue : event.getDataValues()) {
+                dataValue.setEvent(event.getEvent());
+                dataValue.setLocalEventId(event.getLocalId());
+                save(dataValue);
+            }
+        }
+        return true;
+    }
+
+    private boolean isBulkWritable(BaseModel model) {
+        if (model instanceof DataValue) {
+            return !Utils.isLocal(((DataValue) model).getEvent());
+        }
+        if (model instanceof TrackedEntityAttributeValue) {
+            return !Utils.isLocal(((TrackedEntityAttributeValue) model).getTrackedEntityInstanceId());
+        }
+        if (!isPlainModel(model.getClass())) {
+            return false;
+        }
+        // rows keyed on an auto-increment id need the id assigned on insert
+        return !getTable(FlowManager.getModelAdapter(model.getClass()).getTableName()).rowIdKey;
+    }
+
+    /**
+     * Returns true if the class doesn't override save() or update(), since the logic in
+     * those would be skipped by bulk writes.
+     */
+    private static boolean isPlainModel(Class<?> modelClass) {
+        synchronized (plainModels) {
+            Boolean plain = plainModels.get(modelClass);
+            if (plain == null) {
+                try {
+                    plain = modelClass.getMethod("save").getDeclaringClass() == BaseModel.class &&
+                            modelClass.getMethod("update").getDeclaringClass() == BaseModel.class &&
+                            modelClass.getMethod("insert").getDeclaringClass() == BaseModel.class;
+                } catch (NoSuchMethodException e) {
+                    plain = false;
+                }
+                plainModels.put(modelClass, plain);
+            }
+            return plain;
+        }
+    }
+
+    private static ContentValues getContentValues(ModelAdapter adapter, BaseModel model) {
+        ContentValues values = new ContentValues();
+        adapter.bindToContentValues(values, model);
+        return values;
+    }
+
+    private boolean update(TableInfo table, ContentValues values) {
+        StringBuilder sql = new StringBuilder("UPDATE `").append(table.name).append("` SET ");
+        for (int i = 0; i < table.columns.size(); i++) {
+            sql.append(i > 0 ? ", `" : "`").append(table.columns.get(i)).append("` = ?");
+        }
+        sql.append(" WHERE ");
+        for (int i = 0; i < table.primaryKeys.size(); i++) {
+            sql.append(i > 0 ? " AND `" : "`").append(table.primaryKeys.get(i)).append("` = ?");
+        }
+        SQLiteStatement statement = getStatement("update:" + table.name, sql.toString());
+        int index = 1;
+        for (String column : table.columns) {
+            bind(statement, index++, values.get(column));
+        }
+        for (String column : table.primaryKeys) {
+            bind(statement, index++, values.get(column));
+        }
+        return statement.executeUpdateDelete() > 0;
+    }
+
+    private long insert(TableInfo table, ContentValues values) {
+        List<String> columns = new ArrayList<>(table.columns);
+        for (String primaryKey : table.primaryKeys) {
+            if (values.containsKey(primaryKey)) {
+                columns.add(primaryKey);
+            }
+        }
+        StringBuilder sql = new StringBuilder("INSERT INTO `").append(table.name).append("` (");
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < columns.size(); i++) {
+            sql.append(i > 0 ? ", `" : "`").append(columns.get(i)).append('`');
+            placeholders.append(i > 0 ? ", ?" : "?");
+        }
+        sql.append(") VALUES (").append(placeholders).append(')');
+        SQLiteStatement statement = getStatement("insert:" + table.name + ":" + columns.size(),
+                sql.toString());
+        for (int i = 0; i < columns.size(); i++) {
+            bind(statement, i + 1, values.get(columns.get(i)));
+        }
+        return statement.executeInsert();
+    }
+
+    private SQLiteStatement getStatement(String key, String sql) {
+        SQLiteStatement statement = statements.get(key);
+        if (statement == null) {
+            statement = database.compileStatement(sql);
+            statements.put(key, statement);
+        }
+        statement.clearBindings();
+        return statement;
+    }
+
+    private static void bind(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    private TableInfo getTable(String name) {
+        TableInfo table = tables.get(name);
+        if (table == null) {
+            table = new TableInfo(name);
+            Cursor cursor = database.rawQuery("PRAGMA table_info(`" + name + "`)", null);
+            try {
+                int nameIndex = cursor.getColumnIndex("name");
+                int typeIndex = cursor.getColumnIndex("type");
+                int primaryKeyIndex = cursor.getColumnIndex("pk");
+                String primaryKeyType = null;
+                while (cursor.moveToNext()) {
+                    if (cursor.getInt(primaryKeyIndex) > 0) {
+                        table.primaryKeys.add(cursor.getString(nameIndex));
+                        primaryKeyType = cursor.getString(typeIndex);
+                    } else {
+                        table.columns.add(cursor.getString(nameIndex));
+                    }
+                }
+                table.rowIdKey = table.primaryKeys.size() == 1 &&
+                        "INTEGER".equalsIgnoreCase(primaryKeyType);
+            } finally {
+                cursor.close();
+            }
+            tables.put(name, table);
+        }
+        return table;
+    }
+
+    private static final class TableInfo {
+        final String name;
+        final List<String> columns = new ArrayList<>();
+        final List<String> primaryKeys = new ArrayList<>();
+        boolean rowIdKey;
+
+        TableInfo(String name) {
+            this.name = name;
+        }
+    }
+}
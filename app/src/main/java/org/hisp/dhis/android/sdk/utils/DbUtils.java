@@ -29,17 +29,23 @@
 
 package org.hisp.dhis.android.sdk.utils;
 
-import com.raizlabs.android.dbflow.runtime.TransactionManager;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteTransactionListener;
 
+import com.raizlabs.android.dbflow.config.FlowManager;
+
+import org.hisp.dhis.android.sdk.controllers.metadata.MetaDataCache;
 import org.hisp.dhis.android.sdk.persistence.Dhis2Database;
 import org.hisp.dhis.android.sdk.persistence.models.BaseIdentifiableObject;
 import org.hisp.dhis.android.sdk.persistence.models.meta.DbOperation;
-import org.joda.time.DateTime;
+import org.hisp.dhis.android.sdk.persistence.preferences.DateTimeManager;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.hisp.dhis.android.sdk.persistence.models.BaseIdentifiableObject.toMap;
 import static org.hisp.dhis.android.sdk.utils.Preconditions.isNull;
@@ -50,12 +56,20 @@ import static org.hisp.dhis.android.sdk.utils.Preconditions.isNull;
  */
 public final class DbUtils {
 
+    /**
+     * Batches can be applied from several loader threads at once. They are
+     * written one after another to keep each of them in its own transaction.
+     */
+    private static final Object BATCH_LOCK = new Object();
+
     private DbUtils() {
         // no instances
     }
 
     /**
-     * Performs each given DbOperation during one database transaction
+     * Performs each given DbOperation during one database transaction. Inserts, updates
+     * and saves are written with compiled statements reused per table where possible,
+     * see {@link BulkWriter}.
      *
      * @param operations List of DbOperations to be performed.
      */
@@ -66,30 +80,114 @@ public final class DbUtils {
             return;
         }
 
-        TransactionManager.transact(Dhis2Database.NAME, new Runnable() {
-            @Override
-            public void run() {
-                for (DbOperation operation : operations) {
-                    switch (operation.getAction()) {
-                        case INSERT: {
-                            operation.getModel().insert();
-                            break;
-                        }
-                        case UPDATE: {
-                            operation.getModel().update();
-                            break;
-                        }
-                        case SAVE:
-                            operation.getModel().save();
-                            break;
-                        case DELETE: {
-                            operation.getModel().delete();
-                            break;
+        // tracker data is not cached, so only meta data writes invalidate caches
+        Set<Class<?>> cachedTables = new HashSet<>();
+        for (DbOperation operation : operations) {
+            Class<?> table = operation.getModel().getClass();
+            if (MetaDataCache.isCached(table)) {
+                cachedTables.add(table);
+            }
+        }
+
+        try {
+            transact(new Runnable() {
+                @Override
+                public void run() {
+                    BulkWriter writer = new BulkWriter(
+                            FlowManager.getDatabase(Dhis2Database.NAME).getWritableDatabase());
+                    try {
+                        for (DbOperation operation : operations) {
+                            switch (operation.getAction()) {
+                                case INSERT: {
+                                    if (!writer.insert(operation.getModel())) {
+                                        operation.getModel().insert();
+                                    }
+                                    break;
+                                }
+                                case UPDATE: {
+                                    if (!writer.update(operation.getModel())) {
+                                        operation.getModel().update();
+                                    }
+                                    break;
+                                }
+                                case SAVE:
+                                    if (!writer.save(operation.getModel())) {
+                                        operation.getModel().save();
+                                    }
+                                    break;
+                                case DELETE: {
+                                    operation.getModel().delete();
+                                    break;
+                                }
+                            }
                         }
+                    } finally {
+                        writer.close();
                     }
                 }
+            });
+        } finally {
+            // cached meta data items are reloaded after the batch has been written
+            if (!cachedTables.isEmpty()) {
+                MetaDataCache.invalidate(cachedTables);
+            }
+        }
+    }
+
+    /**
+     * Runs the given Runnable in one database transaction. Used when writes depend on
+     * each other, for example on auto-increment ids of models saved earlier in the transaction.
+     * If the transaction is rolled back, checkpoints written in it are dropped from memory
+     * as well, see {@link DateTimeManager}.
+     *
+     * @param runnable
+     */
+    public static void transact(Runnable runnable) {
+        isNull(runnable, "Runnable object must not be null");
+
+        synchronized (BATCH_LOCK) {
+            SQLiteDatabase database = FlowManager.getDatabase(Dhis2Database.NAME).getWritableDatabase();
+            if (database.inTransaction()) {
+                // nested, a rollback is reported to the listener of the outermost transaction
+                database.beginTransaction();
+                try {
+                    runnable.run();
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+                return;
             }
-        });
+
+            RollbackListener listener = new RollbackListener();
+            database.beginTransactionWithListener(listener);
+            try {
+                runnable.run();
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+                if (listener.rolledBack) {
+                    DateTimeManager.getInstance().reload();
+                }
+            }
+        }
+    }
+
+    private static class RollbackListener implements SQLiteTransactionListener {
+        private boolean rolledBack;
+
+        @Override
+        public void onBegin() {
+        }
+
+        @Override
+        public void onCommit() {
+        }
+
+        @Override
+        public void onRollback() {
+            rolledBack = true;
+        }
     }
 
     /**
@@ -129,24 +227,10 @@ public final class DbUtils {
 
             // if the last updated field in up to date model is after the same
             // field in persisted model, it means we need to update it.
-            DateTime oldTime = null;
-            if(oldModel.getLastUpdated() != null) {
-                try {
-                    oldTime = DateTime.parse(oldModel.getLastUpdated());
-                } catch (Exception e) {
-                    //if the date is malformed then there's not much we can do
-                }
-            }
-            DateTime newTime = null;
-            if(newModel.getLastUpdated() != null) {
-                try {
-                    newTime = DateTime.parse(newModel.getLastUpdated());
-                } catch (Exception e) {
-                    //if the date is malformed then there's not much we can do
-                }
-            }
-            if (oldTime == null || newTime == null ||
-                    newTime.isAfter(oldTime)) {
+            // a time of 0 means the date is missing or malformed, and there's not much we can do
+            long oldTime = oldModel.getLastUpdatedMillis();
+            long newTime = newModel.getLastUpdatedMillis();
+            if (oldTime == 0 || newTime == 0 || newTime > oldTime) {
                 // note, we need to pass database primary id to updated model
                 // in order to avoid creation of new object.
                 newModel.setUid(oldModel.getUid());
@@ -30,7 +30,6 @@
 package org.hisp.dhis.android.sdk.utils.comparators;
 
 import org.hisp.dhis.android.sdk.persistence.models.Event;
-import org.joda.time.DateTime;
 
 import java.util.Comparator;
 
@@ -56,22 +55,8 @@ public class EventDateComparator implements Comparator<Event> {
         } else if (isEmpty(rhs.getEventDate())) {
             return 1;
         }
-        DateTime lhsDate = new DateTime(lhs.getEventDate());
-        DateTime rhsDate = new DateTime(rhs.getEventDate());
-        if(lhsDate == null && rhsDate == null) {
-            return 0;
-        } else if (lhsDate == null) {
-            return -1;
-        } else if (rhsDate == null) {
-            return 1;
-        } else {
-            if(lhsDate.isBefore(rhsDate)) {
-                return -1;
-            } else if(lhsDate.isAfter(rhsDate)) {
-                return 1;
-            } else {
-                return 0;
-            }
-        }
+        long lhsDate = lhs.getEventDateMillis();
+        long rhsDate = rhs.getEventDateMillis();
+        return lhsDate < rhsDate ? -1 : (lhsDate == rhsDate ? 0 : 1);
     }
 }
@@ -570,4 +570,23 @@ public class DateUtils {
 
         return null;
     }
+
+    /**
+     * Parses the given ISO 8601 date string into milliseconds since the epoch.
+     * Returns 0 if the string is null or cannot be parsed.
+     *
+     * @param dateString the date string.
+     * @return the time in milliseconds.
+     */
+    public static long getMillis(final String dateString) {
+        if (dateString == null || dateString.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            return DateTime.parse(dateString).getMillis();
+        } catch (IllegalArgumentException ignored) {
+            return 0;
+        }
+    }
 }